@@ -0,0 +1,56 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.benchmarks;
+
+import com.orange.testgenappium.launcher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Temporary workspace used by benchmarks (errors are logged into it)
+ * 
+ * @author bastienjalbert
+ */
+public class BenchmarkFiles {
+
+    /**
+     * Create a temporary directory, APTR errors log goes into it
+     * @return the directory
+     * @throws IOException 
+     */
+    public static File createWorkspace() throws IOException {
+        File dir = Files.createTempDirectory("aptr-bench").toFile();
+        launcher.LOG_FILE_PATH = dir.getAbsolutePath() + "/error.log.txt";
+        return dir;
+    }
+
+    /**
+     * Delete a workspace created by createWorkspace
+     * @param dir the directory
+     * @throws IOException 
+     */
+    public static void deleteWorkspace(File dir) throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.benchmarks;
+
+import com.orange.testgenappium.model.Device;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading of many devices configuration files (.dat)
+ * 
+ * @author bastienjalbert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeviceBenchmark {
+
+    // number of .dat files
+    @Param({"10", "100", "1000"})
+    public int devices;
+
+    private File workspace;
+
+    private final List<String> datFiles = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        workspace = BenchmarkFiles.createWorkspace();
+        for (int i = 0; i < devices; i++) {
+            File dat = new File(workspace, "device" + i + ".dat");
+            Files.write(dat.toPath(), Arrays.asList(
+                    "--variable udid:3bc45f" + i,
+                    "--variable name:Device" + i,
+                    "--variable type:phone",
+                    "--variable osversion:7.0",
+                    "--variable appium:" + (4700 + i),
+                    "--variable appiumbp:" + (9000 + i),
+                    "--variable app:/path/to/app.apk",
+                    "--loglevel DEBUG"), StandardCharsets.UTF_8);
+            datFiles.add(dat.getAbsolutePath());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        BenchmarkFiles.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public void loadToFile(Blackhole bh) {
+        for (String dat : datFiles) {
+            bh.consume(Device.loadToFile(dat));
+        }
+    }
+
+}
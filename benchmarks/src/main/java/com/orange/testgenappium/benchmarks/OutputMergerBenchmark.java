@@ -0,0 +1,98 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.benchmarks;
+
+import com.orange.testgenappium.utility.OutputMerger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLStreamException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merge of all outputX.testSuite.xml files of a run into output-final.xml
+ * (native merger, one suite by device)
+ * 
+ * @author bastienjalbert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class OutputMergerBenchmark {
+
+    @Param({"4", "12"})
+    public int devices;
+
+    @Param({"10", "50"})
+    public int suites;
+
+    // size of each output file
+    @Param({"1"})
+    public int sizeMb;
+
+    private File workspace;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        workspace = BenchmarkFiles.createWorkspace();
+        // the same suite output is used for all devices
+        for (int s = 0; s < suites; s++) {
+            File suite = new File(workspace, "output0.Suite_" + s + ".xml");
+            OutputXmlGenerator.generate(suite, "Suite_" + s, sizeMb * 1024L * 1024L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        BenchmarkFiles.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public File merge() throws IOException, XMLStreamException {
+        File merged = new File(workspace, "output-final.xml");
+        OutputMerger merger = new OutputMerger(merged, "Benchmark", "Robot 3.0.2");
+        for (int d = 0; d < devices; d++) {
+            merger.startSuite("Device" + d);
+            for (int s = 0; s < suites; s++) {
+                merger.addOutput(new File(workspace, "output0.Suite_" + s + ".xml"));
+            }
+            merger.endSuite();
+        }
+        merger.close();
+        return merged;
+    }
+
+}
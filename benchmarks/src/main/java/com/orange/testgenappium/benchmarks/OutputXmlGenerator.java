@@ -0,0 +1,94 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Generate robot framework output.xml files for benchmarks. Tests look like
+ * appium tests : some keywords with log messages, and a screenshot message
+ * every few keywords.
+ * 
+ * @author bastienjalbert
+ */
+public class OutputXmlGenerator {
+
+    // one screenshot for this number of keywords
+    public static final int SCREENSHOT_EVERY = 8;
+
+    private static final String TIME = "20170901 10:00:00.000";
+
+    /**
+     * Write an output.xml file of (about) the given size
+     * @param output the file to create
+     * @param suiteName name of the root suite
+     * @param bytes size of the file
+     * @throws IOException 
+     */
+    public static void generate(File output, String suiteName, long bytes) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<robot generator=\"Robot 3.0.2 (Python 2.7.12 on linux2)\" generated=\"" + TIME + "\">\n");
+            writer.write("<suite source=\"/workspace/" + suiteName + ".robot\" id=\"s1\" name=\"" + suiteName + "\">\n");
+
+            long written = 0;
+            int test = 0;
+            int screenshot = 0;
+            while (written < bytes) {
+                test++;
+                StringBuilder xml = new StringBuilder();
+                xml.append("<test id=\"s1-t").append(test).append("\" name=\"Test ").append(test).append("\">\n");
+                for (int kw = 1; kw <= 2 * SCREENSHOT_EVERY; kw++) {
+                    xml.append("<kw name=\"Click Element\" library=\"AppiumLibrary\">\n");
+                    xml.append("<arguments><arg>id=com.example:id/button_").append(kw).append("</arg></arguments>\n");
+                    xml.append("<msg timestamp=\"").append(TIME).append("\" level=\"INFO\">Clicking element 'id=com.example:id/button_")
+                            .append(kw).append("'.</msg>\n");
+                    if (kw % SCREENSHOT_EVERY == 0) {
+                        screenshot++;
+                        String png = "Suites." + suiteName.replace('_', ' ') + "-appium-screenshot-" + screenshot + ".png";
+                        xml.append("<msg timestamp=\"").append(TIME).append("\" level=\"INFO\" html=\"yes\">")
+                                .append("&lt;/td&gt;&lt;/tr&gt;&lt;tr&gt;&lt;td colspan=\"3\"&gt;&lt;a href=\"").append(png)
+                                .append("\"&gt;&lt;img src=\"").append(png).append("\" width=\"800px\"&gt;&lt;/a&gt;</msg>\n");
+                    }
+                    xml.append("<status status=\"PASS\" starttime=\"").append(TIME).append("\" endtime=\"").append(TIME).append("\"></status>\n");
+                    xml.append("</kw>\n");
+                }
+                xml.append("<tags><tag>smoke</tag><tag>android</tag></tags>\n");
+                xml.append("<status status=\"").append(test % 10 == 0 ? "FAIL" : "PASS")
+                        .append("\" critical=\"yes\" starttime=\"").append(TIME).append("\" endtime=\"").append(TIME).append("\"></status>\n");
+                xml.append("</test>\n");
+                writer.write(xml.toString());
+                written += xml.length();
+            }
+
+            writer.write("<status status=\"FAIL\" starttime=\"" + TIME + "\" endtime=\"" + TIME + "\"></status>\n");
+            writer.write("</suite>\n");
+            writer.write("<statistics>\n<total>\n</total>\n<tag>\n</tag>\n<suite>\n</suite>\n</statistics>\n");
+            writer.write("<errors>\n</errors>\n");
+            writer.write("</robot>\n");
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.benchmarks.BenchmarkFiles;
+import com.orange.testgenappium.benchmarks.OutputXmlGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Screenshots path rewriting of one outputX.testSuite.xml file. The file is
+ * rewritten in place, a rewritten file gives the same result again so the 
+ * same file is used by all invocations.
+ * 
+ * (in utility package : reportImagesUpdaters is not public)
+ * 
+ * @author bastienjalbert
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ScreenshotUpdaterBenchmark {
+
+    // size of the output.xml file
+    @Param({"1", "10", "100", "500"})
+    public int sizeMb;
+
+    private File workspace;
+
+    private File output;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        workspace = BenchmarkFiles.createWorkspace();
+        output = new File(workspace, "output0.Test_Suite.xml");
+        OutputXmlGenerator.generate(output, "Test_Suite", sizeMb * 1024L * 1024L);
+    }
+
+    @TearDown(Level.Trial)
+    public void clean() throws IOException {
+        BenchmarkFiles.deleteWorkspace(workspace);
+    }
+
+    @Benchmark
+    public Object reportImagesUpdaters() {
+        return ScreenshotUpdater.reportImagesUpdaters(output.getAbsolutePath(), 0, "Test_Suite");
+    }
+
+}
@@ -0,0 +1,198 @@
+# Fake pabot for the APTR scale harness (started by harness/bin/python).
+#
+# Same arguments as the custom pabot used by APTR :
+#   --argumentfileX device.dat ... --outputdir DIR suite.robot
+# Each device "runs" the suite by sleeping, then writes
+# DIR/pabot_results/outputX.xml and its screenshots in DIR/img. Like the real
+# pabot, DIR/pabot_results is cleared when it starts.
+#
+# Duration of a suite on a device = simduration variable of the .dat file
+# (seconds) x simfactor of the .robot file ("# simfactor: 1.5" line). With
+# --test options, only these tests ("Test N") run, in a part of this duration.
+#
+# Environment :
+#   FAKE_TESTS        tests by suite (default 5)
+#   FAKE_SCREENSHOTS  screenshots by test (default 1)
+#   FAKE_SCREENSHOT_VARIANTS  number of different images (default 0 = all different)
+#   FAKE_FAIL_RATE    part of failed tests (default 0.1)
+#   APTR_HARNESS_LOG  file where "udid suite start end" lines are appended
+#   FAKE_ADB_DIR      while DIR/udid exists the device is offline (see bin/adb) :
+#                     the suite goes 10 times slower and all its tests fail
+#   FAKE_OUTPUT_LINES lines written on stdout by each device (default 0, pabot --verbose is chatty)
+#   FAKE_HANG         suites which never end, ex: "Suite_0001.robot,Suite_0004.robot:once"
+#                     (":once" : only the first run of the suite on each device hangs)
+import os
+import random
+import shutil
+import struct
+import sys
+import threading
+import time
+import zlib
+
+TIME = '20170901 10:00:00.000'
+
+
+def png(variant=None, width=64, height=64):
+    # a small valid PNG image, the same image for the same variant
+    rng = random.Random(variant) if variant is not None else random
+    def chunk(kind, data):
+        return struct.pack('>I', len(data)) + kind + data + struct.pack('>I', zlib.crc32(kind + data))
+    raw = b''.join(b'\x00' + bytes(rng.getrandbits(8) for _ in range(width * 3)) for _ in range(height))
+    return (b'\x89PNG\r\n\x1a\n'
+            + chunk(b'IHDR', struct.pack('>IIBBBBB', width, height, 8, 2, 0, 0, 0))
+            + chunk(b'IDAT', zlib.compress(raw))
+            + chunk(b'IEND', b''))
+
+
+def read_variables(dat):
+    variables = {}
+    with open(dat) as f:
+        for line in f:
+            line = line.strip()
+            if line.startswith('--variable ') and ':' in line:
+                key, value = line[len('--variable '):].split(':', 1)
+                variables[key] = value
+    return variables
+
+
+def suite_factor(robot):
+    try:
+        with open(robot) as f:
+            for line in f:
+                if line.startswith('# simfactor:'):
+                    return float(line.split(':', 1)[1])
+    except IOError:
+        pass
+    return 1.0
+
+
+def robot_time(seconds):
+    return time.strftime('%Y%m%d %H:%M:%S', time.localtime(seconds)) + '.%03d' % (seconds * 1000 % 1000)
+
+
+def hangs(robot, udid, outputdir):
+    for hang in os.environ.get('FAKE_HANG', '').split(','):
+        name, _, mode = hang.partition(':')
+        if name != os.path.basename(robot):
+            continue
+        if mode != 'once':
+            return True
+        marker = os.path.join(outputdir, '.hanged-%s-%s' % (name, udid))
+        if not os.path.exists(marker):
+            open(marker, 'w').close()
+            return True
+    return False
+
+
+def run_device(index, dat, robot, outputdir, selected):
+    variables = read_variables(dat)
+    if hangs(robot, variables.get('udid', index), outputdir):
+        # robot writes its output while running : a killed one leaves it unfinished
+        os.makedirs(os.path.join(outputdir, 'pabot_results'), exist_ok=True)
+        with open(os.path.join(outputdir, 'pabot_results', 'output%d.xml' % index), 'w') as f:
+            f.write('<?xml version="1.0" encoding="UTF-8"?>\n<robot generator="Robot 3.0.2 (fake pabot)">\n')
+        time.sleep(3600)
+    tests = int(os.environ.get('FAKE_TESTS', '5'))
+    numbers = [t for t in range(1, tests + 1) if not selected or 'Test %d' % t in selected]
+    duration = float(variables.get('simduration', '1')) * suite_factor(robot) * len(numbers) / max(tests, 1)
+    suite_name = os.path.splitext(os.path.basename(robot))[0].replace('_', ' ')
+
+    start = time.time()
+    # an offline device still "runs" its tests, failing on timeouts
+    marker = os.path.join(os.environ.get('FAKE_ADB_DIR', '/nonexistent'), variables.get('udid', ''))
+    offline = False
+    done = 0.0
+    while done < duration:
+        if os.path.exists(marker):
+            offline = True
+            done += 0.01
+        else:
+            done += 0.1
+        time.sleep(0.1)
+
+    for line in range(int(os.environ.get('FAKE_OUTPUT_LINES', '0'))):
+        print('%s | %s | Test %d | keyword output line %d' % (variables.get('udid', index), suite_name,
+                                                             line % max(tests, 1) + 1, line), flush=line % 100 == 0)
+    sys.stdout.flush()
+
+    screenshots = int(os.environ.get('FAKE_SCREENSHOTS', '1'))
+    variants = int(os.environ.get('FAKE_SCREENSHOT_VARIANTS', '0'))
+    fail_rate = float(os.environ.get('FAKE_FAIL_RATE', '0.1'))
+
+    os.makedirs(os.path.join(outputdir, 'pabot_results'), exist_ok=True)
+    os.makedirs(os.path.join(outputdir, 'img'), exist_ok=True)
+
+    xml = ['<?xml version="1.0" encoding="UTF-8"?>\n',
+           '<robot generator="Robot 3.0.2 (fake pabot)" generated="%s">\n' % TIME,
+           '<suite source="%s" id="s1" name="%s">\n' % (os.path.abspath(robot), suite_name)]
+    number = 0
+    failed = 0
+    for t in numbers:
+        status = 'FAIL' if offline or random.random() < fail_rate else 'PASS'
+        failed += status == 'FAIL'
+        xml.append('<test id="s1-t%d" name="Test %d">\n' % (t, t))
+        for _ in range(screenshots):
+            number += 1
+            name = 'Suites.%s-appium-screenshot-%d.png' % (suite_name, number)
+            xml.append('<kw name="Capture Page Screenshot" library="AppiumLibrary">\n')
+            xml.append('<msg timestamp="%s" level="INFO" html="yes">&lt;/td&gt;&lt;/tr&gt;&lt;tr&gt;'
+                       '&lt;td colspan="3"&gt;&lt;a href="%s"&gt;&lt;img src="%s" width="800px"&gt;&lt;/a&gt;</msg>\n'
+                       % (TIME, name, name))
+            xml.append('<status status="PASS" starttime="%s" endtime="%s"></status>\n</kw>\n' % (TIME, TIME))
+            with open(os.path.join(outputdir, 'img', '%d-%s-appium-screenshot-%d.png'
+                                   % (index, suite_name, number)), 'wb') as f:
+                f.write(png(random.randrange(variants) if variants > 0 else None))
+        xml.append('<tags><tag>harness</tag></tags>\n')
+        xml.append('<status status="%s" critical="yes" starttime="%s" endtime="%s"></status>\n</test>\n'
+                   % (status, TIME, TIME))
+    # the root suite has its real duration (APTR reads it for the suites history)
+    xml.append('<status status="%s" starttime="%s" endtime="%s"></status>\n</suite>\n'
+               % ('FAIL' if failed else 'PASS', robot_time(start), robot_time(time.time())))
+    xml.append('<statistics>\n</statistics>\n<errors>\n</errors>\n</robot>\n')
+
+    with open(os.path.join(outputdir, 'pabot_results', 'output%d.xml' % index), 'w') as f:
+        f.write(''.join(xml))
+
+    log = os.environ.get('APTR_HARNESS_LOG')
+    if log:
+        with open(log, 'a') as f:
+            f.write('%s %s %.3f %.3f\n' % (variables.get('udid', index), os.path.basename(robot), start, time.time()))
+
+
+def main(args):
+    argumentfiles = []
+    outputdir = '.'
+    selected = set()
+    robot = args[-1]
+    i = 0
+    while i < len(args) - 1:
+        arg = args[i]
+        if arg.startswith('--argumentfile'):
+            argumentfiles.append((int(arg[len('--argumentfile'):]), args[i + 1]))
+            i += 1
+        elif arg == '--outputdir':
+            outputdir = args[i + 1]
+            i += 1
+        elif arg in ('--test', '-t'):
+            selected.add(args[i + 1])
+            i += 1
+        elif arg in ('--processes', '--pabotlibport', '--pabotlibhost',
+                     '--include', '-i', '--variable', '-v', '--output', '-o'):
+            i += 1
+        i += 1
+
+    # the real pabot starts with an empty pabot_results directory
+    shutil.rmtree(os.path.join(outputdir, 'pabot_results'), ignore_errors=True)
+
+    print('fake pabot : %s on %d device(s)' % (robot, len(argumentfiles)))
+    threads = [threading.Thread(target=run_device, args=(index, dat, robot, outputdir, selected))
+               for index, dat in argumentfiles]
+    for thread in threads:
+        thread.start()
+    for thread in threads:
+        thread.join()
+
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
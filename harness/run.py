@@ -0,0 +1,240 @@
+#!/usr/bin/env python3
+# APTR scale harness : run APTR on virtual devices with fake appium, pabot and
+# rebot executables (harness/bin first on PATH), then report wall-clock time,
+# per-device utilisation and orchestrator CPU/heap.
+#
+#   mvn compile assembly:single
+#   harness/run.py --devices 12 --suites 60 -- --workstealing --nativemerge
+#
+# Arguments after "--" are given to APTR. Exit code is 1 if the orchestrator
+# overhead is above --max-overhead (percent of the ideal run time).
+import argparse
+import glob
+import os
+import random
+import re
+import shutil
+import subprocess
+import sys
+import tempfile
+import threading
+import time
+
+HARNESS = os.path.dirname(os.path.abspath(__file__))
+PROJECT = os.path.dirname(HARNESS)
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description='APTR scale harness')
+    parser.add_argument('--devices', type=int, default=4, help='virtual devices (1 to 200)')
+    parser.add_argument('--suites', type=int, default=10, help='robot suites (1 to 1000)')
+    parser.add_argument('--suite-seconds', type=float, default=1.0, help='mean suite duration on a normal device')
+    parser.add_argument('--slow-every', type=int, default=0, help='one device out of N is slow (0 : none)')
+    parser.add_argument('--slow-factor', type=float, default=3.0, help='slow devices duration factor')
+    parser.add_argument('--tablet-every', type=int, default=0,
+                        help='one device out of N is a tablet, and one suite out of N requires a tablet (0 : none)')
+    parser.add_argument('--dead-devices', type=int, default=0, help='last N devices are offline from the start')
+    parser.add_argument('--offline', action='append', default=[], metavar='DEVICE:SECONDS[:recoverable]',
+                        help='device number DEVICE goes offline after SECONDS (recoverable by adb reconnect)')
+    parser.add_argument('--hang', action='append', default=[], metavar='SUITE[:once]',
+                        help='suite number SUITE never ends (only its first run on each device with :once)')
+    parser.add_argument('--tests', type=int, default=5, help='tests by suite')
+    parser.add_argument('--big-suite', type=float, default=1.0,
+                        help='duration factor of the first suite (to try --splittests)')
+    parser.add_argument('--output-lines', type=int, default=0, help='lines written by pabot for each suite and device')
+    parser.add_argument('--screenshots', type=int, default=1, help='screenshots by test')
+    parser.add_argument('--screenshot-variants', type=int, default=0,
+                        help='number of different screenshot images (default 0 = all different)')
+    parser.add_argument('--fail-rate', type=float, default=0.1, help='part of failed tests')
+    parser.add_argument('--seed', type=int, default=42, help='seed of suites durations')
+    parser.add_argument('--jar', default=None, help='APTR jar (default : target/*-jar-with-dependencies.jar)')
+    parser.add_argument('--max-overhead', type=float, default=None, help='fail if overhead is above this percent')
+    parser.add_argument('--keep', action='store_true', help='keep the temporary workspace')
+    parser.add_argument('aptr_args', nargs='*', help='APTR arguments (after --)')
+    return parser.parse_args()
+
+
+def find_jar(jar):
+    if jar:
+        return jar
+    jars = glob.glob(os.path.join(PROJECT, 'target', '*-jar-with-dependencies.jar'))
+    if not jars:
+        sys.exit('APTR jar not found, build it first : mvn compile assembly:single')
+    return jars[0]
+
+
+def create_workspace(root, args):
+    """Workspace with suites (.robot) and devices (.dat), returns expected durations"""
+    workspace = os.path.join(root, 'workspace')
+    conf = os.path.join(workspace, 'runner', 'devices_conf')
+    os.makedirs(conf)
+
+    rnd = random.Random(args.seed)
+    factors = []
+    tablet_suites = set()
+    for s in range(args.suites):
+        factor = round(rnd.uniform(0.5, 1.5), 3) * (args.big_suite if s == 0 else 1.0)
+        factors.append(factor)
+        tablet = args.tablet_every > 0 and s % args.tablet_every == 0
+        if tablet:
+            tablet_suites.add(s)
+        with open(os.path.join(workspace, 'Suite_%04d.robot' % s), 'w') as f:
+            f.write('# simfactor: %s\n' % factor)
+            if tablet:
+                f.write('*** Settings ***\nMetadata    Device Tags    tablet\n')
+            f.write('*** Test Cases ***\n')
+            for t in range(1, args.tests + 1):
+                f.write('Test %d\n    Log    harness\n' % t)
+
+    durations = {}
+    tablets = set()
+    for d in range(args.devices):
+        slow = args.slow_every > 0 and d % args.slow_every == args.slow_every - 1
+        seconds = args.suite_seconds * (args.slow_factor if slow else 1.0)
+        udid = 'virtual%03d' % d
+        durations[udid] = seconds
+        tablet = args.tablet_every > 0 and d % args.tablet_every == 0
+        if tablet:
+            tablets.add(udid)
+        with open(os.path.join(conf, 'device%03d.dat' % d), 'w') as f:
+            f.write('--variable udid:%s\n' % udid)
+            f.write('--variable name:Virtual_%03d%s\n' % (d, '_slow' if slow else ''))
+            f.write('--variable appium:%d\n' % (20000 + d))
+            f.write('--variable appiumbp:%d\n' % (30000 + d))
+            f.write('--variable simduration:%s\n' % seconds)
+            if tablet:
+                f.write('--variable tags:tablet\n')
+    # devices each suite can run on
+    matching = [sorted(tablets if s in tablet_suites else durations) for s in range(args.suites)]
+    return workspace, factors, durations, matching
+
+
+def sample(pid, stats):
+    """CPU time (s) and peak RSS (kB) of the orchestrator JVM only (not its children)"""
+    try:
+        with open('/proc/%d/stat' % pid) as f:
+            fields = f.read().rsplit(')', 1)[1].split()
+        ticks = os.sysconf('SC_CLK_TCK')
+        stats['cpu'] = (int(fields[11]) + int(fields[12])) / ticks
+        with open('/proc/%d/status' % pid) as f:
+            for line in f:
+                if line.startswith('VmHWM:'):
+                    stats['rss'] = int(line.split()[1])
+    except (IOError, IndexError):
+        pass
+
+
+def max_heap(gc_log):
+    """Highest heap occupancy (MB) before a GC, from -Xlog:gc output"""
+    peak = 0
+    if os.path.exists(gc_log):
+        with open(gc_log) as f:
+            for line in f:
+                match = re.search(r'(\d+)M->(\d+)M\((\d+)M\)', line)
+                if match:
+                    peak = max(peak, int(match.group(1)))
+    return peak
+
+
+def main():
+    args = parse_args()
+    jar = find_jar(args.jar)
+    root = tempfile.mkdtemp(prefix='aptr-harness-')
+    workspace, factors, durations, matching = create_workspace(root, args)
+
+    # APTR looks for pabot into its working directory, don't clone it
+    run_dir = os.path.join(root, 'run')
+    os.makedirs(os.path.join(run_dir, 'pabot'))
+
+    env = dict(os.environ)
+    env['PATH'] = os.path.join(HARNESS, 'bin') + os.pathsep + env['PATH']
+    env['APTR_HARNESS_LOG'] = os.path.join(root, 'harness.log')
+    env['FAKE_TESTS'] = str(args.tests)
+    env['FAKE_SCREENSHOTS'] = str(args.screenshots)
+    env['FAKE_OUTPUT_LINES'] = str(args.output_lines)
+    env['FAKE_SCREENSHOT_VARIANTS'] = str(args.screenshot_variants)
+    env['FAKE_FAIL_RATE'] = str(args.fail_rate)
+    env['FAKE_HANG'] = ','.join('Suite_%04d.robot%s' % (int(hang.split(':')[0]), hang[len(hang.split(':')[0]):])
+                                for hang in args.hang)
+    env['FAKE_ADB_DIR'] = os.path.join(root, 'adb')
+    os.makedirs(env['FAKE_ADB_DIR'])
+    for d in range(args.devices - args.dead_devices, args.devices):
+        open(os.path.join(env['FAKE_ADB_DIR'], 'virtual%03d' % d), 'w').close()
+    for offline in args.offline:
+        parts = offline.split(':')
+        marker = os.path.join(env['FAKE_ADB_DIR'], 'virtual%03d' % int(parts[0]))
+        content = 'recoverable' if len(parts) > 2 and parts[2] == 'recoverable' else ''
+        timer = threading.Timer(float(parts[1]), lambda m=marker, c=content: open(m, 'w').write(c))
+        timer.daemon = True
+        timer.start()
+
+    gc_log = os.path.join(root, 'gc.log')
+    command = ['java', '-Xlog:gc:file=' + gc_log, '-jar', jar, '-d', workspace] + args.aptr_args
+    print('Harness : %d device(s), %d suite(s), workspace %s' % (args.devices, args.suites, root))
+
+    stats = {'cpu': 0.0, 'rss': 0}
+    start = time.time()
+    with open(os.path.join(root, 'aptr.log'), 'w') as log:
+        process = subprocess.Popen(command, cwd=run_dir, env=env, stdout=log, stderr=subprocess.STDOUT)
+        while process.poll() is None:
+            sample(process.pid, stats)
+            time.sleep(0.2)
+    wall = time.time() - start
+
+    # busy time of each device, from fake pabot log
+    busy = {udid: 0.0 for udid in durations}
+    runs = 0
+    if os.path.exists(env['APTR_HARNESS_LOG']):
+        with open(env['APTR_HARNESS_LOG']) as f:
+            for line in f:
+                udid, _, begin, end = line.split()
+                busy[udid] = busy.get(udid, 0.0) + float(end) - float(begin)
+                runs += 1
+
+    distribute = '--distribute' in args.aptr_args or '-dt' in args.aptr_args
+    split = distribute and ('--splittests' in args.aptr_args or '-sp' in args.aptr_args)
+    if distribute:
+        # each suite runs once : longest first on the matching device which 
+        # ends it first (each test on its own if suites are split)
+        works = [(factors[s] / args.tests, matching[s]) for s in range(args.suites) for _ in range(args.tests)] \
+            if split else list(zip(factors, matching))
+        finish = {udid: 0.0 for udid in durations}
+        for factor, udids in sorted(works, key=lambda work: -work[0]):
+            if udids:
+                udid = min(udids, key=lambda u: finish[u] + durations[u] * factor)
+                finish[udid] += durations[udid] * factor
+        ideal = max(finish.values())
+        expected = sum(1 for udids in matching if udids)
+    else:
+        # every suite runs on every matching device : the busiest device gives the ideal time
+        ideal = max(durations[udid] * sum(factors[s] for s in range(args.suites) if udid in matching[s])
+                    for udid in durations)
+        expected = sum(len(udids) for udids in matching)
+    overhead = (wall - ideal) * 100 / ideal if ideal > 0 else 0
+
+    print('APTR exit code        : %d (log : %s)' % (process.returncode, os.path.join(root, 'aptr.log')))
+    if split:
+        print('Suite runs            : %d (shards of %d suite(s))' % (runs, args.suites))
+    else:
+        print('Suite runs            : %d / %d' % (runs, expected))
+    print('Wall-clock time       : %.1fs (ideal %.1fs, overhead %.1f%%)' % (wall, ideal, overhead))
+    print('Orchestrator CPU      : %.1fs' % stats['cpu'])
+    print('Orchestrator peak RSS : %d MB' % (stats['rss'] // 1024))
+    print('Orchestrator max heap : %d MB (before GC)' % max_heap(gc_log))
+    utilisation = sorted((busy[udid] * 100 / wall if wall > 0 else 0, udid) for udid in busy)
+    print('Device utilisation    : min %.0f%% (%s), mean %.0f%%, max %.0f%% (%s)' % (
+        utilisation[0][0], utilisation[0][1],
+        sum(u for u, _ in utilisation) / len(utilisation),
+        utilisation[-1][0], utilisation[-1][1]))
+
+    if not args.keep:
+        shutil.rmtree(root, ignore_errors=True)
+
+    if args.max_overhead is not None and overhead > args.max_overhead:
+        print('FAILED : overhead %.1f%% is above %.1f%%' % (overhead, args.max_overhead))
+        return 1
+    return 0 if process.returncode == 0 else process.returncode
+
+
+if __name__ == '__main__':
+    sys.exit(main())
@@ -22,18 +22,40 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package com.orange.testgenappium;
 
 import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.AppiumProbe;
+import com.orange.testgenappium.utility.DaemonClient;
+import com.orange.testgenappium.utility.DaemonServer;
+import com.orange.testgenappium.utility.DeviceHealth;
+import com.orange.testgenappium.utility.ProcessRegistry;
+import com.orange.testgenappium.utility.ResultCache;
+import com.orange.testgenappium.utility.RunJournal;
+import com.orange.testgenappium.utility.RunMetrics;
+import com.orange.testgenappium.utility.StatusServer;
+import com.orange.testgenappium.utility.SuiteHistory;
+import com.orange.testgenappium.utility.SuiteRequirements;
+import com.orange.testgenappium.utility.SuiteSplitter;
+import com.orange.testgenappium.utility.TestRetry;
 import com.orange.testgenappium.utility.Tools;
+import com.orange.testgenappium.utility.Watchdog;
 import com.orange.testgenappium.threads.RebotThread;
 import com.orange.testgenappium.threads.AppiumThread;
+import com.orange.testgenappium.threads.DeviceWorkerThread;
 import com.orange.testgenappium.threads.PabotThread;
+import com.orange.testgenappium.threads.SuiteQueue;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date; 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 
 /**
@@ -73,6 +95,59 @@ public class launcher {
      
     // indicator to verbose or not 
     public static boolean VERBOSE = false;
+    
+    // indicator to keep identical screenshots only once (named by their content)
+    public static boolean DEDUP_SCREENSHOTS = false;
+    
+    // deflate level (0-9) used to recompress screenshots, -1 to keep them as they are
+    public static int SCREENSHOT_COMPRESSION = -1;
+    
+    // width (px) of screenshot thumbnails shown in log.html, 0 to show full images
+    public static int THUMBNAIL_WIDTH = 0;
+    
+    // indicator to resume the previous run (keep its outputs and skip completed suites)
+    public static boolean RESUME = false;
+    
+    // app build ID used to key the result cache, null if the cache isn't used
+    public static String RESULT_CACHE_BUILD = null;
+    
+    // maximum number of tests of a suite shard (distribution mode), 0 to never split suites
+    public static int SPLIT_TESTS = 0;
+    
+    // time (s) between two health checks of a device during tests, 0 to never check them
+    public static int HEALTH_CHECK = 0;
+    
+    // maximum time (s) of a pabot (or rebot) process, 0 for no limit
+    public static int SUITE_TIMEOUT = 0;
+    
+    // maximum time (s) a device spends running suites, 0 for no limit
+    public static int DEVICE_TIMEOUT = 0;
+    
+    // maximum time (s) of the tests execution, 0 for no limit
+    public static int RUN_TIMEOUT = 0;
+    
+    // indicator to start again once a pabot killed at the suite timeout
+    public static boolean TIMEOUT_RETRY = false;
+    
+    // maximum number of times a failed test is run again after the tests execution, 0 to never retry
+    public static int RERUN_FAILED = 0;
+    
+    // directory of the node exporter textfile collector, null to only write runner/output/metrics.prom
+    public static String METRICS_DIR = null;
+    
+    // port of the live status server (JSON and HTML), 0 for no status server
+    public static int STATUS_PORT = 0;
+    
+    // time (ms) given to child processes to stop before being killed
+    private static final long SHUTDOWN_GRACE = 5000;
+    
+    // report of the run in progress, written if APTR is stopped during tests
+    private static volatile RebotThread PARTIAL_REPORT = null;
+    
+    // options only read when APTR starts, so a daemon can't honour them for a run
+    // (--submit is sent with the run by the client)
+    private static final String[] STARTUP_OPTIONS = { "statusport", "forceupdate", "appiumtimeout", 
+                                                      "appiumquorum", "daemon", "stopdaemon" };
 
     ///////////////////////////////////////////////////////////////////////////
     /**
@@ -87,33 +162,37 @@ public class launcher {
         final CommandLineParser parser = new DefaultParser();
         final CommandLine line = parser.parse(configParameters(), args);
          
+        // client mode : the run is done by an APTR daemon
+        if (line.hasOption("submit")) {
+            System.exit(DaemonClient.submit(Integer.parseInt(line.getOptionValue("submit")), args));
+        }
+        if (line.hasOption("stopdaemon")) {
+            System.exit(DaemonClient.stop(Integer.parseInt(line.getOptionValue("stopdaemon"))));
+        }
+         
         // configuring future test by parameters
-        // start all tests of a directory
-        if (line.hasOption("directory")) {
-            PATH_TO_TESTS = line.getOptionValue("directory");
-        } else if (line.hasOption("file")) { // or a signle robot test file
-            PATH_TO_TESTS = System.getProperty("user.dir");
-        } else { // bad args
+        if (!configureRun(line, System.getProperty("user.dir"))) { // bad args
             showUsage();
             System.exit(21);
         }
-        
-        // set the final test name if it exists
-        if (line.hasOption("testname")) {
-            TESTS_NAME = line.getOptionValue("testname");
-        }
-        
-        // set if we want more verbose output or not
-        VERBOSE = line.hasOption("verbose");
 
         // Set all working paths and clear old test reports in workspace
         Tools.getWorkingDir();
         
+        // live status of the run (devices, suites, ETA, errors) over HTTP
+        if (STATUS_PORT > 0) {
+            StatusServer.start(STATUS_PORT);
+        }
+        
         // get last version of custom pabot (forced or not)
+        long phaseStart = System.currentTimeMillis();
         Tools.updateCustomPabot(line.hasOption("forceupdate"));
+        RunMetrics.setupPhase("pabot_update", System.currentTimeMillis() - phaseStart);
         
         // all configurations about devices
+        phaseStart = System.currentTimeMillis();
         ArrayList<Device> devices_conf = Tools.getDevicesDat();
+        RunMetrics.setupPhase("devices_load", System.currentTimeMillis() - phaseStart);
         
         // if there are not configuration about devices, stop execution...
         if(devices_conf.size() <= 0) {
@@ -122,14 +201,25 @@ public class launcher {
                     + "Please read documentation.");
             System.exit(15);
         }
+        
+        // drop devices adb doesn't see (all checked at same time)
+        phaseStart = System.currentTimeMillis();
+        devices_conf = DeviceHealth.preflight(devices_conf);
+        RunMetrics.setupPhase("devices_preflight", System.currentTimeMillis() - phaseStart);
+        if (devices_conf.isEmpty()) {
+            System.out.println("No device is ready (adb state), please check "
+                    + "connections and devices configuration files.");
+            // (17 is used by --submit when the daemon can't be reached)
+            System.exit(18);
+        }
 
         /** Prepare to start appium servers **/
-        
-        // list of (future) appium server processes
-        ArrayList<Thread> appium_threads = new ArrayList<>();
   
-        // stop already running appium servers (if there are)
-        AppiumThread.killallAppiumNode();
+        // stop appium servers left by a previous execution (if there are)
+        AppiumThread.killLeftoverAppiumServers();
+        
+        // on normal exit or Ctrl-C/SIGTERM stop all child processes 
+        Runtime.getRuntime().addShutdownHook(new Thread(launcher::shutdown, "aptr-shutdown"));
 
         /**
          * start one appium server for each device
@@ -138,11 +228,150 @@ public class launcher {
             AppiumThread appium_server = new AppiumThread(device);
             Thread t = new Thread(appium_server);
             t.start();
-            appium_threads.add(t);
         }
 
         // ensuring all appium servers are ready before running any test ... 
-        Thread.sleep(5000);
+        phaseStart = System.currentTimeMillis();
+        long appiumTimeout = Long.parseLong(line.getOptionValue("appiumtimeout", "60")) * 1000;
+        int appiumQuorum = Integer.parseInt(line.getOptionValue("appiumquorum", String.valueOf(devices_conf.size())));
+        devices_conf = AppiumProbe.waitForServers(devices_conf, appiumTimeout, appiumQuorum);
+        RunMetrics.setupPhase("appium_wait", System.currentTimeMillis() - phaseStart);
+        
+        // no appium server started, stop execution...
+        if(devices_conf.isEmpty()) {
+            System.out.println("No appium server is ready, please check appium "
+                    + "installation and devices configuration files.");
+            System.exit(16);
+        }
+        
+        // daemon mode : keep appium servers warm and wait for runs from clients
+        if (line.hasOption("daemon")) {
+            new DaemonServer(Integer.parseInt(line.getOptionValue("daemon")), devices_conf).serve();
+        } else {
+            runTests(line, devices_conf);
+        }
+        
+        // close all appium servers
+        ProcessRegistry.stopAll(SHUTDOWN_GRACE);
+    }
+
+    /**
+     * Called when the JVM stops (end of main, Ctrl-C, SIGTERM) : stop all child
+     * processes, and if tests were running write a report of what completed
+     */
+    private static void shutdown() {
+        RebotThread partialReport = PARTIAL_REPORT;
+        ProcessRegistry.stopAll(SHUTDOWN_GRACE);
+        if (partialReport != null) {
+            System.err.println("WARNING : Tests execution interrupted, writing a partial output.");
+            partialReport.run();
+        }
+    }
+
+    /**
+     * Set test paths, test name and verbosity from arguments
+     * @param line the command line
+     * @param workingDir directory where the command has been launched (for -f)
+     * @return false if arguments don't indicate any test to run
+     */
+    private static boolean configureRun(CommandLine line, String workingDir) {
+        // start all tests of a directory
+        if (line.hasOption("directory")) {
+            PATH_TO_TESTS = line.getOptionValue("directory");
+        } else if (line.hasOption("file")) { // or a signle robot test file
+            PATH_TO_TESTS = workingDir;
+        } else { // bad args
+            return false;
+        }
+        
+        // set the final test name if it exists
+        TESTS_NAME = line.getOptionValue("testname", "Default-Test");
+        
+        // set if we want more verbose output or not
+        VERBOSE = line.hasOption("verbose");
+        
+        // set if identical screenshots are kept only once
+        DEDUP_SCREENSHOTS = line.hasOption("dedupscreenshots");
+        
+        // set how screenshots are recompressed and thumbnails created (in background)
+        SCREENSHOT_COMPRESSION = line.hasOption("compressscreenshots") 
+                ? Integer.parseInt(line.getOptionValue("compressscreenshots", "9")) : -1;
+        THUMBNAIL_WIDTH = Integer.parseInt(line.getOptionValue("thumbnails", "0"));
+        
+        // set if we continue the previous (interrupted) run
+        RESUME = line.hasOption("resume");
+        
+        // set if passed suites are reused when nothing changed (for this app build)
+        RESULT_CACHE_BUILD = line.getOptionValue("resultcache");
+        
+        // set if big suites are split to run on many devices (distribution mode only)
+        SPLIT_TESTS = Integer.parseInt(line.getOptionValue("splittests", "0"));
+        
+        // set if devices are checked (and quarantined) during tests
+        HEALTH_CHECK = Integer.parseInt(line.getOptionValue("healthcheck", "0"));
+        
+        // set when hanging processes are killed (and tests failed)
+        SUITE_TIMEOUT = Integer.parseInt(line.getOptionValue("suitetimeout", "0"));
+        DEVICE_TIMEOUT = Integer.parseInt(line.getOptionValue("devicetimeout", "0"));
+        RUN_TIMEOUT = Integer.parseInt(line.getOptionValue("runtimeout", "0"));
+        TIMEOUT_RETRY = line.hasOption("timeoutretry");
+        
+        // set where the Prometheus metrics file is also written (textfile collector)
+        METRICS_DIR = line.getOptionValue("metricsdir");
+        
+        // set the port of the live status server (only read at startup)
+        STATUS_PORT = Integer.parseInt(line.getOptionValue("statusport", "0"));
+        
+        // set if failed tests are run again at the end (flaky tests)
+        RERUN_FAILED = line.hasOption("rerunfailed") 
+                ? Integer.parseInt(line.getOptionValue("rerunfailed", "1")) : 0;
+        
+        return true;
+    }
+
+    /**
+     * Run a job received by the daemon. Arguments are the same as the command
+     * line, but appium servers are already started (and devices loaded).
+     * @param args the client command line
+     * @param workingDir directory where the client has been launched
+     * @param devices_conf devices of the daemon (with a ready appium server)
+     * @return true if tests and reporting are done without error
+     * @throws ParseException 
+     */
+    public static boolean runJob(String[] args, String workingDir, 
+                                 ArrayList<Device> devices_conf) throws ParseException {
+        final CommandLine line = new DefaultParser().parse(configParameters(), args);
+        
+        for (String option : STARTUP_OPTIONS) {
+            if (line.hasOption(option)) {
+                System.err.println("ERROR : --" + option + " is only read when APTR starts, give it to the daemon "
+                        + "(not to a run sent to it)");
+                return false;
+            }
+        }
+        
+        if (!configureRun(line, workingDir)) {
+            showUsage();
+            return false;
+        }
+        
+        // Set all working paths and clear old test reports in workspace
+        Tools.getWorkingDir();
+        
+        return runTests(line, devices_conf);
+    }
+
+    /**
+     * Run all tests (from arguments) on devices and create the final reports
+     * @param line the command line
+     * @param devices_conf devices with a ready appium server
+     * @return true if tests and reporting are done without error
+     */
+    private static boolean runTests(CommandLine line, ArrayList<Device> devices_conf) {
+        
+        // durations and counts of this run (runner/output/metrics.json)
+        RunMetrics.startRun(devices_conf);
+        boolean succeeded = false;
         
         // list of file path to robot test files
         ArrayList<String> tests_suites = new ArrayList<>();
@@ -155,52 +384,361 @@ public class launcher {
         }
          
         
+        // big suites are executed in shards of a few tests (on different devices), 
+        // the report only knows tests_suites (shards are put together again)
+        ArrayList<String> tests_units = tests_suites;
+        SuiteSplitter.clear();
+        if (SPLIT_TESTS > 0 && line.hasOption("distribute")) {
+            tests_units = SuiteSplitter.split(tests_suites, SPLIT_TESTS);
+        } else if (SPLIT_TESTS > 0) {
+            System.out.println("INFO : --splittests is only used with --distribute, suites are not split");
+        }
+        
+        // devices each suite can run on (tags and OS version it requires)
+        SuiteRequirements.load(tests_suites, devices_conf);
+        
+        // journal of completed suites (loaded to skip them when resuming)
+        RunJournal.start(devices_conf, RESUME);
+        
+        // restore cached results, they are skipped like resumed ones
+        if (RESULT_CACHE_BUILD != null) {
+            ResultCache.restore(devices_conf, tests_units, RESULT_CACHE_BUILD, line.hasOption("distribute"));
+        }
+        
+        // durations of previous runs : the longest suites start first when 
+        // devices don't wait for each other (in the default mode each suite 
+        // waits for the slowest device, the order changes nothing)
+        // (the report keeps the alphabetical order)
+        SuiteHistory.load();
+        SuiteHistory.reportSpeeds(devices_conf);
+        boolean independentDevices = line.hasOption("workstealing") || line.hasOption("distribute");
+        ArrayList<String> execution_order = independentDevices 
+                ? SuiteHistory.longestFirst(tests_units, devices_conf) : tests_units;
+        long predicted = SuiteHistory.predictMakespan(tests_units, devices_conf, 
+                line.hasOption("workstealing"), line.hasOption("distribute"));
+        
+        // if tests are interrupted, completed suites are merged without rebot
+        PARTIAL_REPORT = new RebotThread(devices_conf, tests_suites, line.hasOption("jenkins"), 
+                true, true, line.hasOption("distribute"));
+        
+        // suites to run, shown by the status server with an ETA
+        StatusServer.startRun(devices_conf, tests_units, line.hasOption("distribute"), predicted);
+        if (RESULT_CACHE_BUILD != null) {
+            ResultCache.publish();
+        }
+        
         /**
          * start test execution
          */
         try { 
-            // little indicator to know where we are in test execution
-            int indicator = 1;
+            // unhealthy devices are quarantined, their suites go to other ones
+            DeviceHealth.start(devices_conf, HEALTH_CHECK * 1000L);
             
-            // executing all tests 
-            for (String oneTestFile : tests_suites) { 
+            // hanging suites are killed, and no suite starts after the run timeout
+            Watchdog.start(SUITE_TIMEOUT * 1000L, DEVICE_TIMEOUT * 1000L, RUN_TIMEOUT * 1000L, devices_conf.size());
+            
+            long executionStart = System.currentTimeMillis();
+            
+            // each device pulls its next suite as soon as it is free
+            // (and in distribution mode, a suite runs only on one device)
+            if (line.hasOption("workstealing") || line.hasOption("distribute")) {
+                runWorkStealing(devices_conf, execution_order, line.hasOption("distribute"));
+            } else {
+                // little indicator to know where we are in test execution
+                int indicator = 1;
+                
+                // suites skipped or stopped on a quarantined device, by robot file
+                Map<String, Set<Integer>> deferred = new LinkedHashMap<>();
+
+                // executing all tests 
+                for (String oneTestFile : execution_order) { 
+                    
+                    // APTR is stopping, don't start any other suite
+                    if (ProcessRegistry.isShuttingDown()) {
+                        break;
+                    }
                  
-                // start one test suite on all devices
-                Runnable pabot = new PabotThread(devices_conf, oneTestFile);
-                Thread pabotLauncher = new Thread(pabot);
-                pabotLauncher.start();
-                // wait this test to finish before start another (new iteration)
-                pabotLauncher.join();
+                    String testSuiteName = Tools.getOnlyTestNameFromFile(oneTestFile);
+                    
+                    // devices where this suite isn't done yet (all, if we don't resume)
+                    // and which match its requirements
+                    ArrayList<Integer> todo = new ArrayList<>();
+                    for (int x = 0; x < devices_conf.size(); x++) {
+                        if (!RunJournal.isCompleted(x, testSuiteName) && SuiteRequirements.matches(oneTestFile, x)) {
+                            if (Watchdog.deviceExpired(x)) {
+                                // no time left for this device, its tests are failed
+                                Watchdog.failNotExecuted(x, oneTestFile, devices_conf.get(x).getName());
+                            } else if (!DeviceHealth.isAvailable(x)) {
+                                // runs on this device once it's re-admitted
+                                deferred.computeIfAbsent(oneTestFile, k -> new TreeSet<>()).add(x);
+                            } else {
+                                todo.add(x);
+                            }
+                        }
+                    }
+                    
+                    long suiteStart = System.currentTimeMillis();
+                    boolean timedOut = false;
+                    
+                    if (todo.size() == devices_conf.size()) {
+                        // start one test suite on all devices
+                        PabotThread pabot = new PabotThread(devices_conf, oneTestFile);
+                        Thread pabotLauncher = new Thread(pabot);
+                        pabotLauncher.start();
+                        // wait this test to finish before start another (new iteration)
+                        pabotLauncher.join();
+
+                        // when the test is terminated
+                        // copying and renamming each outputx.xml files 
+                        Tools.preparingOutputsToTmp(devices_conf, testSuiteName);
+                        timedOut = pabot.isTimedOut();
+                    } else if (!todo.isEmpty()) {
+                        ArrayList<Integer> stopped = runOnDevices(devices_conf, todo, oneTestFile);
+                        if (!stopped.isEmpty()) {
+                            deferred.computeIfAbsent(oneTestFile, k -> new TreeSet<>()).addAll(stopped);
+                            todo.removeAll(stopped);
+                        }
+                    } else if (deferred.containsKey(oneTestFile)) {
+                        System.out.println("INFO : " + testSuiteName + " waits for quarantined devices");
+                    } else {
+                        System.out.println("INFO : " + testSuiteName + " already done on all its devices, skipped");
+                    }
+                    
+                    // the step took the time of the slowest device, each device
+                    // took its own time (from its output, unknown if it's been 
+                    // killed or not executed)
+                    long suiteDuration = System.currentTimeMillis() - suiteStart;
+                    for (int x : todo) {
+                        File output = new File(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml");
+                        long duration = Watchdog.isFailedOutput(output) ? -1 : Tools.outputDuration(output);
+                        RunMetrics.suite(oneTestFile, devices_conf.get(x), duration >= 0 ? duration : suiteDuration, 
+                                timedOut ? "timeout" : "executed");
+                        StatusServer.completed(x);
+                        if (!ProcessRegistry.isShuttingDown() && !timedOut && duration >= 0) {
+                            SuiteHistory.record(oneTestFile, devices_conf.get(x), duration);
+                        }
+                    }
                 
-                // when the test is terminated
-                // copying and renamming each outputx.xml files 
-                Tools.preparingOutputsToTmp(devices_conf, Tools.getOnlyTestNameFromFile(oneTestFile));
+                    // show which test has been executed
+                    System.out.println("================================================================");
+                    System.out.println("Test : " + Tools.getOnlyTestNameFromFile(oneTestFile) + " passed");
+                    System.out.println("Total : " + indicator + "/" + tests_suites.size() + " test(s) passed");
+                    System.out.println("================================================================");
+                    indicator++;
+                } 
                 
-                // show which test has been executed
-                System.out.println("================================================================");
-                System.out.println("Test : " + Tools.getOnlyTestNameFromFile(oneTestFile) + " passed");
-                System.out.println("Total : " + indicator + "/" + tests_suites.size() + " test(s) passed");
-                System.out.println("================================================================");
-                indicator++;
-            } 
+                if (!ProcessRegistry.isShuttingDown()) {
+                    runDeferred(devices_conf, deferred);
+                }
+            }
+            
+            RunMetrics.phase("tests_execution", System.currentTimeMillis() - executionStart);
+            
+            // flaky tests : only failed tests run again, their last result is kept
+            if (RERUN_FAILED > 0 && !ProcessRegistry.isShuttingDown()) {
+                long retryStart = System.currentTimeMillis();
+                TestRetry.run(devices_conf, tests_units, line.hasOption("distribute"), RERUN_FAILED);
+                RunMetrics.phase("retry", System.currentTimeMillis() - retryStart);
+            }
+            
+            DeviceHealth.stop();
+            Watchdog.stop();
+            SuiteHistory.save();
+            long actual = System.currentTimeMillis() - executionStart;
+            if (predicted >= 0) {
+                System.out.println("INFO : Tests execution took " + actual / 1000.0 + "s (predicted " + predicted / 1000.0 + "s)");
+            } else {
+                System.out.println("INFO : Tests execution took " + actual / 1000.0 + "s (no history to predict it yet)");
+            }
             
             /* Creating final output.xml and report/log html files by aggregating *
              * all tests results of devices. Tell to rebot if it should format    *
              * output for jenkins or not (if argument is present is command line) */
-            Runnable rebot = new RebotThread(devices_conf, tests_suites, line.hasOption("jenkins"));
+            long reportStart = System.currentTimeMillis();
+            StatusServer.phase("report");
+            RebotThread rebot = new RebotThread(devices_conf, tests_suites, line.hasOption("jenkins"),
+                    line.hasOption("nativemerge"), line.hasOption("xmlonly"), line.hasOption("distribute"));
             Thread rebotLauncher = new Thread(rebot);
             rebotLauncher.start();
             // wait to rebot finish before to continue
             rebotLauncher.join(); 
+            RunMetrics.phase("report", System.currentTimeMillis() - reportStart);
+            
+            succeeded = rebot.isSucceeded();
+            return succeeded;
 
         } catch (Exception ex) {
             String date = new Date().toString();
             Tools.writeLog(Arrays.asList(date, "Error on test execution : ", ex.getLocalizedMessage()));
-        } 
-        // close all appium servers
-        for (Thread appium : appium_threads) {
-            appium.interrupt();
-        } 
+            return false;
+        } finally {
+            // the run is over (even on error) : nothing to merge at shutdown
+            PARTIAL_REPORT = null;
+            DeviceHealth.stop();
+            Watchdog.stop();
+            RunMetrics.write(succeeded);
+            StatusServer.phase(succeeded ? "done" : "failed");
+        }
+    }
+
+    /**
+     * Run one suite only on some devices (resumed run, quarantined device), 
+     * each device with its own pabot so devices keep their index 
+     * (argumentfileX / outputX.xml)
+     * @param devices_conf all devices
+     * @param todo indexes of devices where the suite has to run
+     * @param oneTestFile the robot test file to execute
+     * @return indexes of devices where the suite has been stopped because the
+     *         device was quarantined (no output for them)
+     * @throws InterruptedException 
+     */
+    private static ArrayList<Integer> runOnDevices(ArrayList<Device> devices_conf, ArrayList<Integer> todo,
+                                                   String oneTestFile) throws InterruptedException {
+        ArrayList<Thread> pabotLaunchers = new ArrayList<>();
+        for (int x : todo) {
+            Runnable pabot = new PabotThread(new ArrayList<>(Arrays.asList(devices_conf.get(x))), x, oneTestFile);
+            Thread pabotLauncher = new Thread(pabot);
+            pabotLauncher.start();
+            pabotLaunchers.add(pabotLauncher);
+        }
+        for (Thread pabotLauncher : pabotLaunchers) {
+            pabotLauncher.join();
+        }
+        
+        ArrayList<Integer> stopped = new ArrayList<>();
+        for (int x : todo) {
+            // stopped because the device has been quarantined, its output means nothing
+            if (DeviceHealth.takeInterrupted(x)) {
+                Tools.pabotOutput(x).delete();
+                System.out.println("INFO : " + oneTestFile + " stopped on " + devices_conf.get(x).getName() 
+                        + " (quarantined)");
+                stopped.add(x);
+                continue;
+            }
+            Tools.preparingOutputToTmp(x, Tools.getOnlyTestNameFromFile(oneTestFile));
+        }
+        return stopped;
+    }
+
+    /**
+     * Barrier mode : suites skipped or stopped on a quarantined device run 
+     * again on it once it's re-admitted. Their tests are failed if the device
+     * is removed from the run, has no time left, or is quarantined again.
+     * @param devices_conf all devices
+     * @param deferred devices indexes of each robot test file
+     * @throws InterruptedException 
+     */
+    private static void runDeferred(ArrayList<Device> devices_conf, Map<String, Set<Integer>> deferred) 
+            throws InterruptedException {
+        for (Map.Entry<String, Set<Integer>> suite : deferred.entrySet()) {
+            String oneTestFile = suite.getKey();
+            ArrayList<Integer> todo = new ArrayList<>();
+            for (int x : suite.getValue()) {
+                // a quarantined device is recovered or removed after its recovery tries
+                while (!ProcessRegistry.isShuttingDown() && !DeviceHealth.isAvailable(x) 
+                        && !DeviceHealth.isRemoved(x) && !Watchdog.deviceExpired(x)) {
+                    DeviceHealth.awaitRecovery(x, 1000);
+                }
+                if (ProcessRegistry.isShuttingDown()) {
+                    return;
+                }
+                if (Watchdog.deviceExpired(x)) {
+                    Watchdog.failNotExecuted(x, oneTestFile, devices_conf.get(x).getName());
+                } else if (DeviceHealth.isRemoved(x)) {
+                    DeviceHealth.failNotExecuted(x, oneTestFile, devices_conf.get(x).getName());
+                } else {
+                    todo.add(x);
+                }
+            }
+            if (todo.isEmpty()) {
+                continue;
+            }
+            
+            System.out.println("INFO : " + Tools.getOnlyTestNameFromFile(oneTestFile) + " runs again on re-admitted device(s)");
+            long start = System.currentTimeMillis();
+            ArrayList<Integer> stopped = runOnDevices(devices_conf, todo, oneTestFile);
+            long duration = System.currentTimeMillis() - start;
+            for (int x : todo) {
+                if (stopped.contains(x)) {
+                    // quarantined again, not tried a third time
+                    DeviceHealth.failNotExecuted(x, oneTestFile, devices_conf.get(x).getName());
+                    continue;
+                }
+                RunMetrics.suite(oneTestFile, devices_conf.get(x), duration, "executed");
+                StatusServer.completed(x);
+            }
+        }
+    }
+
+    /**
+     * Run all suites on all devices without waiting for the slowest device 
+     * between two suites. Each device has its own worker which pulls suites 
+     * from a shared queue. At the end, show how long each device was idle.
+     * @param devices_conf all devices
+     * @param tests_suites all robot test files to execute
+     * @param distribute true to run each suite only on one device (the first free)
+     * @throws InterruptedException 
+     */
+    private static void runWorkStealing(ArrayList<Device> devices_conf, ArrayList<String> tests_suites, 
+                                        boolean distribute) throws InterruptedException {
+        
+        SuiteQueue queue = distribute ? new SuiteQueue(tests_suites, devices_conf) 
+                                      : new SuiteQueue(tests_suites, devices_conf.size());
+        
+        ArrayList<DeviceWorkerThread> workers = new ArrayList<>();
+        ArrayList<Thread> workers_threads = new ArrayList<>();
+        
+        long start = System.currentTimeMillis();
+        
+        // start one worker for each device
+        int x = 0;
+        for (Device device : devices_conf) {
+            DeviceWorkerThread worker = new DeviceWorkerThread(device, x++, queue);
+            Thread t = new Thread(worker);
+            t.start();
+            workers.add(worker);
+            workers_threads.add(t);
+        }
+        
+        // wait all workers to finish (queue is empty)
+        for (Thread t : workers_threads) {
+            t.join();
+        }
+        
+        // workers stopped by a timeout (or a device removed from the run) left 
+        // suites in the queue : they are failed on the devices they were waiting
+        // for (the first one in distribution mode)
+        for (Map.Entry<String, Set<Integer>> left : queue.drain().entrySet()) {
+            for (int d : new TreeSet<>(left.getValue())) {
+                if (ProcessRegistry.isShuttingDown() || RunJournal.isCompleted(d, Tools.getOnlyTestNameFromFile(left.getKey()))) {
+                    continue;
+                }
+                if (Watchdog.deviceExpired(d)) {
+                    Watchdog.failNotExecuted(d, left.getKey(), devices_conf.get(d).getName());
+                } else if (DeviceHealth.isRemoved(d)) {
+                    DeviceHealth.failNotExecuted(d, left.getKey(), devices_conf.get(d).getName());
+                } else {
+                    continue;
+                }
+                if (distribute) {
+                    break;
+                }
+            }
+        }
+        
+        long wallTime = System.currentTimeMillis() - start;
+        
+        // idle time of a device = time where the device was not running a suite
+        System.out.println("================================================================");
+        System.out.println("Tests execution time : " + wallTime / 1000 + "s");
+        for (DeviceWorkerThread worker : workers) {
+            long idle = wallTime - worker.getBusyTime();
+            System.out.println("       - " + worker.getDevice().getName() 
+                    + " : " + worker.getExecutedSuites() + " suite(s), busy " 
+                    + worker.getBusyTime() / 1000 + "s, idle " + idle / 1000 + "s ("
+                    + (wallTime > 0 ? idle * 100 / wallTime : 0) + "%)");
+        }
+        System.out.println("================================================================");
     }
 
     /**
@@ -256,6 +794,185 @@ public class launcher {
                 .required(false)
                 .build();
 
+        final Option workstealing = Option.builder("ws")
+                .longOpt("workstealing")
+                .desc("Each device runs its next suite as soon as it is free, without waiting for other devices.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option nativemerge = Option.builder("nm")
+                .longOpt("nativemerge")
+                .desc("Merge outputs without rebot, rebot is only used to create report/log files.")
+                .hasArg(false)
+                .required(false)
+                .build();
+        
+        final Option xmlonly = Option.builder("xo")
+                .longOpt("xmlonly")
+                .desc("Only create the final output.xml file, without report/log files.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option appiumtimeout = Option.builder("at")
+                .longOpt("appiumtimeout")
+                .desc("Maximum time (seconds) to wait for appium servers to be ready (default 60).")
+                .hasArg(true)
+                .argName("seconds")
+                .required(false)
+                .build();
+        
+        final Option appiumquorum = Option.builder("aq")
+                .longOpt("appiumquorum")
+                .desc("Start tests as soon as this number of appium servers are ready (default all).")
+                .hasArg(true)
+                .argName("count")
+                .required(false)
+                .build();
+
+        final Option daemon = Option.builder("dm")
+                .longOpt("daemon")
+                .desc("Keep appium servers started and wait for runs from clients (--submit) on this local port.")
+                .hasArg(true)
+                .argName("port")
+                .required(false)
+                .build();
+        
+        final Option submit = Option.builder("sb")
+                .longOpt("submit")
+                .desc("Send this run to the APTR daemon listening on this local port and show its result.")
+                .hasArg(true)
+                .argName("port")
+                .required(false)
+                .build();
+
+        final Option stopdaemon = Option.builder("sd")
+                .longOpt("stopdaemon")
+                .desc("Stop the APTR daemon listening on this local port (after its run in progress).")
+                .hasArg(true)
+                .argName("port")
+                .required(false)
+                .build();
+
+        final Option dedupscreenshots = Option.builder("ds")
+                .longOpt("dedupscreenshots")
+                .desc("Name screenshots by their content, identical screenshots are kept only once.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option compressscreenshots = Option.builder("cs")
+                .longOpt("compressscreenshots")
+                .desc("Recompress screenshots without loss, with this deflate level (0-9, default 9).")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("level")
+                .required(false)
+                .build();
+
+        final Option thumbnails = Option.builder("tn")
+                .longOpt("thumbnails")
+                .desc("Show thumbnails of this width (px) in log.html, linked to the full screenshots.")
+                .hasArg(true)
+                .argName("width")
+                .required(false)
+                .build();
+
+        final Option resume = Option.builder("r")
+                .longOpt("resume")
+                .desc("Resume the previous run : keep its outputs and only run suites not completed on each device.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option resultcache = Option.builder("rc")
+                .longOpt("resultcache")
+                .desc("Reuse passed results of suites, devices and app build ID which didn't change (runner/cache).")
+                .hasArg(true)
+                .argName("buildid")
+                .required(false)
+                .build();
+
+        final Option distribute = Option.builder("dt")
+                .longOpt("distribute")
+                .desc("Run each suite only once, on the first free device, instead of on every device.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option splittests = Option.builder("sp")
+                .longOpt("splittests")
+                .desc("With --distribute, split suites having more tests than this into shards run on different devices.")
+                .hasArg(true)
+                .argName("count")
+                .required(false)
+                .build();
+
+        final Option healthcheck = Option.builder("hc")
+                .longOpt("healthcheck")
+                .desc("Check devices health every N seconds during tests, quarantine and recover unhealthy ones.")
+                .hasArg(true)
+                .argName("seconds")
+                .required(false)
+                .build();
+
+        final Option suitetimeout = Option.builder("stm")
+                .longOpt("suitetimeout")
+                .desc("Kill a pabot (or rebot) process running for more than N seconds, its unfinished tests are failed.")
+                .hasArg(true)
+                .argName("seconds")
+                .required(false)
+                .build();
+
+        final Option devicetimeout = Option.builder("dtm")
+                .longOpt("devicetimeout")
+                .desc("Maximum time (seconds) a device runs suites, its remaining suites are failed.")
+                .hasArg(true)
+                .argName("seconds")
+                .required(false)
+                .build();
+
+        final Option runtimeout = Option.builder("rtm")
+                .longOpt("runtimeout")
+                .desc("Maximum time (seconds) of the tests execution, remaining suites are failed.")
+                .hasArg(true)
+                .argName("seconds")
+                .required(false)
+                .build();
+
+        final Option timeoutretry = Option.builder("tr")
+                .longOpt("timeoutretry")
+                .desc("Start again once a suite killed at the suite timeout.")
+                .hasArg(false)
+                .required(false)
+                .build();
+
+        final Option metricsdir = Option.builder("mx")
+                .longOpt("metricsdir")
+                .desc("Also write the run metrics (Prometheus text format) into this directory (node exporter textfile collector).")
+                .hasArg(true)
+                .argName("directory")
+                .required(false)
+                .build();
+
+        final Option rerunfailed = Option.builder("rf")
+                .longOpt("rerunfailed")
+                .desc("Run failed tests again after the tests execution, up to N times (default 1). The last result is kept.")
+                .hasArg(true)
+                .optionalArg(true)
+                .argName("times")
+                .required(false)
+                .build();
+
+        final Option statusport = Option.builder("ss")
+                .longOpt("statusport")
+                .desc("Show the live status of the run (JSON on /status, HTML on /) on this port.")
+                .hasArg(true)
+                .argName("port")
+                .required(false)
+                .build();
+
         final Options options = new Options();
 
         options.addOption(directory);
@@ -264,6 +981,29 @@ public class launcher {
         options.addOption(jenkins);
         options.addOption(verbose);
         options.addOption(forcepabotupdate);
+        options.addOption(workstealing);
+        options.addOption(nativemerge);
+        options.addOption(xmlonly);
+        options.addOption(appiumtimeout);
+        options.addOption(appiumquorum);
+        options.addOption(daemon);
+        options.addOption(submit);
+        options.addOption(stopdaemon);
+        options.addOption(dedupscreenshots);
+        options.addOption(compressscreenshots);
+        options.addOption(thumbnails);
+        options.addOption(resume);
+        options.addOption(resultcache);
+        options.addOption(distribute);
+        options.addOption(splittests);
+        options.addOption(healthcheck);
+        options.addOption(suitetimeout);
+        options.addOption(devicetimeout);
+        options.addOption(runtimeout);
+        options.addOption(timeoutretry);
+        options.addOption(rerunfailed);
+        options.addOption(metricsdir);
+        options.addOption(statusport);
         
         return options;
     }
@@ -279,6 +1019,29 @@ public class launcher {
         System.out.println("-j,--jenkins (opt)         Specify if you're running test with jenkins or locally.");
         System.out.println("-v,--verbose (opt)         Show more output from processes (pabot, rebot, ...). More verbose.");
         System.out.println("-force,--forceupdate (opt) Force pabot update by deleting current directory, and cloning again from git.");
+        System.out.println("-ws,--workstealing (opt)   Each device runs its next suite as soon as it is free (no wait between suites).");
+        System.out.println("-nm,--nativemerge (opt)    Merge outputs without rebot (rebot only creates report/log files).");
+        System.out.println("-xo,--xmlonly (opt)        Only create the final output.xml (no report/log files).");
+        System.out.println("-at,--appiumtimeout (opt)  Maximum time (seconds) to wait for appium servers (default 60).");
+        System.out.println("-aq,--appiumquorum (opt)   Start tests when this number of appium servers are ready (default all).");
+        System.out.println("-dm,--daemon (opt)         Keep appium servers started and wait for runs on this local port.");
+        System.out.println("-sb,--submit (opt)         Send the run to the APTR daemon listening on this local port.");
+        System.out.println("-sd,--stopdaemon (opt)     Stop the APTR daemon listening on this local port.");
+        System.out.println("-ds,--dedupscreenshots (opt) Name screenshots by their content, keep identical ones only once.");
+        System.out.println("-cs,--compressscreenshots (opt) Recompress screenshots without loss (deflate level 0-9, default 9).");
+        System.out.println("-tn,--thumbnails (opt)     Show thumbnails of this width (px) in log.html, linked to full screenshots.");
+        System.out.println("-r,--resume (opt)          Resume the previous run, only run suites not completed on each device.");
+        System.out.println("-rc,--resultcache (opt)    Reuse passed results when suite, imports, device and this app build ID didn't change.");
+        System.out.println("-dt,--distribute (opt)     Run each suite only once, on the first free device (not on every device).");
+        System.out.println("-sp,--splittests (opt)     With --distribute, split suites of more tests than this into shards.");
+        System.out.println("-hc,--healthcheck (opt)    Check devices every N seconds (adb, appium, session), quarantine unhealthy ones.");
+        System.out.println("-stm,--suitetimeout (opt)  Kill pabot/rebot processes running for more than N seconds (tests failed).");
+        System.out.println("-dtm,--devicetimeout (opt) Maximum time (seconds) a device runs suites, then its suites are failed.");
+        System.out.println("-rtm,--runtimeout (opt)    Maximum time (seconds) of the tests execution, then remaining suites are failed.");
+        System.out.println("-tr,--timeoutretry (opt)   Start again once a suite killed at the suite timeout.");
+        System.out.println("-rf,--rerunfailed (opt)    Run failed tests again at the end, up to N times (default 1), last result kept.");
+        System.out.println("-mx,--metricsdir (opt)     Also write run metrics (Prometheus) into this directory (textfile collector).");
+        System.out.println("-ss,--statusport (opt)     Show the live status of the run (JSON on /status, HTML on /) on this port.");
         System.out.println("------------------------------------------------");
 
     }
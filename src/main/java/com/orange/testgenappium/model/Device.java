@@ -25,6 +25,9 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files; 
 import java.util.Arrays;
 import java.util.Date; 
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
 import java.util.stream.Stream;
 
 /**
@@ -47,6 +50,9 @@ public class Device {
     private String appiumBpPort;
     
     private String osVersion;
+    
+    // free tags of the device (--variable tags:tablet,wifi), lower case
+    private final Set<String> tags = new HashSet<>();
 
     public String getUdid() {
         return udid;
@@ -64,6 +70,26 @@ public class Device {
         this.osVersion = osVersion;
     }
     
+    /**
+     * @return tags of the device, with its type (lower case)
+     */
+    public Set<String> getTags() {
+        Set<String> allTags = new HashSet<>(tags);
+        if (type != null) {
+            allTags.add(type.trim().toLowerCase(Locale.ROOT));
+        }
+        return allTags;
+    }
+
+    public void setTags(String commaSeparatedTags) {
+        tags.clear();
+        for (String tag : commaSeparatedTags.split(",")) {
+            if (!tag.trim().isEmpty()) {
+                tags.add(tag.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+    
     public String getConfFilePath() {
         return fullPathConf;
     }
@@ -113,9 +139,8 @@ public class Device {
         
         Device loadedConf = new Device();
         
-        try {
-            // load the file into a stream 
-            Stream<String> confLine = Files.lines(new File(filePath).toPath(), StandardCharsets.UTF_8);
+        // load the file into a stream (closed at the end, many files can be read)
+        try (Stream<String> confLine = Files.lines(new File(filePath).toPath(), StandardCharsets.UTF_8)) {
             // prepare for iteration (line by line)
             Iterable<String> iterable = confLine::iterator;
             // read the file line by line
@@ -141,6 +166,9 @@ public class Device {
                         case "--variable osversion":
                             loadedConf.osVersion = s.split((":"))[1];
                             break;
+                        case "--variable tags":
+                            loadedConf.setTags(s.split((":"))[1]);
+                            break;
                         default:
                             break;
                     }
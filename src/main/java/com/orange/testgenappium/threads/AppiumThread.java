@@ -21,17 +21,20 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package com.orange.testgenappium.threads;
 
 import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.ProcessRegistry;
+import com.orange.testgenappium.utility.RunMetrics;
+import com.orange.testgenappium.utility.StreamPump;
 import com.orange.testgenappium.utility.Tools;
 import com.orange.testgenappium.launcher;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Create an appium server as a thread with device configuration. You can kill
- * node processes to kill appium servers that might still running.  
- * TODO : kill appium servers better ...
+ * Create an appium server as a thread with device configuration. Servers are
+ * registered into ProcessRegistry, which stops them at the end of the run.
  * @author bastienjalbert
  */
 public class AppiumThread implements Runnable {
@@ -39,6 +42,9 @@ public class AppiumThread implements Runnable {
     // attached device to the appiumserver
     private final Device device;
 
+    // running appium server of each device (udid -> process)
+    private static final Map<String, Process> SERVERS = new ConcurrentHashMap<>();
+
     public AppiumThread(Device device) {
         this.device = device;
     }
@@ -46,6 +52,7 @@ public class AppiumThread implements Runnable {
     @Override
     public void run() {
         try { 
+            long start = System.currentTimeMillis();
             Process p = null;
             // start an appium server with the device target port and add 
             // a bootstrap port initialized with target port + 1000
@@ -58,10 +65,18 @@ public class AppiumThread implements Runnable {
             // ensure process will run into runnner directory
             pb.directory(new File(launcher.PATH_TO_TESTS));
 
-            p = pb.start();
+            // appium logs a lot : its output has to be read, or the server
+            // blocks when the pipe is full (shown on the console only if verbose)
+            pb.redirectErrorStream(true);
+
+            p = ProcessRegistry.start(pb, "appium " + device.getName());
+            SERVERS.put(device.getUdid(), p);
+            StreamPump.start(p, "appium." + device.getName(), 
+                    launcher.VERBOSE ? "APPIUM OUTPUT (" + device.getName() + ") : " : null);
 
             // some information about the server
             System.out.println("INFO : Appium server started on 127.0.0.1:" + device.getAppiumPort());
+            RunMetrics.setupPhase("appium_start", System.currentTimeMillis() - start);
 
         } catch (Exception ex) {
             String date = new Date().toString();
@@ -71,19 +86,23 @@ public class AppiumThread implements Runnable {
     }
 
     /**
-     * Close all appium processes (node processes in real life...) 
-     * TODO find a more proper way to kill appium processes without killing all node 
-     * processes...
+     * Stop the appium server of a device and start a new one (device recovery)
+     * @param device the device
      */
-    public static void killallAppiumNode() {
-        try {
-            Process p = null;
-            ProcessBuilder pb = new ProcessBuilder("killall", "node");  
-            p = pb.start();
-        } catch (Exception ex) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error when attempting to close appium servers (node process) : ", ex.getMessage()));
+    public static void restart(Device device) {
+        Process old = SERVERS.remove(device.getUdid());
+        if (old != null) {
+            ProcessRegistry.stop(old, 5000);
         }
+        new AppiumThread(device).run();
+    }
+
+    /**
+     * Close appium servers that might still running from a previous execution
+     * (only processes started by APTR, not all node processes of the host)
+     */
+    public static void killLeftoverAppiumServers() {
+        ProcessRegistry.killLeftovers(5000);
     }
 
 }
@@ -0,0 +1,152 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.threads;
+
+import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.DeviceHealth;
+import com.orange.testgenappium.utility.ProcessRegistry;
+import com.orange.testgenappium.utility.RunJournal;
+import com.orange.testgenappium.utility.RunMetrics;
+import com.orange.testgenappium.utility.StatusServer;
+import com.orange.testgenappium.utility.SuiteHistory;
+import com.orange.testgenappium.utility.Tools;
+import com.orange.testgenappium.utility.Watchdog;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Worker attached to one device (work stealing mode). It pulls suites from 
+ * the shared SuiteQueue and executes them one after the other, so a device 
+ * never runs two suites at once, and it never waits for other devices.
+ * 
+ * @author bastienjalbert
+ */
+public class DeviceWorkerThread implements Runnable {
+
+    // the device where suites will run
+    private final Device device;
+
+    // global index of the device (argumentfileX / outputX.xml)
+    private final int deviceIndex;
+
+    // suites shared by all workers
+    private final SuiteQueue queue;
+
+    // time (ms) spent running suites
+    private long busyTime = 0;
+
+    // number of suites executed by this worker
+    private int executedSuites = 0;
+
+    public DeviceWorkerThread(Device device, int deviceIndex, SuiteQueue queue) {
+        this.device = device;
+        this.deviceIndex = deviceIndex;
+        this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+        String oneTestFile;
+        // take a new suite as soon as the previous one is finished
+        // (and as long as this device has time left)
+        while (waitHealthy() && !Watchdog.deviceExpired(deviceIndex) 
+                && (oneTestFile = queue.next(deviceIndex)) != null) {
+            // already done by the previous run (resumed)
+            if (RunJournal.isCompleted(deviceIndex, Tools.getOnlyTestNameFromFile(oneTestFile))) {
+                queue.complete();
+                continue;
+            }
+            
+            long start = System.currentTimeMillis();
+
+            // start one test suite on this device only (in this thread)
+            PabotThread pabot = new PabotThread(new ArrayList<>(Arrays.asList(device)), deviceIndex, oneTestFile);
+            pabot.run();
+
+            // stopped because the device has been quarantined : its output
+            // means nothing, the suite runs again (on another device if it can)
+            if (DeviceHealth.takeInterrupted(deviceIndex)) {
+                RunMetrics.suite(oneTestFile, device, System.currentTimeMillis() - start, "interrupted");
+                Tools.pabotOutput(deviceIndex).delete();
+                queue.requeue(oneTestFile, deviceIndex);
+                System.out.println("INFO : " + Tools.getOnlyTestNameFromFile(oneTestFile) + " stopped on " 
+                        + device.getName() + " (quarantined), given back to the queue");
+                continue;
+            }
+
+            // copying and renamming the outputX.xml file
+            Tools.preparingOutputToTmp(deviceIndex, Tools.getOnlyTestNameFromFile(oneTestFile));
+
+            long duration = System.currentTimeMillis() - start;
+            busyTime += duration;
+            RunMetrics.suite(oneTestFile, device, duration, pabot.isTimedOut() ? "timeout" : "executed");
+            // the duration of an interrupted (or killed) suite means nothing
+            if (!ProcessRegistry.isShuttingDown() && !pabot.isTimedOut()) {
+                SuiteHistory.record(oneTestFile, device, duration);
+            }
+            executedSuites++;
+            int indicator = queue.complete();
+            StatusServer.completed(deviceIndex);
+
+            // show which test has been executed
+            System.out.println("================================================================");
+            System.out.println("Test : " + Tools.getOnlyTestNameFromFile(oneTestFile) + " passed on " + device.getName());
+            System.out.println("Total : " + indicator + "/" + queue.size() + " test(s) passed");
+            System.out.println("================================================================");
+        }
+    }
+
+    /**
+     * A quarantined device waits for its recovery, as long as there is work
+     * for it (other devices may take all the suites in the meantime)
+     * @return false if this worker has to stop
+     */
+    private boolean waitHealthy() {
+        try {
+            while (!ProcessRegistry.isShuttingDown() && !DeviceHealth.isAvailable(deviceIndex)) {
+                if (DeviceHealth.isRemoved(deviceIndex) || !queue.hasWork(deviceIndex)) {
+                    return false;
+                }
+                DeviceHealth.awaitRecovery(deviceIndex, 1000);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !ProcessRegistry.isShuttingDown();
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * @return time (ms) spent by this device running suites
+     */
+    public long getBusyTime() {
+        return busyTime;
+    }
+
+    public int getExecutedSuites() {
+        return executedSuites;
+    }
+
+}
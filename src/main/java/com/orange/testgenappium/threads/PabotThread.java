@@ -21,13 +21,20 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package com.orange.testgenappium.threads;
 
 import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.DeviceHealth;
+import com.orange.testgenappium.utility.ProcessRegistry;
+import com.orange.testgenappium.utility.StatusServer;
+import com.orange.testgenappium.utility.StreamPump;
+import com.orange.testgenappium.utility.SuiteSplitter;
 import com.orange.testgenappium.utility.Tools;
+import com.orange.testgenappium.utility.Watchdog;
 import com.orange.testgenappium.launcher;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -51,8 +58,36 @@ public class PabotThread implements Runnable {
     // robot test name
     private final String robotName;
 
+    // index of the first device, used to number argumentfileX (and so outputX.xml)
+    private final int firstIndex;
+
+    // first port used by pabotlib when several pabot processes run at same time
+    private static final int PABOTLIB_BASE_PORT = 8271;
+
+    // time (ms) to wait for the end of the output after the pabot exit
+    private static final long OUTPUT_GRACE = 2000;
+
+    // output of the last pabot process
+    private StreamPump output = null;
+
+    // true if pabot has been killed by the watchdog (and not retried successfully)
+    private volatile boolean timedOut = false;
+
     public PabotThread(ArrayList<Device> device, String robotName) {
-        this.devices = device; 
+        this(device, 0, robotName);
+    }
+
+    /**
+     * Create a pabot thread for a subset of devices. The argumentfileX indexes
+     * start at firstIndex, so outputX.xml files keep the global device index
+     * even if pabot only runs on one device.
+     * @param device devices where the test will be executed
+     * @param firstIndex global index of the first device of the list
+     * @param robotName the robot test file to execute
+     */
+    public PabotThread(ArrayList<Device> device, int firstIndex, String robotName) {
+        this.devices = device;
+        this.firstIndex = firstIndex;
         this.robotName = robotName;
     }
 
@@ -76,23 +111,37 @@ public class PabotThread implements Runnable {
             pabotArgs.add(String.valueOf(devices.size()));
             
             pabotArgs.add("--pabotlib");
+            
+            // one pabot per device can run at same time (work stealing mode), 
+            // so each one needs its own pabotlib server port
+            if (devices.size() == 1) {
+                pabotArgs.add("--pabotlibport");
+                pabotArgs.add(String.valueOf(PABOTLIB_BASE_PORT + firstIndex));
+            }
              
             // argumentfileX where X the index (represented with var i)
-            int i = -1;
+            int i = firstIndex - 1;
             for (Device oneDevice : devices) {
                 pabotArgs.add("--argumentfile" + ++i); 
                 pabotArgs.add(oneDevice.getConfFilePath());
             }
  
-            // output results path of pabot
+            // output results path of pabot : a pabot on one device has its own
+            // directory, pabot clears pabot_results when it starts and others 
+            // pabots may be running at same time
             pabotArgs.add("--outputdir");
-            pabotArgs.add(launcher.OUTPUT_PATH);           
+            pabotArgs.add(outputDir());           
+
+            // a shard of a split suite only runs some tests of its robot file
+            for (String test : SuiteSplitter.tests(robotName)) {
+                pabotArgs.add("--test");
+                pabotArgs.add(SuiteSplitter.testPattern(test));
+            }
 
             // and last step, indicate which robot file to execute
-            pabotArgs.add(robotName);  
+            pabotArgs.add(SuiteSplitter.robotFile(robotName));  
             
             // prepare the process with all our args
-            Process p;
             ProcessBuilder pb = new ProcessBuilder(pabotArgs);
 
             // ensure process will run into runnner directory
@@ -105,36 +154,27 @@ public class PabotThread implements Runnable {
             // redirect all stream from future pabot process
             pb.redirectErrorStream(true);
             
-            // start test execution
-            p = pb.start(); 
-            
-            System.out.println("INSTRUC  - " + pabotArgs);
-            
-            // print information before thread execution ... 
-            System.out.println("INFO : Test execution of " + robotName + " started for devices :");
-            for (Device oneDevice : devices) {
-                System.out.println("       - " + oneDevice.getName());
+            int[] devicesIndex = new int[devices.size()];
+            for (int d = 0; d < devicesIndex.length; d++) {
+                devicesIndex[d] = firstIndex + d;
             }
-
-            // if we want verbose output
-            if(launcher.VERBOSE) {
-                // show pabot output (stdout)
-                p.getOutputStream().flush();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-                // capture line from standard output from kal execution
-                String line;
-                while ((line = reader.readLine()) != null) { 
-                    System.out.println("PABOT OUTPUT : " + line); 
-                    System.out.flush();
+            
+            // a pabot killed by the watchdog can be started again once
+            for (int attempt = 1; ; attempt++) {
+                Watchdog.Watch watch = runPabot(pb, pabotArgs, devicesIndex);
+                if (!watch.finish()) {
+                    return;
                 }
-            } else {
-                // if we don't want verbose output we nevertheless need to wait for process to finish 
-                p.waitFor();
+                if (attempt == 1 && launcher.TIMEOUT_RETRY && !ProcessRegistry.isShuttingDown() 
+                        && !devicesExpired(devicesIndex)) {
+                    System.out.println("INFO : " + robotName + " killed (" + watch.reason() + "), started again");
+                    continue;
+                }
+                timedOut = true;
+                output.printTail(robotName + " killed (" + watch.reason() + "), its unfinished tests are failed");
+                failUnfinishedOutputs(watch.reason());
+                return;
             }
-             
-            p.destroy();
-            p.destroyForcibly();
 
         } catch (Exception ex) {
             String date = new Date().toString();
@@ -146,4 +186,117 @@ public class PabotThread implements Runnable {
 
     }
 
+    /**
+     * Start pabot and wait for it, the watchdog kills it if it takes too long
+     * @param pb the pabot process builder
+     * @param pabotArgs pabot arguments (shown)
+     * @param devicesIndex indexes of devices of this pabot
+     * @return the watch of this pabot process
+     * @throws Exception 
+     */
+    private Watchdog.Watch runPabot(ProcessBuilder pb, ArrayList<String> pabotArgs, int[] devicesIndex) throws Exception {
+        // start test execution
+        StatusServer.running(devicesIndex, robotName);
+        Process p = ProcessRegistry.start(pb, "pabot " + robotName);
+        Watchdog.Watch watch = Watchdog.watch(p, devicesIndex, "pabot " + robotName);
+        
+        // a pabot on one device is stopped if this device is quarantined
+        if (devices.size() == 1) {
+            DeviceHealth.running(firstIndex, p);
+        }
+        
+        // pabot output goes to runner/output/logs (and to the console if verbose),
+        // it's read in background so pabot never waits for us
+        String label = robotName + (devices.size() == 1 ? " on " + devices.get(0).getName() : "");
+        output = StreamPump.start(p, "pabot." + label.replace(" on ", "."), 
+                launcher.VERBOSE ? "PABOT OUTPUT (" + label + ") : " : null);
+        
+        System.out.println("INSTRUC  - " + pabotArgs);
+        
+        // print information before thread execution ... 
+        System.out.println("INFO : Test execution of " + robotName + " started for devices :");
+        for (Device oneDevice : devices) {
+            System.out.println("       - " + oneDevice.getName());
+        }
+
+        p.waitFor();
+        output.await(OUTPUT_GRACE);
+         
+        p.destroy();
+        p.destroyForcibly();
+        collectOutputs();
+        StatusServer.idle(devicesIndex);
+        
+        if (devices.size() == 1) {
+            DeviceHealth.running(firstIndex, null);
+        }
+        return watch;
+    }
+
+    // directory given to pabot (--outputdir)
+    private String outputDir() {
+        return devices.size() == 1 ? Tools.pabotOutputDir(firstIndex) : launcher.OUTPUT_PATH;
+    }
+
+    /**
+     * Move what pabot wrote to where it's read : outputX.xml files of a pabot
+     * on all devices to devX/pabot_results (see Tools.pabotOutput), 
+     * screenshots of a pabot on one device to runner/output/img
+     */
+    private void collectOutputs() throws IOException {
+        if (devices.size() == 1) {
+            File[] images = new File(outputDir(), "img").listFiles();
+            if (images != null) {
+                for (File image : images) {
+                    Files.move(image.toPath(), new File(launcher.IMG_PATH, image.getName()).toPath(), 
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            return;
+        }
+        for (int x = firstIndex; x < firstIndex + devices.size(); x++) {
+            File output = new File(outputDir() + "/pabot_results/output" + x + ".xml");
+            File target = Tools.pabotOutput(x);
+            if (output.exists()) {
+                target.getParentFile().mkdirs();
+                Files.move(output.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                target.delete();
+            }
+        }
+    }
+
+    // true if a device (or the run) has no time left for another try
+    private static boolean devicesExpired(int[] devicesIndex) {
+        for (int x : devicesIndex) {
+            if (Watchdog.deviceExpired(x)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Robot writes its output while tests run, a killed robot leaves an 
+     * unfinished (invalid) outputX.xml, or nothing. Devices which ended the 
+     * suite before the kill keep their output, others get an output where 
+     * all tests of the suite failed because of the timeout.
+     * @param reason the expired timeout
+     */
+    private void failUnfinishedOutputs(String reason) {
+        for (int x = firstIndex; x < firstIndex + devices.size(); x++) {
+            if (!Tools.isCompleteOutput(Tools.pabotOutput(x))) {
+                Watchdog.writeFailedOutput(x, robotName, "Killed by APTR watchdog (" + reason + ") on " 
+                        + devices.get(x - firstIndex).getName());
+            }
+        }
+    }
+
+    /**
+     * @return true if pabot has been killed by the watchdog (tests are failed)
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
 }
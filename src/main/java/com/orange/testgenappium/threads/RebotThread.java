@@ -21,26 +21,42 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package com.orange.testgenappium.threads;
  
 import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.OutputMerger;
+import com.orange.testgenappium.utility.OutputPipeline;
+import com.orange.testgenappium.utility.ProcessRegistry;
+import com.orange.testgenappium.utility.ResultCache;
+import com.orange.testgenappium.utility.RunMetrics;
+import com.orange.testgenappium.utility.ScreenshotOptimizer;
+import com.orange.testgenappium.utility.ScreenshotRelocator;
+import com.orange.testgenappium.utility.ScreenshotStore;
+import com.orange.testgenappium.utility.StreamPump;
+import com.orange.testgenappium.utility.SuiteRequirements;
+import com.orange.testgenappium.utility.SuiteSplitter;
 import com.orange.testgenappium.utility.Tools;
+import com.orange.testgenappium.utility.Watchdog;
 import com.orange.testgenappium.launcher;
-import static com.orange.testgenappium.utility.Tools.getFileExtension;
 import static com.orange.testgenappium.launcher.IMG_PATH;
 import static com.orange.testgenappium.launcher.OUTPUT_PATH; 
 import static com.orange.testgenappium.launcher.WORKING_PATH;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Running rebot process at the end of tests execution. This class provide only
  * a "run" function that do everything to obtain a final output.xml file and
  * the report.html and log.html files.
+ * 
+ * Outputs can also be merged natively (OutputMerger), rebot is then only used 
+ * to render report.html and log.html (or not at all with xmlOnly).
  * @author bastienjalbert
  */
 public class RebotThread implements Runnable {
@@ -54,6 +70,21 @@ public class RebotThread implements Runnable {
     // are we creating output for jenkins or only local reporting
     private final boolean jenkins;
     
+    // merge outputs in the JVM instead of using rebot
+    private final boolean nativeMerge;
+    
+    // only create output-final.xml (no report.html, no log.html)
+    private final boolean xmlOnly;
+    
+    // each suite has been executed on one device only (distribution mode)
+    private final boolean distributed;
+    
+    // time (ms) to wait for the end of the output after the rebot exit
+    private static final long OUTPUT_GRACE = 2000;
+    
+    // true when the final output has been generated without error
+    private volatile boolean succeeded = false;
+    
     
     // create a rebot thread with informations (devices list, tests name list)
     /**
@@ -65,9 +96,42 @@ public class RebotThread implements Runnable {
      */
     public RebotThread(ArrayList<Device> devices, ArrayList<String> test_suites, 
                        boolean jenkins) { 
+        this(devices, test_suites, jenkins, false, false);
+    }
+    
+    /**
+     * Initialize a Rebot thread to create final output/report/log with all executed
+     * tests. 
+     * @param devices the list of devices where tests has been executed
+     * @param test_suites the list of executed tests
+     * @param jenkins final output have to be formatted for jenkins (true) or not (false)
+     * @param nativeMerge merge outputs without rebot (true) or with rebot (false)
+     * @param xmlOnly only create output-final.xml, without report/log files
+     */
+    public RebotThread(ArrayList<Device> devices, ArrayList<String> test_suites, 
+                       boolean jenkins, boolean nativeMerge, boolean xmlOnly) { 
+        this(devices, test_suites, jenkins, nativeMerge, xmlOnly, false);
+    }
+    
+    /**
+     * Initialize a Rebot thread to create final output/report/log with all executed
+     * tests. 
+     * @param devices the list of devices where tests has been executed
+     * @param test_suites the list of executed tests
+     * @param jenkins final output have to be formatted for jenkins (true) or not (false)
+     * @param nativeMerge merge outputs without rebot (true) or with rebot (false)
+     * @param xmlOnly only create output-final.xml, without report/log files
+     * @param distributed each suite has been executed on one device only, 
+     *        devices without output for a suite are expected
+     */
+    public RebotThread(ArrayList<Device> devices, ArrayList<String> test_suites, 
+                       boolean jenkins, boolean nativeMerge, boolean xmlOnly, boolean distributed) { 
         this.devices = devices;
         this.test_suites = test_suites;
         this.jenkins = jenkins;
+        this.nativeMerge = nativeMerge;
+        this.xmlOnly = xmlOnly;
+        this.distributed = distributed;
     }
   
     /**
@@ -78,18 +142,140 @@ public class RebotThread implements Runnable {
     public void run() {
         try { 
             
-            // index of current device
-            int x = 0;
+            // outputs of last suites may still be processed in background
+            OutputPipeline.awaitAll();
+            ScreenshotStore.report();
+            ScreenshotOptimizer.awaitAll();
+            // passed suites of this run are kept for the next ones (--resultcache)
+            ResultCache.storeAll();
+            // each split suite is reported once, with the tests of all its shards
+            SuiteSplitter.combineShards(devices.size());
+            
+            long start = System.currentTimeMillis();
             
+            if (nativeMerge) {
+                mergeOutputs();
+                RunMetrics.phase("output_merge", System.currentTimeMillis() - start);
+            } else {
+                rebotOutputs();
+            }
+            
+            System.out.println("INFO : Final output generated in " 
+                    + (System.currentTimeMillis() - start) / 1000 + "s");
+                
+            // if we executed tests locally (<=> means not on jenkins typically)
+            // so we need to get a final log.html/report.html and move screenshots 
+            // to this folder. Then we can display our beautiful report with our 
+            // crash screenshots
+            if(!jenkins) {
+                // create the final output directory
+                final String FINAL_OUTPUT = OUTPUT_PATH + "/final";
+                if(!(new File(FINAL_OUTPUT).exists())) {
+                    new File(FINAL_OUTPUT).mkdir();
+                } 
+                
+                // move the log and report html files to final directory 
+                if (!xmlOnly) {
+                    ScreenshotRelocator.move(new File(WORKING_PATH + "/log.html"), new File(FINAL_OUTPUT + "/log.html"));
+                    ScreenshotRelocator.move(new File(WORKING_PATH + "/report.html"), new File(FINAL_OUTPUT + "/report.html"));
+                }
+               
+                // and finally move all screenshots to the final directory
+                ScreenshotRelocator.relocate(IMG_PATH, FINAL_OUTPUT);
+                
+                if (xmlOnly) {
+                    System.out.println("You can access to the FINAL output file at");
+                    System.out.println("Output:  " + new File(WORKING_PATH).getAbsolutePath() + "/output-final.xml");
+                } else {
+                    System.out.println("You can access to the FINAL report/log file at");
+                    System.out.println("Log:     " + new File(FINAL_OUTPUT).getAbsolutePath() + "/log.html");
+                    System.out.println("Report:  " + new File(FINAL_OUTPUT).getAbsolutePath() + "/report.html");
+                }
+                
+            } else { // we just have to copy screenshots to working dir if we
+                     // run test on jenkins
+                
+                // move all screenshots to the tmp directory (jenkins robot output),
+                // so jenkins can get these images after
+                ScreenshotRelocator.relocate(IMG_PATH, WORKING_PATH);
+            }
+            
+            succeeded = true;
+
+        } catch (Exception ex) {
+            String date = new Date().toString(); 
+            
+            StringWriter errors = new StringWriter();
+            ex.printStackTrace(new PrintWriter(errors));
+            
+            Tools.writeLog(Arrays.asList(date, "Error rebot execution : ", errors.toString()));
+        }
+
+    }
+
+    /**
+     * @return true if the final output has been generated without error
+     */
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+    
+    /**
+     * Generate one output for each device with rebot, then merge them with 
+     * rebot in output-final.xml (with report/log files)
+     * @throws Exception 
+     */
+    private void rebotOutputs() throws Exception {
+        
+        // one rebot for each device, they are independent (each one reads only
+        // its own outputX.*.xml files) so they can run at same time
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(devices.size(), Runtime.getRuntime().availableProcessors())), runnable -> {
+                    Thread t = new Thread(runnable, "rebot-device");
+                    // never keep the JVM (or the daemon) alive for this pool
+                    t.setDaemon(true);
+                    return t;
+                });
+        
+        // devices with outputs (all of them, except in distribution mode)
+        ArrayList<Device> merged = new ArrayList<>();
+        
+        // devices whose rebot failed
+        ArrayList<String> failed = new ArrayList<>();
+        
+        try {
+            // rebot exit code of each device (their output is shown while they run)
+            ArrayList<Future<Integer>> results = new ArrayList<>();
+        
+            // index of current device
+            int x = -1;
+
             // generating one output for each devices
             for(Device device : devices) {
+                x++;
+            
+                // outputs of the suites executed on this device 
+                ArrayList<String> suitesOutputs = new ArrayList<>();
+                for(String oneTestName : test_suites) {
+                    String output = "output" + x +  "." + Tools.getOnlyTestNameFromFile(oneTestName) + ".xml";
+                    // in distribution mode, a device only has outputs of suites it took,
+                    // and it never has outputs of suites it doesn't match
+                    if (SuiteRequirements.matches(oneTestName, x)
+                            && (!distributed || new File(WORKING_PATH + "/" + output).exists())) {
+                        suitesOutputs.add(output);
+                    }
+                }
+                if (suitesOutputs.isEmpty()) {
+                    continue;
+                }
+                merged.add(device);
 
                 // prepare arguments for multiple device
                 ArrayList<String> rebotArgs = new ArrayList<>();
 
                 // basic process info to start 
                 rebotArgs.add("rebot");  
-                
+
                 // set the report name with test name from launcher config
                 rebotArgs.add("--name");
                 rebotArgs.add(device.getName());
@@ -99,175 +285,239 @@ public class RebotThread implements Runnable {
 
                 rebotArgs.add("--log");
                 rebotArgs.add("NONE");
-                
+
                 rebotArgs.add("--report");
                 rebotArgs.add("NONE");
 
                 // add all test name to generate one output for all test of the same di
-                for(String oneTestName : test_suites) {
-                    rebotArgs.add("output" + x +  "." + Tools.getOnlyTestNameFromFile(oneTestName) + ".xml");
-                } 
-                
-                // prepare the process with all our args
-                Process p;
-                ProcessBuilder pb = new ProcessBuilder(rebotArgs);
+                rebotArgs.addAll(suitesOutputs);
+
+                results.add(pool.submit(() -> runRebot(rebotArgs, "rebot." + device.getName(), 
+                        "REBOT OUTPUT (" + device.getName() + ") : ")));
+            }
+        
+            // wait all merges
+            for (int i = 0; i < merged.size(); i++) {
+                Device device = merged.get(i);
+                int exitCode;
+                try {
+                    exitCode = results.get(i).get();
+                } catch (ExecutionException ex) {
+                    System.err.println("ERROR : rebot of " + device.getName() + " : " + ex.getCause());
+                    exitCode = -1;
+                }
+                if (rebotFailed(exitCode) 
+                        || !new File(WORKING_PATH + "/output." + device.getUdid() + ".xml").exists()) {
+                    failed.add(device.getName() + " (exit code " + exitCode + ")");
+                }
+            }
+        } finally {
+            // stops rebots still running if we leave on an error
+            pool.shutdownNow();
+        }
+        
+        // never create a partial output-final.xml
+        if (!failed.isEmpty()) {
+            System.err.println("ERROR : rebot failed to merge outputs of : " + failed);
+            System.err.println("ERROR : output-final.xml has not been generated.");
+            throw new IllegalStateException("Rebot merge failed for devices " + failed);
+        }
+        
+        if (merged.isEmpty()) {
+            throw new IllegalStateException("No output to merge");
+        }
+        checkDistributedSuites();
 
-                // ensure process will run into working directory (here is all our output files)
-                pb.directory(new File(launcher.WORKING_PATH));
 
-                // ensuring no problems with proxy or cntlm
-                Map<String, String> env = pb.environment();
-                env.put("no_proxy", "127.0.0.1, localhost, 0.0.0.0");
+        //merge all output in only one file
 
-                // redirect all stream from future pabot process
-                pb.redirectErrorStream(true);
+         // prepare arguments for multiple device
+        ArrayList<String> rebotArgs = new ArrayList<>();
 
-                // start test execution
-                p = pb.start(); 
+        // basic process info to start 
+        rebotArgs.add("rebot");  
 
-               // show pabot output (stdout)
-                p.getOutputStream().flush();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        // set the report name with test name from launcher config
+        rebotArgs.add("--name");
+        rebotArgs.add(launcher.TESTS_NAME);
 
-                // capture line from standard output from kal execution
-                String line = new String();
-                while ((line = reader.readLine()) != null) { 
-                    System.out.println("REBOT OUTPUT : " + line); 
-                    System.out.flush();
-                }
+        rebotArgs.add("-o");
+        rebotArgs.add("output-final.xml");
 
-                p.destroy();
-                p.destroyForcibly();
-                
-                // pass to the outputX++.testName.xml next file
-                x++;
-            }
-            
-            
-            //merge all output in only one file
-            
-             // prepare arguments for multiple device
-            ArrayList<String> rebotArgs = new ArrayList<>();
+        rebotArgs.add("--report");
+        rebotArgs.add(xmlOnly ? "NONE" : "report.html");
 
-            // basic process info to start 
-            rebotArgs.add("rebot");  
-            
-            // set the report name with test name from launcher config
-            rebotArgs.add("--name");
-            rebotArgs.add(launcher.TESTS_NAME);
-             
-            rebotArgs.add("-o");
-            rebotArgs.add("output-final.xml");
-            
-            rebotArgs.add("--report");
-            rebotArgs.add("report.html");
-            
-            rebotArgs.add("--log");
-            rebotArgs.add("log.html");
-            
-            // give to rebot all output files of each devices
-            for(Device device : devices) {
-                rebotArgs.add("output." + device.getUdid() + ".xml");
-            }
-             
-            // prepare the process with all our args
-            Process p;
-            ProcessBuilder pb = new ProcessBuilder(rebotArgs);
+        rebotArgs.add("--log");
+        rebotArgs.add(xmlOnly ? "NONE" : "log.html");
 
-            // ensure process will run into runnner directory
-            pb.directory(new File(launcher.WORKING_PATH));
+        // give to rebot all output files of each devices
+        for(Device device : merged) {
+            rebotArgs.add("output." + device.getUdid() + ".xml");
+        }
 
-            // ensuring no problems with proxy or cntlm
-            Map<String, String> env = pb.environment();
-            env.put("no_proxy", "127.0.0.1, localhost, 0.0.0.0");
-            
-            // redirect all stream from future pabot process
-            pb.redirectErrorStream(true);
-            
-            // start test execution
-            p = pb.start(); 
- 
-            // show pabot output (stdout)
-            p.getOutputStream().flush();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-            // capture line from standard output from kal execution
-            String line = new String();
-            while ((line = reader.readLine()) != null) { 
-                System.out.println("REBOT OUTPUT : " + line); 
-                System.out.flush();
+        runRebot(rebotArgs);
+    }
+    
+    /**
+     * In distribution mode, show suites which haven't been executed on any 
+     * device (interrupted run, ...), they are missing in the final output
+     */
+    private void checkDistributedSuites() {
+        if (!distributed) {
+            return;
+        }
+        for (String oneTestName : test_suites) {
+            boolean executed = false;
+            for (int x = 0; x < devices.size() && !executed; x++) {
+                executed = new File(WORKING_PATH + "/output" + x + "." 
+                        + Tools.getOnlyTestNameFromFile(oneTestName) + ".xml").exists();
+            }
+            if (!executed) {
+                System.err.println("ERROR : " + oneTestName + " has not been executed on any device, it is missing in the final output");
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Suite not executed (distribution mode) : ", oneTestName));
             }
+        }
+    }
 
-            p.destroy();
-            p.destroyForcibly();
-                
-            // if we executed tests locally (<=> means not on jenkins typically)
-            // so we need to get a final log.html/report.html and move screenshots 
-            // to this folder. Then we can display our beautiful report with our 
-            // crash screenshots
-            if(!jenkins) {
-                // create the final output directory
-                final String FINAL_OUTPUT = OUTPUT_PATH + "/final";
-                if(!(new File(FINAL_OUTPUT).exists())) {
-                    new File(FINAL_OUTPUT).mkdir();
-                } 
-                
-                // move the log and report html files to final directory 
-                File logFile = new File(WORKING_PATH + "/log.html");
-                logFile.renameTo(new File(FINAL_OUTPUT + "/log.html"));
-                logFile.delete();
-                File reportFile = new File(WORKING_PATH + "/report.html");
-                reportFile.renameTo(new File(FINAL_OUTPUT + "/report.html"));
-                reportFile.delete();
-               
-                // and finally copy all screenshots to the final directory
-                // open the directory and get files into
-                File folder = new File(IMG_PATH);
-                File[] listOfFiles = folder.listFiles();
-
-                for (int i = 0; i < listOfFiles.length; i++) { 
-                    // we verify that the file is an image (.png)
-                    if (listOfFiles[i].isFile() 
-                            && getFileExtension(listOfFiles[i]).equals("png")) { 
-                        // moving the image
-                        listOfFiles[i].renameTo(new File(FINAL_OUTPUT + "/" + listOfFiles[i].getName())); 
-                    } 
-                }
-                
-                System.out.println("You can access to the FINAL report/log file at");
-                System.out.println("Log:     " + new File(FINAL_OUTPUT).getAbsolutePath() + "/log.html");
-                System.out.println("Report:  " + new File(FINAL_OUTPUT).getAbsolutePath() + "/report.html");
-                
-            } else { // we just have to copy screenshots to working dir if we
-                     // run test on jenkins
-                
-                // copy all screenshots to the tmp directory (jenkins robot output)
-                
-                // open the directory and get files into
-                File folder = new File(IMG_PATH);
-                File[] listOfFiles = folder.listFiles();
-
-                for (int i = 0; i < listOfFiles.length; i++) { 
-                    // we verify that the file is an image (.png)
-                    if (listOfFiles[i].isFile() 
-                            && getFileExtension(listOfFiles[i]).equals("png")) { 
-                        // moving the image, so jenkins can get these images after
-                        listOfFiles[i].renameTo(new File(WORKING_PATH + "/" + listOfFiles[i].getName())); 
-                    } 
+    /**
+     * Merge all outputs in output-final.xml (one suite for each device) without
+     * rebot, then use rebot only to create report/log files from this output
+     * @throws Exception 
+     */
+    private void mergeOutputs() throws Exception {
+        
+        File finalOutput = new File(WORKING_PATH + "/output-final.xml");
+        
+        // outputs of each device (in distribution mode, only suites it took)
+        ArrayList<ArrayList<File>> devicesOutputs = new ArrayList<>();
+        for (int x = 0; x < devices.size(); x++) {
+            ArrayList<File> deviceOutputs = new ArrayList<>();
+            for (String oneTestName : test_suites) {
+                File output = new File(WORKING_PATH + "/output" + x + "." + Tools.getOnlyTestNameFromFile(oneTestName) + ".xml");
+                if (output.exists()) {
+                    deviceOutputs.add(output);
+                } else if (!distributed && SuiteRequirements.matches(oneTestName, x)) {
+                    String date = new Date().toString();
+                    Tools.writeLog(Arrays.asList(date, "Missing output file for merge : ", output.getAbsolutePath()));
                 }
             }
-  
-
-        } catch (Exception ex) {
-            String date = new Date().toString(); 
-            
-            StringWriter errors = new StringWriter();
-            ex.printStackTrace(new PrintWriter(errors));
-            
-            Tools.writeLog(Arrays.asList(date, "Error rebot execution : ", errors.toString()));
+            devicesOutputs.add(deviceOutputs);
+        }
+        checkDistributedSuites();
+        
+        // the merged output is generated from robot outputs, keep their generator
+        String generator = devicesOutputs.stream().filter(outputs -> !outputs.isEmpty()).findFirst()
+                .map(outputs -> OutputMerger.readGenerator(outputs.get(0))).orElse("APTR");
+        
+        OutputMerger merger = new OutputMerger(finalOutput, launcher.TESTS_NAME, generator);
+        
+        for (int x = 0; x < devices.size(); x++) {
+            // a device without any suite (distribution mode) is not shown
+            if (distributed && devicesOutputs.get(x).isEmpty()) {
+                continue;
+            }
+            merger.startSuite(devices.get(x).getName());
+            for (File output : devicesOutputs.get(x)) {
+                merger.addOutput(output);
+            }
+            merger.endSuite();
+        }
+        
+        merger.close();
+        
+        if (xmlOnly) {
+            return;
         }
+        
+        // rebot is now only used to render report/log files
+        ArrayList<String> rebotArgs = new ArrayList<>();
+        rebotArgs.add("rebot");
+        
+        rebotArgs.add("--output");
+        rebotArgs.add("NONE");
+        
+        rebotArgs.add("--report");
+        rebotArgs.add("report.html");
+        
+        rebotArgs.add("--log");
+        rebotArgs.add("log.html");
+        
+        rebotArgs.add(finalOutput.getName());
+        
+        runRebot(rebotArgs);
+    }
+    
+    /**
+     * Start rebot into working directory and show its output
+     * @param rebotArgs the full command line
+     * @throws Exception 
+     */
+    private void runRebot(ArrayList<String> rebotArgs) throws Exception {
+        int exitCode = runRebot(rebotArgs, "rebot", "REBOT OUTPUT : ");
+        if (rebotFailed(exitCode)) {
+            throw new IllegalStateException("Rebot failed (exit code " + exitCode + ") : " + rebotArgs);
+        }
+    }
+    
+    /**
+     * Rebot exit code is the number of failed tests (up to 250), greater values
+     * are errors (invalid data or options, interrupted, internal error)
+     * @param exitCode rebot exit code
+     * @return true if rebot did not create its output
+     */
+    private static boolean rebotFailed(int exitCode) {
+        return exitCode < 0 || exitCode > 250;
+    }
+    
+    /**
+     * Start rebot into working directory and wait for it
+     * @param rebotArgs the full command line
+     * @param logName name of the rebot log file (runner/output/logs)
+     * @param consolePrefix prefix of rebot output lines on the console
+     * @return the rebot exit code (-1 if it has been killed by the watchdog)
+     * @throws Exception 
+     */
+    private static int runRebot(ArrayList<String> rebotArgs, String logName, String consolePrefix) throws Exception {
+        
+        // prepare the process with all our args
+        Process p;
+        ProcessBuilder pb = new ProcessBuilder(rebotArgs);
+
+        // ensure process will run into working directory (here is all our output files)
+        pb.directory(new File(launcher.WORKING_PATH));
+
+        // ensuring no problems with proxy or cntlm
+        Map<String, String> env = pb.environment();
+        env.put("no_proxy", "127.0.0.1, localhost, 0.0.0.0");
+
+        // redirect all stream from future pabot process
+        pb.redirectErrorStream(true);
 
+        // start test execution
+        long start = System.currentTimeMillis();
+        p = ProcessRegistry.start(pb, "rebot");
+        
+        // a hanging rebot is killed at the suite timeout
+        Watchdog.Watch watch = Watchdog.watchRebot(p, "rebot");
+
+        // show rebot output (read in background, and kept in its log file)
+        StreamPump output = StreamPump.start(p, logName, consolePrefix);
+        
+        int exitCode = p.waitFor();
+        output.await(OUTPUT_GRACE);
+
+        p.destroy();
+        p.destroyForcibly();
+        
+        if (watch.finish()) {
+            exitCode = -1;
+        }
+        RunMetrics.phase("rebot", System.currentTimeMillis() - start);
+        if (rebotFailed(exitCode)) {
+            output.printTail(logName + " failed (exit code " + exitCode + ")");
+        }
+        return exitCode;
     }
- 
 
 }
@@ -0,0 +1,300 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.threads;
+
+import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.RunJournal;
+import com.orange.testgenappium.utility.SuiteHistory;
+import com.orange.testgenappium.utility.SuiteRequirements;
+import com.orange.testgenappium.utility.Tools;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared queue of test suites for the work stealing mode. Each device worker 
+ * pulls the next suite it has not executed yet as soon as it is free, so a 
+ * slow device never stalls the others.
+ * 
+ * A suite is removed from the queue when all devices took it. In distribution
+ * mode, a suite is removed as soon as one device took it. A suite is only 
+ * given to devices matching its requirements (see SuiteRequirements).
+ * 
+ * In distribution mode, a device doesn't take a suite another device would 
+ * end before it (even after its current suite), so slow devices get shorter
+ * suites and all devices end at about the same time.
+ * 
+ * @author bastienjalbert
+ */
+public class SuiteQueue {
+
+    // for each suite (in execution order) the devices that still have to run it
+    private final LinkedHashMap<String, Set<Integer>> pending = new LinkedHashMap<>();
+
+    // number of (suite, device) executions
+    private final int total;
+
+    // number of (suite, device) executions already finished
+    private int completed = 0;
+
+    // devices of the run, only for the distribution mode (null otherwise)
+    private final ArrayList<Device> devices;
+
+    // when each device should be free (ms since epoch, distribution mode)
+    private long[] busyUntil;
+
+    // suite -> its predicted duration on each device (distribution mode)
+    private final Map<String, long[]> predictions = new HashMap<>();
+
+    /**
+     * Create the queue, every suite has to be executed on every device
+     * @param tests_suites the robot test files, in execution order
+     * @param devicesCount number of devices
+     */
+    public SuiteQueue(ArrayList<String> tests_suites, int devicesCount) {
+        int executions = 0;
+        for (String suite : tests_suites) {
+            Set<Integer> devicesIndex = new HashSet<>();
+            for (int x = 0; x < devicesCount; x++) {
+                if (SuiteRequirements.matches(suite, x)) {
+                    devicesIndex.add(x);
+                }
+            }
+            if (!devicesIndex.isEmpty()) {
+                pending.put(suite, devicesIndex);
+                executions += devicesIndex.size();
+            }
+        }
+        this.total = executions;
+        this.devices = null;
+    }
+
+    /**
+     * Create the queue for the distribution mode, every suite has to be 
+     * executed on one device only (suites already done are skipped)
+     * @param tests_suites the robot test files, in execution order
+     * @param devices_conf devices of the run
+     */
+    public SuiteQueue(ArrayList<String> tests_suites, ArrayList<Device> devices_conf) {
+        for (String suite : tests_suites) {
+            if (RunJournal.isCompletedOnAnyDevice(Tools.getOnlyTestNameFromFile(suite))) {
+                continue;
+            }
+            Set<Integer> devicesIndex = new HashSet<>();
+            for (int x = 0; x < devices_conf.size(); x++) {
+                if (SuiteRequirements.matches(suite, x)) {
+                    devicesIndex.add(x);
+                }
+            }
+            // no device for this suite, it won't run
+            if (!devicesIndex.isEmpty()) {
+                pending.put(suite, devicesIndex);
+            }
+        }
+        this.total = pending.size();
+        this.devices = devices_conf;
+        this.busyUntil = new long[devices_conf.size()];
+    }
+
+    /**
+     * Take the next suite to execute on a device
+     * @param deviceIndex the device index asking for work
+     * @return the robot test file, or null if this device has nothing left to do
+     */
+    public synchronized String next(int deviceIndex) {
+        if (devices != null) {
+            return nextDistributed(deviceIndex);
+        }
+        for (Map.Entry<String, Set<Integer>> suite : pending.entrySet()) {
+            if (suite.getValue().remove(deviceIndex)) {
+                String robotName = suite.getKey();
+                // every device took this suite, no need to keep it
+                if (suite.getValue().isEmpty()) {
+                    pending.remove(robotName);
+                }
+                return robotName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Among the next suites this device should take (one for each device, to 
+     * keep the longest first order), take the one that didn't run on this 
+     * device model for the longest time, so models are spread over successive
+     * runs. A suite another device would end before this one is left to it,
+     * if all are, the suite this device would end with the least delay is taken.
+     */
+    private String nextDistributed(int deviceIndex) {
+        Device device = devices.get(deviceIndex);
+        long now = System.currentTimeMillis();
+        String chosen = null;
+        long chosenLastRun = Long.MAX_VALUE;
+        int candidates = 0;
+        // suite with the least delay, if no other device is slower for any suite
+        String leastLate = null;
+        long leastDelay = Long.MAX_VALUE;
+        for (Map.Entry<String, Set<Integer>> entry : pending.entrySet()) {
+            String suite = entry.getKey();
+            if (!entry.getValue().contains(deviceIndex)) {
+                continue;
+            }
+            long delay = delay(suite, deviceIndex, entry.getValue(), now);
+            if (delay > 0) {
+                if (delay < leastDelay) {
+                    leastLate = suite;
+                    leastDelay = delay;
+                }
+                continue;
+            }
+            if (candidates++ == devices.size()) {
+                break;
+            }
+            long lastRun = 0;
+            for (Device other : devices) {
+                if (sameModel(device, other)) {
+                    lastRun = Math.max(lastRun, SuiteHistory.lastRun(suite, other.getUdid()));
+                }
+            }
+            if (lastRun < chosenLastRun) {
+                chosen = suite;
+                chosenLastRun = lastRun;
+            }
+        }
+        if (chosen == null) {
+            chosen = leastLate;
+        }
+        if (chosen != null) {
+            pending.remove(chosen);
+            busyUntil[deviceIndex] = now + Math.max(0, predictions(chosen)[deviceIndex]);
+        }
+        return chosen;
+    }
+
+    // how much later this device would end a suite than the best other device 
+    // (negative or 0 if this device is the best one, or if nothing is known)
+    private long delay(String suite, int deviceIndex, Set<Integer> matching, long now) {
+        long[] durations = predictions(suite);
+        long mine = durations[deviceIndex];
+        if (mine < 0) {
+            return 0;
+        }
+        long best = Long.MAX_VALUE;
+        for (int other : matching) {
+            if (other == deviceIndex) {
+                continue;
+            }
+            if (durations[other] < 0) {
+                return 0;
+            }
+            best = Math.min(best, Math.max(now, busyUntil[other]) + durations[other]);
+        }
+        return best == Long.MAX_VALUE ? 0 : now + mine - best;
+    }
+
+    // predicted durations of a suite on each device (computed once)
+    private long[] predictions(String suite) {
+        return predictions.computeIfAbsent(suite, s -> {
+            long[] durations = new long[devices.size()];
+            for (int x = 0; x < devices.size(); x++) {
+                durations[x] = SuiteHistory.predict(s, devices.get(x));
+            }
+            return durations;
+        });
+    }
+
+    // same model : same type (if it's defined), or the same device
+    private static boolean sameModel(Device device, Device other) {
+        if (device.getType() != null && other.getType() != null) {
+            return device.getType().equals(other.getType());
+        }
+        return device.getUdid().equals(other.getUdid());
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return true if a suite is still waiting for this device
+     */
+    public synchronized boolean hasWork(int deviceIndex) {
+        for (Set<Integer> devicesIndex : pending.values()) {
+            if (devicesIndex.contains(deviceIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Give back a suite which didn't run until its end on a device (device
+     * quarantined). In distribution mode any matching device can take it 
+     * (first), otherwise only this device has to run it again.
+     * @param suite the robot test file
+     * @param deviceIndex the device index
+     */
+    public synchronized void requeue(String suite, int deviceIndex) {
+        if (devices == null) {
+            pending.computeIfAbsent(suite, s -> new HashSet<>()).add(deviceIndex);
+            return;
+        }
+        Set<Integer> devicesIndex = new HashSet<>();
+        for (int x = 0; x < devices.size(); x++) {
+            if (SuiteRequirements.matches(suite, x)) {
+                devicesIndex.add(x);
+            }
+        }
+        // the longest suites are first, this one is already late
+        LinkedHashMap<String, Set<Integer>> suites = new LinkedHashMap<>(pending);
+        pending.clear();
+        pending.put(suite, devicesIndex);
+        pending.putAll(suites);
+        busyUntil[deviceIndex] = 0;
+    }
+
+    /**
+     * Empty the queue (all workers stopped before the end of the queue)
+     * @return suites which didn't run, with devices they were waiting for
+     */
+    public synchronized LinkedHashMap<String, Set<Integer>> drain() {
+        LinkedHashMap<String, Set<Integer>> left = new LinkedHashMap<>(pending);
+        pending.clear();
+        return left;
+    }
+
+    /**
+     * Indicate that a suite has been executed on a device
+     * @return the number of executions finished so far
+     */
+    public synchronized int complete() {
+        return ++completed;
+    }
+
+    /**
+     * @return the total number of (suite, device) executions (number of suites 
+     *         to execute in distribution mode)
+     */
+    public int size() {
+        return total;
+    }
+
+}
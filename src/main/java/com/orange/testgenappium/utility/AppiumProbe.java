@@ -0,0 +1,172 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.model.Device;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wait for appium servers to be ready by polling their status endpoint
+ * (http://127.0.0.1:PORT/status) instead of waiting a fixed time. All servers
+ * are polled in parallel, with a growing delay between two tries.
+ * 
+ * @author bastienjalbert
+ */
+public class AppiumProbe {
+
+    // first delay between two tries, doubled after each try
+    private static final long FIRST_DELAY = 100;
+
+    // maximum delay between two tries
+    private static final long MAX_DELAY = 2000;
+
+    /**
+     * Wait until all appium servers (or a quorum) answer. Devices whose server
+     * is not ready at this moment are removed from the run.
+     * @param devices all devices (an appium server has been started for each one)
+     * @param timeout maximum time to wait (ms)
+     * @param quorum number of ready servers needed to start tests
+     * @return devices with a ready appium server, in the same order
+     * @throws InterruptedException 
+     */
+    public static ArrayList<Device> waitForServers(ArrayList<Device> devices, long timeout, 
+                                                   int quorum) throws InterruptedException {
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        quorum = Math.max(1, Math.min(quorum, devices.size()));
+
+        // time to ready (ms) of each ready device
+        Map<Device, Long> ready = new ConcurrentHashMap<>();
+        CountDownLatch quorumReached = new CountDownLatch(quorum);
+        CountDownLatch allFinished = new CountDownLatch(devices.size());
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, devices.size()), runnable -> {
+            Thread t = new Thread(runnable, "appium-probe");
+            t.setDaemon(true);
+            return t;
+        });
+
+        for (Device device : devices) {
+            pool.submit(() -> {
+                long start = System.currentTimeMillis();
+                if (probe(device, deadline)) {
+                    long timeToReady = System.currentTimeMillis() - start;
+                    ready.put(device, timeToReady);
+                    RunMetrics.setupPhase("appium_ready", timeToReady);
+                    System.out.println("INFO : Appium server of " + device.getName() 
+                            + " (127.0.0.1:" + device.getAppiumPort() + ") ready in " + timeToReady + "ms");
+                    quorumReached.countDown();
+                }
+                allFinished.countDown();
+            });
+        }
+
+        // start as soon as the quorum is reached, or when all probes gave up
+        while (quorumReached.getCount() > 0 && allFinished.getCount() > 0) {
+            quorumReached.await(50, TimeUnit.MILLISECONDS);
+        }
+        pool.shutdownNow();
+
+        ArrayList<Device> readyDevices = new ArrayList<>();
+        for (Device device : devices) {
+            if (ready.containsKey(device)) {
+                readyDevices.add(device);
+            } else {
+                String date = new Date().toString();
+                System.err.println("ERROR : Appium server of " + device.getName() + " (127.0.0.1:" 
+                        + device.getAppiumPort() + ") is not ready, device removed from tests.");
+                Tools.writeLog(Arrays.asList(date, "Appium server not ready, device removed : ", device.getName()));
+            }
+        }
+        return readyDevices;
+    }
+
+    /**
+     * Wait until the appium server of one device answers
+     * @param device the device
+     * @param timeout maximum time to wait (ms)
+     * @return true if the server is ready
+     */
+    public static boolean waitForServer(Device device, long timeout) {
+        return probe(device, System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * @param device the device
+     * @return true if its appium server answers now
+     */
+    public static boolean isReady(Device device) {
+        return isReady(device.getAppiumPort(), "/status") || isReady(device.getAppiumPort(), "/wd/hub/status");
+    }
+
+    /**
+     * Poll the appium server of a device until it answers or the deadline
+     * @param device the device
+     * @param deadline time (ms) when we stop trying
+     * @return true if the server is ready
+     */
+    private static boolean probe(Device device, long deadline) {
+        long delay = FIRST_DELAY;
+        while (System.currentTimeMillis() < deadline && !Thread.currentThread().isInterrupted()) {
+            // appium 2 answers on /status, appium 1 on /wd/hub/status
+            if (isReady(device)) {
+                return true;
+            }
+            try {
+                Thread.sleep(Math.min(delay, Math.max(0, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException ex) {
+                return false;
+            }
+            delay = Math.min(delay * 2, MAX_DELAY);
+        }
+        return false;
+    }
+
+    // true if the status endpoint answers 200
+    private static boolean isReady(String port, String path) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+            connection.setConnectTimeout(1000);
+            connection.setReadTimeout(2000);
+            return connection.getResponseCode() == 200;
+        } catch (IOException ex) {
+            // not started yet (connection refused)
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+}
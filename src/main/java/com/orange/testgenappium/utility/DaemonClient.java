@@ -0,0 +1,110 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client mode of APTR : send the command line to an APTR daemon (see 
+ * DaemonServer) and show the run output while it is going on, or stop the daemon.
+ * 
+ * @author bastienjalbert
+ */
+public class DaemonClient {
+
+    /**
+     * Submit a run to the daemon and wait for its result
+     * @param port local port of the daemon
+     * @param args the command line (same arguments as a normal run)
+     * @return the exit code : 0 if the run succeeded, 1 if it failed, 
+     *         17 if the daemon can't be reached
+     */
+    public static int submit(int port, String[] args) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/run").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            // a run can take hours
+            connection.setReadTimeout(0);
+
+            // working directory first (for -f), then arguments
+            StringBuilder request = new StringBuilder(System.getProperty("user.dir")).append('\n');
+            for (String arg : args) {
+                request.append(arg).append('\n');
+            }
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+            }
+
+            // show the run output, the last line is the result
+            boolean success = false;
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(DaemonServer.RESULT_PREFIX)) {
+                        success = line.equals(DaemonServer.RESULT_PREFIX + "SUCCESS");
+                    }
+                    System.out.println(line);
+                }
+            }
+            return success ? 0 : 1;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR : Can't reach APTR daemon on 127.0.0.1:" + port + " (" + ex.getLocalizedMessage() + ")");
+            return 17;
+        }
+    }
+
+    /**
+     * Ask the daemon to stop (after the run in progress, if any)
+     * @param port local port of the daemon
+     * @return the exit code : 0 if the daemon is stopping, 17 if it can't be reached
+     */
+    public static int stop(int port) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/stop").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println(line);
+                }
+            }
+            return 0;
+
+        } catch (IOException ex) {
+            System.err.println("ERROR : Can't reach APTR daemon on 127.0.0.1:" + port + " (" + ex.getLocalizedMessage() + ")");
+            return 17;
+        }
+    }
+
+}
@@ -0,0 +1,264 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.launcher;
+import com.orange.testgenappium.model.Device;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * APTR daemon : appium servers are started once and stay warm, runs are sent
+ * by clients (see DaemonClient) on a local HTTP endpoint :
+ * 
+ * <pre>
+ *   POST http://127.0.0.1:PORT/run
+ *   body : client working directory, then one command line argument by line
+ *   POST http://127.0.0.1:PORT/stop
+ * </pre>
+ * 
+ * The run output is streamed back to the client, the last line is the result
+ * ("APTR RESULT : SUCCESS" or "APTR RESULT : FAILURE"). Only the output of 
+ * the run threads (and of the threads they start) is sent, not the one of the
+ * daemon (appium servers started with it, ...). Devices are shared by all 
+ * runs, so runs are executed one after the other (next ones wait). When the 
+ * daemon is stopped, the run in progress ends first and waiting ones are refused.
+ * 
+ * @author bastienjalbert
+ */
+public class DaemonServer {
+
+    // last line sent to the client
+    public static final String RESULT_PREFIX = "APTR RESULT : ";
+
+    private final int port;
+
+    // devices with a started appium server
+    private final ArrayList<Device> devices;
+
+    // only one run at same time on devices (fair : runs are done in order)
+    private final ReentrantLock running = new ReentrantLock(true);
+
+    // released when the daemon has to stop
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    // true once the daemon has to stop, next runs are refused
+    private volatile boolean stopping = false;
+
+    // true for threads of the run in progress, and threads they start : 
+    // only their output is sent to the client
+    private static final InheritableThreadLocal<Boolean> RUN_THREAD = new InheritableThreadLocal<>();
+
+    public DaemonServer(int port, ArrayList<Device> devices) {
+        this.port = port;
+        this.devices = devices;
+    }
+
+    /**
+     * Listen for runs until the daemon is stopped
+     * @throws IOException 
+     * @throws InterruptedException 
+     */
+    public void serve() throws IOException, InterruptedException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/run", this::handleRun);
+        server.createContext("/stop", this::handleStop);
+        // a waiting client must not prevent others to connect
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        System.out.println("INFO : APTR daemon is waiting for runs on 127.0.0.1:" + port 
+                + " with " + devices.size() + " device(s)");
+
+        stopped.await();
+        // the run in progress ends first
+        running.lock();
+        try {
+            server.stop(0);
+        } finally {
+            running.unlock();
+        }
+        System.out.println("INFO : APTR daemon stopped");
+    }
+
+    /**
+     * Stop listening for runs (a run in progress is not interrupted)
+     */
+    public void stop() {
+        stopping = true;
+        stopped.countDown();
+    }
+
+    /**
+     * Stop the daemon, asked by a client (--stopdaemon)
+     * @param exchange the client request
+     * @throws IOException 
+     */
+    private void handleStop(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+        String message = "INFO : APTR daemon on 127.0.0.1:" + port + " stopping" 
+                + (running.isLocked() ? " after the run in progress" : "");
+        System.out.println(message);
+        byte[] answer = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, answer.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(answer);
+        }
+        stop();
+    }
+
+    /**
+     * Execute one run and stream its output to the client
+     * @param exchange the client request
+     * @throws IOException 
+     */
+    private void handleRun(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            exchange.close();
+            return;
+        }
+
+        // first line : client working directory, then arguments
+        ArrayList<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+        // chunked response, output is sent while the run is going on
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = exchange.getResponseBody();
+
+        if (lines.isEmpty()) {
+            body.write((RESULT_PREFIX + "FAILURE\n").getBytes(StandardCharsets.UTF_8));
+            exchange.close();
+            return;
+        }
+
+        if (running.isLocked()) {
+            body.write("INFO : Another run is in progress, waiting...\n".getBytes(StandardCharsets.UTF_8));
+            body.flush();
+        }
+
+        boolean success = false;
+        running.lock();
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        try {
+            if (stopping) {
+                body.write("ERROR : APTR daemon is stopping, run not executed\n".getBytes(StandardCharsets.UTF_8));
+            } else {
+                // everything printed by the run is also sent to the client
+                RUN_THREAD.set(Boolean.TRUE);
+                System.setOut(new PrintStream(new TeeOutputStream(stdout, body), true, "UTF-8"));
+                System.setErr(new PrintStream(new TeeOutputStream(stderr, body), true, "UTF-8"));
+
+                String[] args = lines.subList(1, lines.size()).toArray(new String[0]);
+                System.out.println("INFO : New run from " + lines.get(0) + " : " + Arrays.toString(args));
+                success = launcher.runJob(args, lines.get(0), devices);
+            }
+        } catch (Exception ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on daemon run : ", ex.toString()));
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+            RUN_THREAD.remove();
+            running.unlock();
+        }
+
+        try {
+            body.write((RESULT_PREFIX + (success ? "SUCCESS" : "FAILURE") + "\n").getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Write to the console, and to the client for threads of the run. The 
+     * client can leave at any moment, the run continues anyway.
+     */
+    private static class TeeOutputStream extends OutputStream {
+
+        private final OutputStream console;
+
+        private final OutputStream client;
+
+        private boolean clientConnected = true;
+
+        TeeOutputStream(OutputStream console, OutputStream client) {
+            this.console = console;
+            this.client = client;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            console.write(b, off, len);
+            if (clientConnected && Boolean.TRUE.equals(RUN_THREAD.get())) {
+                try {
+                    client.write(b, off, len);
+                } catch (IOException ex) {
+                    clientConnected = false;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            console.flush();
+            if (clientConnected) {
+                try {
+                    client.flush();
+                } catch (IOException ex) {
+                    clientConnected = false;
+                }
+            }
+        }
+    }
+
+}
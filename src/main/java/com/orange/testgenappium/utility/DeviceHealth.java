@@ -0,0 +1,489 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.threads.AppiumThread;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Health of devices during the run. A device is healthy when adb sees it
+ * ("adb -s UDID get-state" is "device"), its appium server answers on /status
+ * and its current session (if any) answers a trivial command.
+ * 
+ * Before the run, adb states are checked in parallel (preflight) and dead
+ * devices are removed. During the run (--healthcheck), devices are checked in
+ * background : after two failed checks in a row, a device is quarantined. Its
+ * running pabot is stopped (so its tests don't fail one by one on timeouts), 
+ * the suite is given back to the queue, and recovery is tried (adb reconnect,
+ * appium restart). A recovered device is re-admitted, otherwise it's removed
+ * for the rest of the run.
+ * 
+ * Only pabots running on one device are stopped : in the default mode, the 
+ * pabot running a suite on all devices goes on (stopping it would stop the 
+ * other devices too), the quarantined device fails its tests by itself. Its 
+ * next suites wait for its recovery, and are failed if it's removed.
+ * 
+ * @author bastienjalbert
+ */
+public class DeviceHealth {
+
+    private enum State { HEALTHY, QUARANTINED, REMOVED }
+
+    // failed checks in a row before a device is quarantined
+    private static final int FAILURES_TO_QUARANTINE = 2;
+
+    // recovery tries before a device is removed from the run
+    private static final int RECOVERY_ATTEMPTS = 3;
+
+    // time given to a restarted appium server to answer (ms)
+    private static final long RECOVERY_APPIUM_TIMEOUT = 30000;
+
+    // time given to an adb command (ms)
+    private static final long ADB_TIMEOUT = 10000;
+
+    private static final Pattern SESSION_ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+
+    // devices of the run, and their state (same index)
+    private static ArrayList<Device> devices = new ArrayList<>();
+    private static State[] states = new State[0];
+    private static int[] failures = new int[0];
+
+    // running pabot of each device (only one device pabots), null if none
+    private static Process[] running = new Process[0];
+
+    // true if the pabot of a device has been stopped because of a quarantine
+    private static boolean[] interrupted = new boolean[0];
+
+    // false once adb can't be started (not installed), adb is not checked anymore
+    private static volatile boolean adbAvailable = true;
+
+    private static ScheduledExecutorService monitor = null;
+
+    private static ExecutorService checks = null;
+
+    private static ExecutorService recoveries = null;
+
+    /**
+     * Check adb states of all devices in parallel, before starting anything
+     * @param devices_conf all devices
+     * @return devices seen by adb, in the same order (all devices if adb is 
+     *         not installed)
+     */
+    public static ArrayList<Device> preflight(ArrayList<Device> devices_conf) {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(devices_conf.size(), 16)), 
+                daemon("device-preflight"));
+        List<Future<String>> states = new ArrayList<>();
+        for (Device device : devices_conf) {
+            states.add(pool.submit(() -> adbState(device)));
+        }
+        ArrayList<Device> alive = new ArrayList<>();
+        try {
+            for (int x = 0; x < devices_conf.size(); x++) {
+                Device device = devices_conf.get(x);
+                String state = states.get(x).get();
+                // null : adb is not installed, nothing is known
+                if (state == null || state.equals("device")) {
+                    alive.add(device);
+                } else {
+                    System.err.println("ERROR : " + device.getName() + " (" + device.getUdid() 
+                            + ") is not ready (adb state : " + state + "), device removed from tests.");
+                    String date = new Date().toString();
+                    Tools.writeLog(Arrays.asList(date, "Device not ready at preflight, removed : ", 
+                            device.getName() + " (adb state : " + state + ")"));
+                }
+            }
+        } catch (Exception ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on device preflight (not done) : ", ex.toString()));
+            return devices_conf;
+        } finally {
+            pool.shutdownNow();
+        }
+        if (adbAvailable) {
+            System.out.println("INFO : Preflight of " + devices_conf.size() + " device(s) done in " 
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return alive;
+    }
+
+    /**
+     * Start to check devices of the run in background
+     * @param devices_conf devices of the run
+     * @param interval time between two checks of a device (ms), 0 to never 
+     *                 check them (all devices are always available)
+     */
+    public static synchronized void start(ArrayList<Device> devices_conf, long interval) {
+        stop();
+        devices = devices_conf;
+        states = new State[devices_conf.size()];
+        Arrays.fill(states, State.HEALTHY);
+        failures = new int[devices_conf.size()];
+        running = new Process[devices_conf.size()];
+        interrupted = new boolean[devices_conf.size()];
+        if (interval <= 0) {
+            return;
+        }
+        checks = Executors.newFixedThreadPool(Math.max(1, Math.min(devices_conf.size(), 8)), daemon("device-check"));
+        recoveries = Executors.newCachedThreadPool(daemon("device-recovery"));
+        monitor = Executors.newSingleThreadScheduledExecutor(daemon("device-monitor"));
+        monitor.scheduleWithFixedDelay(DeviceHealth::checkAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop checking devices (end of the run)
+     */
+    public static synchronized void stop() {
+        for (ExecutorService pool : Arrays.asList(monitor, checks, recoveries)) {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        monitor = null;
+        checks = null;
+        recoveries = null;
+        // nobody waits for a recovery anymore
+        DeviceHealth.class.notifyAll();
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return true if the device can run suites now
+     */
+    public static synchronized boolean isAvailable(int deviceIndex) {
+        return deviceIndex >= states.length || states[deviceIndex] == State.HEALTHY;
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return true if the device has been removed from the run (not recovered)
+     */
+    public static synchronized boolean isRemoved(int deviceIndex) {
+        return deviceIndex < states.length && states[deviceIndex] == State.REMOVED;
+    }
+
+    /**
+     * Wait (at most timeout) for a quarantined device to be recovered or removed
+     * @param deviceIndex the device index
+     * @param timeout maximum time to wait (ms)
+     * @throws InterruptedException 
+     */
+    public static synchronized void awaitRecovery(int deviceIndex, long timeout) throws InterruptedException {
+        if (deviceIndex < states.length && states[deviceIndex] == State.QUARANTINED) {
+            DeviceHealth.class.wait(timeout);
+        }
+    }
+
+    /**
+     * A pabot is running on this device only, it will be stopped if the device 
+     * is quarantined
+     * @param deviceIndex the device index
+     * @param pabot the pabot process, null when it's finished
+     */
+    public static synchronized void running(int deviceIndex, Process pabot) {
+        if (deviceIndex < running.length) {
+            running[deviceIndex] = pabot;
+        }
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return true if the last pabot of this device has been stopped because 
+     *         the device was quarantined (its output means nothing), the flag
+     *         is cleared
+     */
+    public static synchronized boolean takeInterrupted(int deviceIndex) {
+        if (deviceIndex >= interrupted.length || !interrupted[deviceIndex]) {
+            return false;
+        }
+        interrupted[deviceIndex] = false;
+        return true;
+    }
+
+    /**
+     * A suite can't run on a device removed from the run : its tests are 
+     * failed in the report (output prepared like an executed suite)
+     * @param deviceIndex the device index
+     * @param unit the robot file (or shard)
+     * @param deviceName the device name
+     */
+    public static void failNotExecuted(int deviceIndex, String unit, String deviceName) {
+        System.err.println("ERROR : " + unit + " not executed on " + deviceName + " (quarantined)");
+        Watchdog.writeFailedOutput(deviceIndex, unit, "Not executed by APTR (quarantined) on " + deviceName);
+        Tools.preparingOutputToTmp(deviceIndex, Tools.getOnlyTestNameFromFile(unit));
+        StatusServer.completed(deviceIndex);
+    }
+
+    // check all healthy devices (at same time)
+    private static void checkAll() {
+        ArrayList<Device> checked;
+        synchronized (DeviceHealth.class) {
+            checked = devices;
+        }
+        List<Future<?>> results = new ArrayList<>();
+        for (int x = 0; x < checked.size(); x++) {
+            final int deviceIndex = x;
+            if (!isAvailable(deviceIndex)) {
+                continue;
+            }
+            ExecutorService pool = checks;
+            if (pool == null) {
+                return;
+            }
+            results.add(pool.submit(() -> {
+                String problem = check(checked.get(deviceIndex));
+                checked(deviceIndex, problem);
+            }));
+        }
+        // next checks start when these ones are done
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on device health check : ", ex.toString()));
+            }
+        }
+    }
+
+    // count failed checks of a device, quarantine it after too many ones
+    private static synchronized void checked(int deviceIndex, String problem) {
+        if (recoveries == null || states[deviceIndex] != State.HEALTHY || ProcessRegistry.isShuttingDown()) {
+            return;
+        }
+        if (problem == null) {
+            failures[deviceIndex] = 0;
+            return;
+        }
+        if (++failures[deviceIndex] < FAILURES_TO_QUARANTINE) {
+            return;
+        }
+
+        Device device = devices.get(deviceIndex);
+        states[deviceIndex] = State.QUARANTINED;
+        StatusServer.health(deviceIndex, "quarantined");
+        System.err.println("ERROR : " + device.getName() + " quarantined (" + problem + "), recovery started");
+        String date = new Date().toString();
+        Tools.writeLog(Arrays.asList(date, "Device quarantined : ", device.getName() + " (" + problem + ")"));
+
+        // its tests would fail one by one, stop them now
+        Process pabot = running[deviceIndex];
+        if (pabot != null && pabot.isAlive()) {
+            interrupted[deviceIndex] = true;
+            recoveries.submit(() -> ProcessRegistry.stop(pabot, 2000));
+        }
+        recoveries.submit(() -> recover(deviceIndex));
+    }
+
+    // try to get a quarantined device back : adb reconnect, appium restart
+    private static void recover(int deviceIndex) {
+        Device device = devices.get(deviceIndex);
+        for (int attempt = 1; attempt <= RECOVERY_ATTEMPTS; attempt++) {
+            if (ProcessRegistry.isShuttingDown() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            adb(device, "reconnect");
+            AppiumThread.restart(device);
+            if (AppiumProbe.waitForServer(device, RECOVERY_APPIUM_TIMEOUT) && check(device) == null) {
+                synchronized (DeviceHealth.class) {
+                    states[deviceIndex] = State.HEALTHY;
+                    failures[deviceIndex] = 0;
+                    DeviceHealth.class.notifyAll();
+                }
+                StatusServer.health(deviceIndex, null);
+                System.out.println("INFO : " + device.getName() + " recovered (attempt " + attempt + "), back in the run");
+                return;
+            }
+            try {
+                Thread.sleep(5000L * attempt);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+        synchronized (DeviceHealth.class) {
+            states[deviceIndex] = State.REMOVED;
+            DeviceHealth.class.notifyAll();
+        }
+        StatusServer.health(deviceIndex, "removed");
+        System.err.println("ERROR : " + device.getName() + " not recovered after " + RECOVERY_ATTEMPTS 
+                + " attempts, device removed from the run");
+        String date = new Date().toString();
+        Tools.writeLog(Arrays.asList(date, "Device removed (not recovered) : ", device.getName()));
+    }
+
+    /**
+     * Check one device
+     * @param device the device
+     * @return the problem found, null if the device is healthy
+     */
+    private static String check(Device device) {
+        String state = adbState(device);
+        if (state != null && !state.equals("device")) {
+            return "adb state : " + state;
+        }
+        if (!AppiumProbe.isReady(device)) {
+            return "appium server doesn't answer";
+        }
+        return pingSession(device);
+    }
+
+    // adb state of a device ("device", "offline", ...), null if adb can't say
+    private static String adbState(Device device) {
+        String output = adb(device, "get-state");
+        if (output == null) {
+            return null;
+        }
+        // "error: device 'X' not found" when the device is unplugged
+        return output.isEmpty() ? "unknown" : output.startsWith("error") ? "not found" : output;
+    }
+
+    // run an adb command for a device, null if adb can't be used
+    private static String adb(Device device, String command) {
+        if (!adbAvailable || ProcessRegistry.isShuttingDown()) {
+            return null;
+        }
+        ProcessBuilder pb = new ProcessBuilder("adb", "-s", device.getUdid(), command);
+        pb.redirectErrorStream(true);
+        Process p;
+        try {
+            p = ProcessRegistry.start(pb, "adb " + command + " " + device.getName());
+        } catch (IOException ex) {
+            if (!ProcessRegistry.isShuttingDown() && adbAvailable) {
+                adbAvailable = false;
+                System.out.println("INFO : adb can't be started, device states are not checked (" + ex.getMessage() + ")");
+            }
+            return null;
+        }
+        StreamPump output = StreamPump.start(p, "adb." + device.getName(), null);
+        try {
+            if (!p.waitFor(ADB_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                p.destroyForcibly();
+                return "adb timeout";
+            }
+            output.await(ADB_TIMEOUT);
+            return output.text().trim();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // the current session (if any) must answer a trivial command (its timeouts),
+    // a slow answer is not a problem (the session may run a long command)
+    private static String pingSession(Device device) {
+        // appium 1 (/wd/hub), appium 2 lists sessions on /appium/sessions
+        for (String[] paths : new String[][] {{"/wd/hub/sessions", "/wd/hub"}, {"/sessions", ""}, 
+                                               {"/appium/sessions", ""}}) {
+            String sessions = get(device, paths[0]);
+            if (sessions == null) {
+                continue;
+            }
+            Matcher id = SESSION_ID.matcher(sessions);
+            if (!id.find()) {
+                return null;
+            }
+            int code = status(device, paths[1] + "/session/" + id.group(1) + "/timeouts");
+            return code >= 500 ? "session " + id.group(1) + " doesn't answer (HTTP " + code + ")" : null;
+        }
+        return null;
+    }
+
+    // body of a GET request answered with 200, null otherwise
+    private static String get(Device device, String path) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(device, path);
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            return read(connection.getInputStream());
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // HTTP status of a GET request, 0 if it can't be known (timeout, ...)
+    private static int status(Device device, String path) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(device, path);
+            return connection.getResponseCode();
+        } catch (IOException ex) {
+            return 0;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection open(Device device, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" 
+                + device.getAppiumPort() + path).openConnection();
+        connection.setConnectTimeout(1000);
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread t = new Thread(runnable, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+}
@@ -0,0 +1,601 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Merge robot framework output.xml files into one output file, like rebot 
+ * does, without starting any python process. Each input root suite becomes a
+ * child suite of the merged output, and suites can be grouped (one group per
+ * device for example) :
+ * 
+ * <pre>
+ *   OutputMerger merger = new OutputMerger(output, "Tests name", generator);
+ *   merger.startSuite("Device1");
+ *   merger.addOutput(new File("output0.Test_Suite.xml"));
+ *   merger.endSuite();
+ *   merger.close();
+ * </pre>
+ * 
+ * Inputs are streamed (StAX) directly to the merged output, only statistics
+ * and errors messages are kept in memory.
+ * 
+ * @author bastienjalbert
+ */
+public class OutputMerger {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        // robot outputs never use a DTD, don't try to resolve anything
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    /**
+     * A suite of the merged output, with the statistics of its tests
+     */
+    private static class Suite {
+
+        final String id;
+        final String name;
+        final String longname;
+        // true if the suite has been created by the merger (not from an input)
+        final boolean merged;
+        int pass = 0;
+        int fail = 0;
+        // number of child suites, used to create ids of merged suites
+        int children = 0;
+        // number of tests added by addOutputTests, used to create their ids
+        int tests = 0;
+        String status = "PASS";
+        String starttime = null;
+        String endtime = null;
+
+        Suite(String id, String name, String longname, boolean merged) {
+            this.id = id;
+            this.name = name;
+            this.longname = longname;
+            this.merged = merged;
+        }
+    }
+
+    private final OutputStream out;
+
+    private final XMLEventWriter writer;
+
+    // opened suites, the root suite is the last one
+    private final Deque<Suite> suites = new ArrayDeque<>();
+
+    // all suites in document order (for statistics)
+    private final List<Suite> allSuites = new ArrayList<>();
+
+    // statistics of tags, sorted by name : tag -> {pass, fail}
+    private final Map<String, int[]> tags = new TreeMap<>();
+
+    private int criticalPass = 0;
+    private int criticalFail = 0;
+    private int allPass = 0;
+    private int allFail = 0;
+
+    // <msg> of all <errors> sections
+    private final List<XMLEvent> errors = new ArrayList<>();
+
+    /**
+     * Create the merged output file and open its root suite
+     * @param output the merged output.xml file to create
+     * @param name the root suite name (general test name)
+     * @param generator generator attribute of the output (see readGenerator)
+     * @throws IOException
+     * @throws XMLStreamException 
+     */
+    public OutputMerger(File output, String name, String generator) throws IOException, XMLStreamException {
+        this.out = new BufferedOutputStream(Files.newOutputStream(output.toPath()));
+        this.writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+        writer.add(EVENT_FACTORY.createStartDocument("UTF-8", "1.0"));
+        newLine();
+        writer.add(EVENT_FACTORY.createStartElement("", "", "robot"));
+        writer.add(EVENT_FACTORY.createAttribute("generator", generator));
+        writer.add(EVENT_FACTORY.createAttribute("generated", 
+                new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS").format(new Date())));
+        newLine();
+
+        openSuite(new Suite("s1", name, name, true));
+    }
+
+    /**
+     * Open a new suite into the current one, next outputs will be added into it
+     * @param name the suite name
+     * @throws XMLStreamException 
+     */
+    public void startSuite(String name) throws XMLStreamException {
+        Suite parent = suites.peek();
+        parent.children++;
+        openSuite(new Suite(parent.id + "-s" + parent.children, name, 
+                parent.longname + "." + name, true));
+    }
+
+    /**
+     * Close the current suite (opened with startSuite)
+     * @throws XMLStreamException 
+     */
+    public void endSuite() throws XMLStreamException {
+        Suite suite = suites.peek();
+        writer.add(EVENT_FACTORY.createStartElement("", "", "status"));
+        writer.add(EVENT_FACTORY.createAttribute("status", suite.status));
+        writer.add(EVENT_FACTORY.createAttribute("starttime", suite.starttime != null ? suite.starttime : "N/A"));
+        writer.add(EVENT_FACTORY.createAttribute("endtime", suite.endtime != null ? suite.endtime : "N/A"));
+        writer.add(EVENT_FACTORY.createEndElement("", "", "status"));
+        newLine();
+        writer.add(EVENT_FACTORY.createEndElement("", "", "suite"));
+        newLine();
+        closeSuite();
+    }
+
+    /**
+     * Add the root suite of an output.xml into the current suite. Ids are 
+     * renamed to fit in the merged output.
+     * @param input an output.xml file (from robot, pabot or a merger)
+     * @throws IOException
+     * @throws XMLStreamException 
+     */
+    public void addOutput(File input) throws IOException, XMLStreamException {
+        copyOutput(input, false, true, true);
+    }
+
+    /**
+     * Add tests of the root suite of an output.xml directly into the current 
+     * suite, to put together outputs of a suite executed in many parts (see 
+     * SuiteSplitter). The root suite status is added to the current suite one,
+     * its setup is kept only from the first part and its teardown only from
+     * the last part.
+     * @param input an output.xml file of a part of the suite
+     * @param first true for the first part
+     * @param last true for the last part
+     * @throws IOException
+     * @throws XMLStreamException 
+     */
+    public void addOutputTests(File input, boolean first, boolean last) throws IOException, XMLStreamException {
+        copyOutput(input, true, first, last);
+    }
+
+    /**
+     * Put outputs of the parts of a suite together into one output.xml
+     * @param parts outputs of the parts, in order
+     * @param output the output to create
+     * @throws IOException
+     * @throws XMLStreamException 
+     */
+    public static void combine(List<File> parts, File output) throws IOException, XMLStreamException {
+        File first = parts.get(0);
+        OutputMerger merger = new OutputMerger(output, readSuiteName(first), readGenerator(first));
+        for (int i = 0; i < parts.size(); i++) {
+            merger.addOutputTests(parts.get(i), i == 0, i == parts.size() - 1);
+        }
+        merger.close();
+    }
+
+    // copy an output root suite (or only its content) into the current suite
+    private void copyOutput(File input, boolean content, boolean first, boolean last) 
+            throws IOException, XMLStreamException {
+        Suite parent = suites.peek();
+        String idPrefix;
+        if (content) {
+            // child suites ids "s1-sY" become "<current>-sY"
+            idPrefix = parent.id;
+        } else {
+            parent.children++;
+            // the input root suite "s1" becomes "s1-sX"
+            idPrefix = parent.id + "-s" + parent.children;
+        }
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(input.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+
+            // names of opened elements (<robot> is the last one)
+            Deque<String> path = new ArrayDeque<>();
+            // are we copying the root suite
+            boolean copying = false;
+            // are we copying an error message
+            boolean inError = false;
+            // depth of the element being skipped (content mode), 0 if none
+            int skipping = 0;
+
+            // current test information
+            List<String> testTags = new ArrayList<>();
+            String testStatus = null;
+            boolean critical = true;
+            StringBuilder tag = null;
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+
+                if (skipping > 0) {
+                    if (event.isStartElement()) {
+                        path.push(event.asStartElement().getName().getLocalPart());
+                    } else if (event.isEndElement()) {
+                        path.pop();
+                        if (path.size() < skipping) {
+                            skipping = 0;
+                        }
+                    }
+                    continue;
+                }
+
+                if (event.isStartElement()) {
+                    StartElement element = event.asStartElement();
+                    String name = element.getName().getLocalPart();
+                    String parentName = path.peek();
+                    path.push(name);
+
+                    if (path.size() == 2 && name.equals("suite")) {
+                        copying = true;
+                        if (content) {
+                            // the root suite is the current one
+                            continue;
+                        }
+                    } else if (path.size() == 3 && "errors".equals(parentName) && name.equals("msg")) {
+                        inError = true;
+                    }
+
+                    boolean renamed = false;
+                    if (copying && content && path.size() == 3) {
+                        String type = attribute(element, "type");
+                        if (name.equals("status")) {
+                            mergeStatus(parent, attribute(element, "status"), 
+                                    attribute(element, "starttime"), attribute(element, "endtime"));
+                            skipping = path.size();
+                            continue;
+                        } else if ((name.equals("kw") && "setup".equals(type) && !first)
+                                || (name.equals("kw") && "teardown".equals(type) && !last)
+                                || ((name.equals("doc") || name.equals("metadata")) && !first)) {
+                            skipping = path.size();
+                            continue;
+                        } else if (name.equals("test")) {
+                            element = replaceId(element, parent.id + "-t" + ++parent.tests);
+                            renamed = true;
+                        }
+                    }
+
+                    if (copying) {
+                        if (!renamed) {
+                            element = renameId(element, idPrefix);
+                        }
+                        if (name.equals("suite")) {
+                            Suite current = suites.peek();
+                            String suiteName = attribute(element, "name");
+                            suites.push(new Suite(attribute(element, "id"), suiteName, 
+                                    current.longname + "." + suiteName, false));
+                            allSuites.add(suites.peek());
+                        } else if (name.equals("test")) {
+                            testTags.clear();
+                            testStatus = null;
+                            critical = true;
+                        } else if (name.equals("tag") && "tags".equals(parentName)) {
+                            tag = new StringBuilder();
+                        } else if (name.equals("status") && "test".equals(parentName)) {
+                            testStatus = attribute(element, "status");
+                            critical = !"no".equals(attribute(element, "critical"));
+                        } else if (name.equals("status") && "suite".equals(parentName)) {
+                            Suite current = suites.peek();
+                            current.status = attribute(element, "status");
+                            current.starttime = attribute(element, "starttime");
+                            current.endtime = attribute(element, "endtime");
+                        }
+                        writer.add(element);
+                    } else if (inError) {
+                        errors.add(element);
+                    }
+                } else if (event.isEndElement()) {
+                    String name = path.pop();
+
+                    if (copying && content && path.size() == 1) {
+                        // end of the root suite (the current one stays opened)
+                        copying = false;
+                        continue;
+                    }
+
+                    if (copying) {
+                        writer.add(event);
+                        if (name.equals("tag") && tag != null) {
+                            testTags.add(tag.toString());
+                            tag = null;
+                        } else if (name.equals("test")) {
+                            countTest(testStatus, critical, testTags);
+                        } else if (name.equals("suite")) {
+                            closeSuite();
+                        }
+                        if (path.size() == 1) {
+                            copying = false;
+                            newLine();
+                        }
+                    } else if (inError) {
+                        errors.add(event);
+                        if (path.size() == 2) {
+                            inError = false;
+                            errors.add(EVENT_FACTORY.createCharacters("\n"));
+                        }
+                    }
+                } else if (event.isCharacters()) {
+                    if (copying) {
+                        writer.add(event);
+                        if (tag != null) {
+                            tag.append(event.asCharacters().getData());
+                        }
+                    } else if (inError) {
+                        errors.add(event);
+                    }
+                }
+            }
+            reader.close();
+        }
+    }
+
+    /**
+     * Close the root suite, write statistics and errors and close the file
+     * @throws IOException
+     * @throws XMLStreamException 
+     */
+    public void close() throws IOException, XMLStreamException {
+        endSuite();
+
+        writer.add(EVENT_FACTORY.createStartElement("", "", "statistics"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createStartElement("", "", "total"));
+        newLine();
+        writeStat(criticalPass, criticalFail, "Critical Tests", null);
+        writeStat(allPass, allFail, "All Tests", null);
+        writer.add(EVENT_FACTORY.createEndElement("", "", "total"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createStartElement("", "", "tag"));
+        newLine();
+        for (Map.Entry<String, int[]> tag : tags.entrySet()) {
+            writeStat(tag.getValue()[0], tag.getValue()[1], tag.getKey(), null);
+        }
+        writer.add(EVENT_FACTORY.createEndElement("", "", "tag"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createStartElement("", "", "suite"));
+        newLine();
+        for (Suite suite : allSuites) {
+            writeStat(suite.pass, suite.fail, suite.longname, suite);
+        }
+        writer.add(EVENT_FACTORY.createEndElement("", "", "suite"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createEndElement("", "", "statistics"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createStartElement("", "", "errors"));
+        newLine();
+        for (XMLEvent error : errors) {
+            writer.add(error);
+        }
+        writer.add(EVENT_FACTORY.createEndElement("", "", "errors"));
+        newLine();
+
+        writer.add(EVENT_FACTORY.createEndElement("", "", "robot"));
+        newLine();
+        writer.add(EVENT_FACTORY.createEndDocument());
+        writer.flush();
+        writer.close();
+        out.close();
+    }
+
+    /**
+     * Read the generator attribute (ex: "Robot 3.0.2 (Python 2.7.12 on linux2)")
+     * of an output.xml file. Only the beginning of the file is read.
+     * @param output an output.xml file
+     * @return the generator, or "APTR" if the file can't be read
+     */
+    public static String readGenerator(File output) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    String generator = attribute(event.asStartElement(), "generator");
+                    reader.close();
+                    return generator != null ? generator : "APTR";
+                }
+            }
+        } catch (IOException | XMLStreamException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading output generator : ", ex.getLocalizedMessage()));
+        }
+        return "APTR";
+    }
+
+    /**
+     * Read the name of the root suite of an output.xml file
+     * @param output an output.xml file
+     * @return the suite name, or the file name if the file can't be read
+     */
+    public static String readSuiteName(File output) {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("suite")) {
+                    String name = attribute(event.asStartElement(), "name");
+                    reader.close();
+                    if (name != null) {
+                        return name;
+                    }
+                    break;
+                }
+            }
+        } catch (IOException | XMLStreamException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading output suite name : ", ex.getLocalizedMessage()));
+        }
+        return output.getName();
+    }
+
+    // write the start tag of a merged suite and open it
+    private void openSuite(Suite suite) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", "", "suite"));
+        writer.add(EVENT_FACTORY.createAttribute("id", suite.id));
+        writer.add(EVENT_FACTORY.createAttribute("name", suite.name));
+        newLine();
+        suites.push(suite);
+        allSuites.add(suite);
+    }
+
+    // close the current suite and report its status to a merged parent
+    private void closeSuite() {
+        Suite suite = suites.pop();
+        Suite parent = suites.peek();
+        if (parent == null || !parent.merged) {
+            return;
+        }
+        mergeStatus(parent, suite.status, suite.starttime, suite.endtime);
+    }
+
+    // add a suite status to a merged suite : any failure fails it, and it 
+    // lasts from the first start to the last end
+    private static void mergeStatus(Suite suite, String status, String starttime, String endtime) {
+        if ("FAIL".equals(status)) {
+            suite.status = "FAIL";
+        }
+        if (starttime != null && !starttime.equals("N/A")
+                && (suite.starttime == null || starttime.compareTo(suite.starttime) < 0)) {
+            suite.starttime = starttime;
+        }
+        if (endtime != null && !endtime.equals("N/A")
+                && (suite.endtime == null || endtime.compareTo(suite.endtime) > 0)) {
+            suite.endtime = endtime;
+        }
+    }
+
+    // add a finished test to statistics of all opened suites and its tags
+    private void countTest(String status, boolean critical, List<String> testTags) {
+        boolean pass = "PASS".equals(status);
+        boolean fail = "FAIL".equals(status);
+        if (!pass && !fail) {
+            return;
+        }
+        for (Suite suite : suites) {
+            if (pass) {
+                suite.pass++;
+            } else {
+                suite.fail++;
+            }
+        }
+        for (String tag : testTags) {
+            int[] stat = tags.computeIfAbsent(tag, t -> new int[2]);
+            stat[pass ? 0 : 1]++;
+        }
+        if (critical) {
+            if (pass) {
+                criticalPass++;
+            } else {
+                criticalFail++;
+            }
+        }
+        if (pass) {
+            allPass++;
+        } else {
+            allFail++;
+        }
+    }
+
+    // write a <stat pass="" fail="">label</stat> line
+    private void writeStat(int pass, int fail, String label, Suite suite) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", "", "stat"));
+        writer.add(EVENT_FACTORY.createAttribute("pass", String.valueOf(pass)));
+        writer.add(EVENT_FACTORY.createAttribute("fail", String.valueOf(fail)));
+        if (suite != null) {
+            writer.add(EVENT_FACTORY.createAttribute("id", suite.id));
+            writer.add(EVENT_FACTORY.createAttribute("name", suite.name));
+        }
+        writer.add(EVENT_FACTORY.createCharacters(label));
+        writer.add(EVENT_FACTORY.createEndElement("", "", "stat"));
+        newLine();
+    }
+
+    // replace the "s1" beginning of an id attribute (s1-s2-t1 for example)
+    private static StartElement renameId(StartElement element, String idPrefix) {
+        String id = attribute(element, "id");
+        if (id == null || !id.startsWith("s1")) {
+            return element;
+        }
+        return replaceId(element, idPrefix + id.substring(2));
+    }
+
+    // set the id attribute of an element
+    private static StartElement replaceId(StartElement element, String newId) {
+        List<Attribute> attributes = new ArrayList<>();
+        Iterator<?> it = element.getAttributes();
+        while (it.hasNext()) {
+            Attribute attribute = (Attribute) it.next();
+            if (attribute.getName().getLocalPart().equals("id")) {
+                attribute = EVENT_FACTORY.createAttribute("id", newId);
+            }
+            attributes.add(attribute);
+        }
+        return EVENT_FACTORY.createStartElement(element.getName(), attributes.iterator(), 
+                element.getNamespaces());
+    }
+
+    private static String attribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new QName(name));
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    private void newLine() throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createCharacters("\n"));
+    }
+
+}
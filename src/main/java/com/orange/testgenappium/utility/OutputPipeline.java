@@ -0,0 +1,118 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Background stage that processes output files (screenshots path rewriting)
+ * while the next suite is already running. Files of all devices are processed
+ * in parallel on a small pool of threads.
+ * 
+ * The report step has to call awaitAll() before reading output files.
+ * 
+ * @author bastienjalbert
+ */
+public class OutputPipeline {
+
+    // one thread per core, processing is mostly IO and XML parsing
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread t = new Thread(runnable, "output-pipeline");
+                // never keep the JVM alive for this pool
+                t.setDaemon(true);
+                return t;
+            });
+
+    // all submitted files not yet waited by awaitAll (processing time in ms)
+    private static final List<Future<Long>> PENDING = new ArrayList<>();
+
+    /**
+     * Process an output file (outputX.testSuiteName.xml) in background
+     * @param resultsAbsPath path to the xml output file
+     * @param device_index the device index during test
+     * @param testSuiteName the test name related to the output file
+     * @param retry true if the output comes from a retry of failed tests
+     */
+    public static void submit(String resultsAbsPath, int device_index, String testSuiteName, boolean retry) {
+        Future<Long> task = POOL.submit(() -> {
+            long start = System.currentTimeMillis();
+            ScreenshotUpdater.TestCounts tests = ScreenshotUpdater.reportImagesUpdaters(resultsAbsPath, device_index, testSuiteName);
+            if (tests != null) {
+                // the output is ready, this pair won't run again if the run is resumed
+                RunJournal.record(device_index, testSuiteName, resultsAbsPath);
+                ResultCache.executed(device_index, testSuiteName, resultsAbsPath);
+                StatusServer.tests(tests.passed, tests.failed, retry);
+            }
+            long duration = System.currentTimeMillis() - start;
+            RunMetrics.phase("screenshot_rewrite", duration);
+            return duration;
+        });
+        synchronized (PENDING) {
+            PENDING.add(task);
+        }
+    }
+
+    /**
+     * Wait for all files submitted since the last call to be processed and 
+     * show how much of their processing overlapped with tests execution
+     */
+    public static void awaitAll() {
+        long start = System.currentTimeMillis();
+
+        List<Future<Long>> tasks;
+        synchronized (PENDING) {
+            tasks = new ArrayList<>(PENDING);
+            PENDING.clear();
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        // what processing these files one after the other would have cost
+        long processing = 0;
+        for (Future<Long> task : tasks) {
+            try {
+                processing += task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on output processing : ", ex.getCause().toString()));
+            }
+        }
+
+        // only the time waited here was not overlapped with tests execution
+        long waited = System.currentTimeMillis() - start;
+        System.out.println("INFO : Outputs processing of " + tasks.size() + " file(s) took " + processing 
+                + "ms, waited " + waited + "ms at the end, " + Math.max(0, processing - waited) 
+                + "ms overlapped with tests execution");
+    }
+
+}
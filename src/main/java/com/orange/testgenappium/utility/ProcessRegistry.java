@@ -0,0 +1,220 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.launcher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Registry of all child processes started by APTR (appium, pabot, rebot). 
+ * They can be stopped all together (with their own children) at the end of 
+ * the run or on Ctrl-C, instead of killing all node processes of the host.
+ * 
+ * Their pids are also written in runner/children.pids, so if APTR is killed
+ * hard, the next start only kills processes it started itself.
+ * 
+ * @author bastienjalbert
+ */
+public class ProcessRegistry {
+
+    // running child processes and their description (ex: "appium Device1")
+    private static final Map<Process, String> PROCESSES = new ConcurrentHashMap<>();
+
+    // when true, no new process can be started
+    private static volatile boolean shuttingDown = false;
+
+    /**
+     * Start a process and register it
+     * @param pb the process to start
+     * @param description short description used in logs
+     * @return the started process
+     * @throws IOException if the process can't be started, or if APTR is stopping
+     */
+    public static Process start(ProcessBuilder pb, String description) throws IOException {
+        if (shuttingDown) {
+            throw new IOException("APTR is stopping, " + description + " not started");
+        }
+        Process p = pb.start();
+        PROCESSES.put(p, description);
+        savePids();
+        // forget the process as soon as it ends
+        p.onExit().thenRun(() -> {
+            PROCESSES.remove(p);
+            savePids();
+        });
+        return p;
+    }
+
+    /**
+     * @return true if APTR is stopping its child processes
+     */
+    public static boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    /**
+     * Stop all registered processes and their children : they are all asked
+     * to stop at same time, and killed if they are still alive after the 
+     * grace period. No process can be started after this call.
+     * @param grace time (ms) given to processes to stop by themselves
+     */
+    public static void stopAll(long grace) {
+        shuttingDown = true;
+        stop(PROCESSES.keySet().stream().map(Process::toHandle).collect(Collectors.toList()), grace);
+    }
+
+    /**
+     * Stop one process and its children (a pabot on a quarantined device, ...)
+     * @param process the process to stop
+     * @param grace time (ms) given to the process to stop by itself
+     */
+    public static void stop(Process process, long grace) {
+        stop(Arrays.asList(process.toHandle()), grace);
+    }
+
+    /**
+     * Stop processes left by a previous APTR execution (listed in pid file)
+     * @param grace time (ms) given to processes to stop by themselves
+     */
+    public static void killLeftovers(long grace) {
+        File pidFile = pidFile();
+        if (pidFile == null || !pidFile.exists()) {
+            return;
+        }
+
+        List<ProcessHandle> leftovers = new ArrayList<>();
+        try {
+            // each line : pid startInstant(ms) description
+            for (String line : Files.readAllLines(pidFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 2) {
+                    continue;
+                }
+                long pid = Long.parseLong(parts[0]);
+                long started = Long.parseLong(parts[1]);
+                // the pid may have been reused by another process since : 
+                // without start instants (-1) the process can't be identified
+                Optional<ProcessHandle> handle = ProcessHandle.of(pid);
+                if (started != -1 && handle.isPresent() && startInstant(handle.get()) == started) {
+                    leftovers.add(handle.get());
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading children pid file : ", ex.getLocalizedMessage()));
+        }
+
+        if (!leftovers.isEmpty()) {
+            System.out.println("INFO : Stopping " + leftovers.size() + " process(es) left by a previous execution");
+            stop(leftovers, grace);
+        }
+        pidFile.delete();
+    }
+
+    // stop processes (and their children), force after grace period
+    private static void stop(List<ProcessHandle> processes, long grace) {
+        if (processes.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        // children have to be listed before their parent stops
+        List<ProcessHandle> handles = new ArrayList<>();
+        for (ProcessHandle process : processes) {
+            process.descendants().forEach(handles::add);
+            handles.add(process);
+        }
+
+        // ask everybody to stop (SIGTERM), without waiting
+        handles.forEach(ProcessHandle::destroy);
+
+        long deadline = start + grace;
+        for (ProcessHandle handle : handles) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                handle.onExit().get(remaining, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException ex) {
+                break;
+            }
+        }
+
+        // kill processes still alive
+        int forced = 0;
+        for (ProcessHandle handle : handles) {
+            if (handle.isAlive()) {
+                handle.destroyForcibly();
+                forced++;
+            }
+        }
+
+        System.out.println("INFO : " + handles.size() + " child process(es) stopped in " 
+                + (System.currentTimeMillis() - start) + "ms (" + forced + " killed)");
+    }
+
+    // write pids of running processes into the pid file
+    private static synchronized void savePids() {
+        File pidFile = pidFile();
+        if (pidFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<Process, String> process : PROCESSES.entrySet()) {
+            ProcessHandle handle = process.getKey().toHandle();
+            lines.add(handle.pid() + " " + startInstant(handle) + " " + process.getValue());
+        }
+        try {
+            Files.write(pidFile.toPath(), lines, StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing children pid file : ", ex.getLocalizedMessage()));
+        }
+    }
+
+    // start of the process (ms since epoch), -1 if the OS doesn't give it
+    private static long startInstant(ProcessHandle handle) {
+        return handle.info().startInstant().map(instant -> instant.toEpochMilli()).orElse(-1L);
+    }
+
+    private static File pidFile() {
+        return launcher.RUNNER_PATH != null ? new File(launcher.RUNNER_PATH + "/children.pids") : null;
+    }
+
+}
@@ -0,0 +1,602 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.IMG_PATH;
+import static com.orange.testgenappium.launcher.PATH_TO_TESTS;
+import static com.orange.testgenappium.launcher.RUNNER_PATH;
+import static com.orange.testgenappium.launcher.WORKING_PATH;
+import com.orange.testgenappium.model.Device;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.namespace.QName;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.XMLEvent;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Cache of passed results (--resultcache BUILD_ID), stored in runner/cache.
+ * The key of a (suite, device) pair is a hash of the .robot file, of its 
+ * resource/library/variables imports, of the device udid and .dat file and of
+ * the app build ID (not of the device index, which changes when devices are 
+ * added or removed). When a key has already passed, the processed output and 
+ * its screenshots are restored instead of running pabot (renamed for the 
+ * current device index), and all tests of this output get the tag 
+ * "aptr-cached" in the final report.
+ * 
+ * @author bastienjalbert
+ */
+public class ResultCache {
+
+    // tag added to restored tests
+    public static final String CACHED_TAG = "aptr-cached";
+
+    // Resource, Library or Variables setting, and its value (first argument)
+    private static final Pattern IMPORT_PATTERN = 
+            Pattern.compile("^\\|?\\s*(?:Resource|Library|Variables)(?:\\s{2,}|\\s*\\t|\\s+\\|\\s+)([^\\t|]+?)(?:\\s{2,}.*|\\s*\\t.*|\\s+\\|.*)?$");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // images linked into messages of an output
+    private static final Pattern IMG_PATTERN = Pattern.compile("(?:src|href)=\"([^\"]*)\"");
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        // a message is read at once, to rename the images it links
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    // key of each pair of the run ("index/suite name" -> key), empty if the cache isn't used
+    private static final Map<String, String> KEYS = new ConcurrentHashMap<>();
+
+    // pairs executed (not restored) in this run, stored at the end if they passed
+    private static final List<String[]> EXECUTED = new ArrayList<>();
+
+    // pairs restored by restore tasks, journaled once all tasks succeeded, 
+    // deleted otherwise
+    private static final List<Restored> RESTORED = Collections.synchronizedList(new ArrayList<>());
+
+    // screenshots copied into the img directory by restore tasks (name -> true
+    // if the file didn't exist before), the same screenshot is copied only once
+    private static final Map<String, Boolean> COPIED = new ConcurrentHashMap<>();
+
+    // time given to restore tasks to stop when the cache fails (s)
+    private static final long CANCEL_TIMEOUT = 60;
+
+    // file of a cache entry giving the device index of the stored output
+    private static final String INDEX_FILE = "index";
+
+    // tests of the pairs restored for this run (shown by the status server)
+    private static int restoredPassed = 0;
+    private static int restoredFailed = 0;
+
+    // a pair restored from the cache
+    private static final class Restored {
+        final int deviceIndex;
+        final String unit;
+        final String outputPath;
+        // null if its output couldn't be written
+        final ScreenshotUpdater.TestCounts tests;
+
+        Restored(int deviceIndex, String unit, String outputPath, ScreenshotUpdater.TestCounts tests) {
+            this.deviceIndex = deviceIndex;
+            this.unit = unit;
+            this.outputPath = outputPath;
+            this.tests = tests;
+        }
+    }
+
+    /**
+     * Compute keys of all pairs (in parallel) and restore cached results. 
+     * Restored pairs are written in the run journal, so they are skipped.
+     * @param devices_conf devices of this run
+     * @param tests_suites robot test files of this run
+     * @param buildId the app build ID given by the user
+     * @param distribute true if a suite has to be restored on one device only
+     */
+    public static void restore(ArrayList<Device> devices_conf, ArrayList<String> tests_suites, 
+                               String buildId, boolean distribute) {
+        long start = System.currentTimeMillis();
+        clear();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            // hash each file once (suites, and devices .dat)
+            Map<String, Future<String>> suiteHashes = new ConcurrentHashMap<>();
+            for (String suite : tests_suites) {
+                suiteHashes.put(suite, pool.submit(() -> hashSuite(new File(PATH_TO_TESTS, SuiteSplitter.robotFile(suite)))));
+            }
+            List<Future<String>> deviceHashes = new ArrayList<>();
+            for (Device device : devices_conf) {
+                deviceHashes.add(pool.submit(() -> hashFiles(Arrays.asList(new File(device.getConfFilePath())))));
+            }
+
+            for (String suite : tests_suites) {
+                String suiteName = Tools.getOnlyTestNameFromFile(suite);
+                for (int x = 0; x < devices_conf.size(); x++) {
+                    // this device can't run the suite, nothing to restore
+                    if (!SuiteRequirements.matches(suite, x)) {
+                        continue;
+                    }
+                    // a shard only runs some tests of its suite
+                    KEYS.put(x + "/" + suiteName, hash(Arrays.asList(buildId, suite, 
+                            String.join("\n", SuiteSplitter.tests(suite)), suiteHashes.get(suite).get(),
+                            deviceHashes.get(x).get(), devices_conf.get(x).getUdid())));
+                }
+            }
+            long hashing = System.currentTimeMillis() - start;
+
+            // restore cached pairs (in parallel too)
+            List<Future<Boolean>> restored = new ArrayList<>();
+            for (String suite : tests_suites) {
+                String suiteName = Tools.getOnlyTestNameFromFile(suite);
+                // the first device with a cached result is enough
+                if (distribute) {
+                    if (!RunJournal.isCompletedOnAnyDevice(suiteName)) {
+                        restored.add(pool.submit(() -> restoreOnce(devices_conf.size(), suite)));
+                    }
+                    continue;
+                }
+                for (int x = 0; x < devices_conf.size(); x++) {
+                    final int index = x;
+                    // already done (resumed run)
+                    if (RunJournal.isCompleted(index, suiteName)) {
+                        continue;
+                    }
+                    restored.add(pool.submit(() -> restore(index, suite)));
+                }
+            }
+            int hits = 0;
+            for (Future<Boolean> hit : restored) {
+                hits += hit.get() ? 1 : 0;
+            }
+            // all pairs are restored, they can be skipped (by this run and a resumed one)
+            for (Restored pair : RESTORED) {
+                RunJournal.record(pair.deviceIndex, Tools.getOnlyTestNameFromFile(pair.unit), pair.outputPath);
+                RunMetrics.suite(pair.unit, devices_conf.get(pair.deviceIndex), 0, "cached");
+                restoredPassed += pair.tests.passed;
+                restoredFailed += pair.tests.failed;
+            }
+
+            System.out.println("INFO : Result cache : " + hits + "/" + KEYS.size() + " (suite, device) pair(s) restored, keys computed in "
+                    + hashing + "ms, total " + (System.currentTimeMillis() - start) + "ms");
+        } catch (InterruptedException ex) {
+            cancel(pool);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | NoSuchAlgorithmException ex) {
+            cancel(pool);
+            Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on result cache (not used for this run) : ", cause.toString()));
+            System.err.println("ERROR : Result cache can't be used for this run (see error log)");
+        } finally {
+            pool.shutdown();
+            RESTORED.clear();
+            COPIED.clear();
+        }
+    }
+
+    /**
+     * The cache isn't used for this run : stop restore tasks and delete what
+     * they already restored (outputs, and screenshots they created)
+     * @param pool the restore tasks
+     */
+    private static void cancel(ExecutorService pool) {
+        KEYS.clear();
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(CANCEL_TIMEOUT, TimeUnit.SECONDS)) {
+                System.err.println("ERROR : Result cache restore tasks didn't stop, restored files may be left");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (RESTORED) {
+            for (Restored pair : RESTORED) {
+                new File(pair.outputPath).delete();
+            }
+        }
+        for (Map.Entry<String, Boolean> image : COPIED.entrySet()) {
+            if (image.getValue()) {
+                new File(IMG_PATH, image.getKey()).delete();
+            }
+        }
+    }
+
+    /**
+     * Show tests of the restored pairs in the live status, once the status
+     * server has started this run
+     */
+    public static void publish() {
+        if (restoredPassed + restoredFailed > 0) {
+            StatusServer.tests(restoredPassed, restoredFailed, false);
+        }
+    }
+
+    /**
+     * Forget keys of the previous run (the cache is only used if restore is called)
+     */
+    public static void clear() {
+        KEYS.clear();
+        restoredPassed = 0;
+        restoredFailed = 0;
+        synchronized (EXECUTED) {
+            EXECUTED.clear();
+        }
+    }
+
+    /**
+     * A pair has been executed and its output processed, it will be stored 
+     * into the cache at the end of the run if it passed
+     * @param deviceIndex the device index
+     * @param testSuiteName the suite name (without .robot)
+     * @param outputPath the processed output file (outputX.suite.xml)
+     */
+    public static void executed(int deviceIndex, String testSuiteName, String outputPath) {
+        if (KEYS.isEmpty()) {
+            return;
+        }
+        synchronized (EXECUTED) {
+            EXECUTED.add(new String[] { deviceIndex + "/" + testSuiteName, outputPath });
+        }
+    }
+
+    /**
+     * Store passed outputs of this run (and their screenshots) into the cache.
+     * Screenshots have to be processed before (still in the img directory).
+     */
+    public static void storeAll() {
+        List<String[]> executed;
+        synchronized (EXECUTED) {
+            executed = new ArrayList<>(EXECUTED);
+            EXECUTED.clear();
+        }
+        if (executed.isEmpty()) {
+            return;
+        }
+
+        int stored = 0;
+        for (String[] pair : executed) {
+            String key = KEYS.get(pair[0]);
+            String deviceIndex = pair[0].substring(0, pair[0].indexOf('/'));
+            if (key != null && store(key, new File(pair[1]), deviceIndex)) {
+                stored++;
+            }
+        }
+        System.out.println("INFO : Result cache : " + stored + "/" + executed.size() + " executed pair(s) passed and stored");
+    }
+
+    // restore a suite from the first device which has it in cache
+    private static boolean restoreOnce(int devicesCount, String unit) throws IOException, XMLStreamException {
+        for (int x = 0; x < devicesCount; x++) {
+            if (restore(x, unit)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // copy the cached output (tagged) and its screenshots of a pair, if any
+    private static boolean restore(int deviceIndex, String unit) throws IOException, XMLStreamException {
+        String testSuiteName = Tools.getOnlyTestNameFromFile(unit);
+        String key = KEYS.get(deviceIndex + "/" + testSuiteName);
+        if (key == null) {
+            return false;
+        }
+        File entry = new File(cacheDir(), key);
+        File output = new File(entry, "output.xml");
+        if (!output.exists()) {
+            return false;
+        }
+
+        // screenshots are prefixed by the device index of the stored output
+        // (X-Suite Name-appium-screenshot-N.png), not by content ones
+        File indexFile = new File(entry, INDEX_FILE);
+        String storedPrefix = (indexFile.exists() 
+                ? new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8).trim() 
+                : String.valueOf(deviceIndex)) + "-";
+        String prefix = deviceIndex + "-";
+
+        File[] images = new File(entry, "img").listFiles();
+        if (images != null) {
+            for (File image : images) {
+                String name = renamed(image.getName(), storedPrefix, prefix);
+                // deduplicated screenshots (named by content) are shared by
+                // many entries, restore tasks must not copy them at same time
+                Path target = Paths.get(IMG_PATH, name);
+                if (COPIED.putIfAbsent(name, Boolean.FALSE) == null) {
+                    COPIED.put(name, !Files.exists(target));
+                    Files.copy(image.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+        String outputPath = WORKING_PATH + "/output" + deviceIndex + "." + testSuiteName + ".xml";
+        ScreenshotUpdater.TestCounts tests = null;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(outputPath)))) {
+            tests = tagTests(in, out, storedPrefix, prefix);
+        } finally {
+            // journaled (or deleted) by restore when all tasks are done
+            RESTORED.add(new Restored(deviceIndex, unit, outputPath, tests));
+        }
+        return true;
+    }
+
+    // name of a screenshot for another device index
+    private static String renamed(String name, String storedPrefix, String prefix) {
+        return name.startsWith(storedPrefix) ? prefix + name.substring(storedPrefix.length()) : name;
+    }
+
+    // copy a passed output and its screenshots into the cache entry of its key
+    private static boolean store(String key, File output, String deviceIndex) {
+        File entry = new File(cacheDir(), key);
+        File tmp = new File(cacheDir(), key + ".tmp");
+        try {
+            Set<String> images = new HashSet<>();
+            if (!readPassedOutput(output, images) || entry.exists()) {
+                return false;
+            }
+
+            FileUtils.deleteDirectory(tmp);
+            new File(tmp, "img").mkdirs();
+            Files.copy(output.toPath(), new File(tmp, "output.xml").toPath());
+            Files.write(new File(tmp, INDEX_FILE).toPath(), deviceIndex.getBytes(StandardCharsets.UTF_8));
+            for (String image : images) {
+                Path source = Paths.get(IMG_PATH, image);
+                if (Files.isRegularFile(source)) {
+                    Files.copy(source, new File(tmp, "img/" + image).toPath());
+                }
+            }
+            // the entry is complete or doesn't exist
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | XMLStreamException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on storing " + output.getName() + " in result cache : ", ex.toString()));
+            return false;
+        }
+    }
+
+    // true if the root suite passed, and list images linked into messages
+    private static boolean readPassedOutput(File output, Set<String> images) throws IOException, XMLStreamException {
+        boolean passed = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            // depth of the current element (<robot> is 1)
+            int depth = 0;
+            boolean inMsg = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    String name = event.asStartElement().getName().getLocalPart();
+                    inMsg = name.equals("msg");
+                    // status of the root suite
+                    if (depth == 3 && name.equals("status")) {
+                        Attribute status = event.asStartElement().getAttributeByName(new QName("status"));
+                        passed = status != null && status.getValue().equals("PASS");
+                    }
+                } else if (event.isEndElement()) {
+                    depth--;
+                    inMsg = false;
+                } else if (inMsg && event.isCharacters()) {
+                    Matcher m = IMG_PATTERN.matcher(event.asCharacters().getData());
+                    while (m.find()) {
+                        images.add(m.group(1));
+                    }
+                }
+            }
+            reader.close();
+        }
+        return passed;
+    }
+
+    // copy an output, adding the cached tag to all tests and renaming the
+    // screenshots of the stored device index, and count its tests
+    private static ScreenshotUpdater.TestCounts tagTests(InputStream in, OutputStream out, String storedPrefix, 
+                                                         String prefix) throws XMLStreamException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+        // depth of the current element, and depth of the current test (0 if none)
+        int depth = 0;
+        int testDepth = 0;
+        boolean tagged = false;
+        boolean inMsg = false;
+        int passed = 0;
+        int failed = 0;
+
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+                String name = event.asStartElement().getName().getLocalPart();
+                inMsg = name.equals("msg");
+                if (name.equals("test")) {
+                    testDepth = depth;
+                    tagged = false;
+                } else if (testDepth > 0 && depth == testDepth + 1 && name.equals("status")) {
+                    Attribute status = event.asStartElement().getAttributeByName(new QName("status"));
+                    if (status != null && status.getValue().equals("PASS")) {
+                        passed++;
+                    } else if (status != null && status.getValue().equals("FAIL")) {
+                        failed++;
+                    }
+                    if (!tagged) {
+                        // test without tags, add them before its status
+                        writer.add(EVENT_FACTORY.createStartElement("", "", "tags"));
+                        writeTag(writer);
+                        writer.add(EVENT_FACTORY.createEndElement("", "", "tags"));
+                        tagged = true;
+                    }
+                }
+            } else if (event.isEndElement()) {
+                String name = event.asEndElement().getName().getLocalPart();
+                if (depth == testDepth + 1 && name.equals("tags")) {
+                    writeTag(writer);
+                    tagged = true;
+                } else if (depth == testDepth) {
+                    testDepth = 0;
+                }
+                depth--;
+                inMsg = false;
+            } else if (inMsg && event.isCharacters() && !storedPrefix.equals(prefix)) {
+                event = EVENT_FACTORY.createCharacters(renameImages(event.asCharacters().getData(), storedPrefix, prefix));
+            }
+            writer.add(event);
+        }
+
+        writer.flush();
+        writer.close();
+        reader.close();
+        return new ScreenshotUpdater.TestCounts(passed, failed);
+    }
+
+    // rename screenshots linked into a message for another device index
+    private static String renameImages(String msg, String storedPrefix, String prefix) {
+        Matcher m = IMG_PATTERN.matcher(msg);
+        StringBuffer renamed = new StringBuffer();
+        while (m.find()) {
+            String link = m.group().replace(m.group(1), renamed(m.group(1), storedPrefix, prefix));
+            m.appendReplacement(renamed, Matcher.quoteReplacement(link));
+        }
+        m.appendTail(renamed);
+        return renamed.toString();
+    }
+
+    private static void writeTag(XMLEventWriter writer) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", "", "tag"));
+        writer.add(EVENT_FACTORY.createCharacters(CACHED_TAG));
+        writer.add(EVENT_FACTORY.createEndElement("", "", "tag"));
+    }
+
+    // hash of a robot file and of all files it imports (recursively)
+    private static String hashSuite(File robot) throws IOException, NoSuchAlgorithmException {
+        List<File> files = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        collectImports(robot, files, names, new HashSet<>());
+        List<String> parts = new ArrayList<>(names);
+        parts.add(hashFiles(files));
+        return hash(parts);
+    }
+
+    // files imported by a robot/resource file, and names of installed libraries
+    private static void collectImports(File file, List<File> files, List<String> names, 
+                                       Set<String> visited) throws IOException {
+        if (!visited.add(file.getCanonicalPath())) {
+            return;
+        }
+        files.add(file);
+        String extension = Tools.getFileExtension(file);
+        // only robot data can import other files
+        if (!(extension.equals("robot") || extension.equals("resource") || extension.equals("txt"))) {
+            return;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            Matcher m = IMPORT_PATTERN.matcher(line);
+            if (!m.matches()) {
+                continue;
+            }
+            String value = m.group(1).trim().replace("${CURDIR}", file.getParent());
+            File imported = new File(value).isAbsolute() ? new File(value) : new File(file.getParentFile(), value);
+            if (imported.isFile()) {
+                collectImports(imported, files, names, visited);
+            } else {
+                // installed library (AppiumLibrary, ...), only its name is known
+                names.add(value);
+            }
+        }
+    }
+
+    private static String hashFiles(List<File> files) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (File file : files) {
+            digest.update(Files.readAllBytes(file.toPath()));
+            digest.update((byte) 0);
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hash(List<String> parts) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static File cacheDir() {
+        File cache = new File(RUNNER_PATH, "cache");
+        cache.mkdirs();
+        return cache;
+    }
+
+}
@@ -0,0 +1,149 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.OUTPUT_PATH;
+import com.orange.testgenappium.model.Device;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Journal of completed (suite, device) pairs, written in runner/output/journal.txt.
+ * A line is appended (and synced to disk) as soon as the processed output of a 
+ * suite is ready, so a run interrupted by a reboot or a hanging device can be 
+ * resumed (--resume) : completed pairs are skipped and their outputs kept.
+ * 
+ * Line format : udid, device index, suite name and output file, separated by tabs.
+ * 
+ * @author bastienjalbert
+ */
+public class RunJournal {
+
+    private static final String JOURNAL_NAME = "journal.txt";
+
+    // devices of the current run (index -> udid)
+    private static List<Device> devices = new ArrayList<>();
+
+    // completed pairs ("index/suite name")
+    private static final Set<String> COMPLETED = new HashSet<>();
+
+    /**
+     * Start the journal of a run. A new run clears the journal, a resumed run
+     * loads the pairs completed by the previous run (with the same device at
+     * the same index, and a complete robot output still here)
+     * @param devices_conf devices of this run
+     * @param resume true to keep completed pairs
+     */
+    public static synchronized void start(ArrayList<Device> devices_conf, boolean resume) {
+        devices = new ArrayList<>(devices_conf);
+        COMPLETED.clear();
+
+        Path journal = Paths.get(OUTPUT_PATH, JOURNAL_NAME);
+        try {
+            if (!resume) {
+                Files.deleteIfExists(journal);
+                return;
+            }
+            if (!Files.exists(journal)) {
+                System.out.println("INFO : Nothing to resume, no journal in " + OUTPUT_PATH);
+                return;
+            }
+            for (String line : Files.readAllLines(journal, StandardCharsets.UTF_8)) {
+                String[] entry = line.split("\t");
+                // an incomplete line is the last write of a crashed run, ignore it
+                if (entry.length != 4) {
+                    continue;
+                }
+                int index = Integer.parseInt(entry[1]);
+                // a truncated output, or one written by the watchdog (tests 
+                // killed or not executed), has to run again
+                File output = new File(entry[3]);
+                if (index < devices.size() && devices.get(index).getUdid().equals(entry[0])
+                        && Tools.isCompleteOutput(output) && !Watchdog.isFailedOutput(output)) {
+                    COMPLETED.add(index + "/" + entry[2]);
+                }
+            }
+            System.out.println("INFO : Resuming run, " + COMPLETED.size() + " (suite, device) pair(s) already done");
+        } catch (IOException | NumberFormatException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading run journal : ", ex.toString()));
+        }
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @param testSuiteName the suite name (without .robot)
+     * @return true if this suite has already been done on this device
+     */
+    public static synchronized boolean isCompleted(int deviceIndex, String testSuiteName) {
+        return COMPLETED.contains(deviceIndex + "/" + testSuiteName);
+    }
+
+    /**
+     * @param testSuiteName the suite name (without .robot)
+     * @return true if this suite has already been done on one device at least
+     *         (distribution mode)
+     */
+    public static synchronized boolean isCompletedOnAnyDevice(String testSuiteName) {
+        for (int x = 0; x < devices.size(); x++) {
+            if (COMPLETED.contains(x + "/" + testSuiteName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a completed pair to the journal, when its output has been processed.
+     * Pairs failed by the watchdog are not completed, a resumed run executes them.
+     * @param deviceIndex the device index
+     * @param testSuiteName the suite name (without .robot)
+     * @param outputPath the processed output file (outputX.suite.xml)
+     */
+    public static synchronized void record(int deviceIndex, String testSuiteName, String outputPath) {
+        if (deviceIndex >= devices.size() || Watchdog.isFailedOutput(new File(outputPath))) {
+            return;
+        }
+        String line = devices.get(deviceIndex).getUdid() + "\t" + deviceIndex + "\t" 
+                + testSuiteName + "\t" + new File(outputPath).getAbsolutePath() + "\n";
+        try {
+            // DSYNC : the entry is on disk when we return
+            Files.write(Paths.get(OUTPUT_PATH, JOURNAL_NAME), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+            COMPLETED.add(deviceIndex + "/" + testSuiteName);
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing run journal : ", ex.toString()));
+        }
+    }
+
+}
@@ -0,0 +1,432 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.launcher;
+import com.orange.testgenappium.model.Device;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Numbers of a run : duration of each phase (pabot update, devices loading, 
+ * appium start, each suite on each device, screenshots rewriting, rebot, ...)
+ * and counts (tests passed/failed, screenshots, bytes written).
+ * 
+ * At the end of the run they are written to runner/output/metrics.json (all
+ * details) and runner/output/metrics.prom (Prometheus text format, totals by
+ * phase and by device only, to keep a small number of series). With 
+ * --metricsdir, the .prom file is also written (atomically) into this 
+ * directory, for the node exporter textfile collector.
+ * 
+ * @author bastienjalbert
+ */
+public class RunMetrics {
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /**
+     * Calls and total/maximum duration of a phase
+     */
+    private static class Phase {
+
+        long count = 0;
+        long totalMs = 0;
+        long maxMs = 0;
+
+        void add(long ms) {
+            count++;
+            totalMs += ms;
+            maxMs = Math.max(maxMs, ms);
+        }
+    }
+
+    /**
+     * One execution of a suite (or shard, retry) on a device
+     */
+    private static class SuiteRun {
+
+        final String suite;
+        final String device;
+        final String udid;
+        final long durationMs;
+        final String result;
+
+        SuiteRun(String suite, Device device, long durationMs, String result) {
+            this.suite = suite;
+            this.device = device.getName();
+            this.udid = device.getUdid();
+            this.durationMs = durationMs;
+            this.result = result;
+        }
+    }
+
+    // phases done once before the runs (kept for all the runs of a daemon)
+    private static final Map<String, Phase> SETUP_PHASES = new LinkedHashMap<>();
+
+    // phases of the current run
+    private static final Map<String, Phase> PHASES = new LinkedHashMap<>();
+
+    private static final List<SuiteRun> SUITES = new ArrayList<>();
+
+    private static final Map<String, Long> COUNTERS = new LinkedHashMap<>();
+
+    private static long runStart = System.currentTimeMillis();
+
+    private static List<Device> devices = new ArrayList<>();
+
+    /**
+     * Forget the previous run (setup phases are kept)
+     * @param devices_conf devices of the run
+     */
+    public static synchronized void startRun(List<Device> devices_conf) {
+        PHASES.clear();
+        SUITES.clear();
+        COUNTERS.clear();
+        runStart = System.currentTimeMillis();
+        devices = new ArrayList<>(devices_conf);
+    }
+
+    /**
+     * Add a duration to a phase done once for all runs (pabot update, appium start, ...)
+     * @param phase the phase name
+     * @param ms its duration
+     */
+    public static synchronized void setupPhase(String phase, long ms) {
+        SETUP_PHASES.computeIfAbsent(phase, p -> new Phase()).add(ms);
+    }
+
+    /**
+     * Add a duration to a phase of the run (rebot, screenshot_rewrite, ...)
+     * @param phase the phase name
+     * @param ms its duration
+     */
+    public static synchronized void phase(String phase, long ms) {
+        PHASES.computeIfAbsent(phase, p -> new Phase()).add(ms);
+    }
+
+    /**
+     * Record the execution of a suite on a device
+     * @param unit the robot file (or shard, retry)
+     * @param device the device
+     * @param ms its duration
+     * @param result "executed", "timeout", "interrupted", "retry" or "cached"
+     */
+    public static synchronized void suite(String unit, Device device, long ms, String result) {
+        SUITES.add(new SuiteRun(unit, device, ms, result));
+        phase("suite", ms);
+    }
+
+    /**
+     * Add a value to a counter
+     * @param counter the counter name
+     * @param value the value to add
+     */
+    public static synchronized void count(String counter, long value) {
+        COUNTERS.merge(counter, value, Long::sum);
+    }
+
+    /**
+     * Count tests of the final output and write metrics files
+     * @param succeeded true if the final output has been generated
+     */
+    public static void write(boolean succeeded) {
+        long end = System.currentTimeMillis();
+        countTests(new File(launcher.WORKING_PATH, "output-final.xml"));
+        count("bytes_written", directorySize(new File(launcher.OUTPUT_PATH)));
+
+        String json;
+        String prometheus;
+        synchronized (RunMetrics.class) {
+            json = toJson(succeeded, end);
+            prometheus = toPrometheus(succeeded, end);
+        }
+        try {
+            Files.write(new File(launcher.OUTPUT_PATH, "metrics.json").toPath(), json.getBytes(StandardCharsets.UTF_8));
+            Files.write(new File(launcher.OUTPUT_PATH, "metrics.prom").toPath(), prometheus.getBytes(StandardCharsets.UTF_8));
+            if (launcher.METRICS_DIR != null) {
+                // the collector must never read a half written file
+                String name = "aptr_" + launcher.TESTS_NAME.replaceAll("[^A-Za-z0-9_-]", "_") + ".prom";
+                Path tmp = new File(launcher.METRICS_DIR, "." + name + ".tmp").toPath();
+                Files.write(tmp, prometheus.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, new File(launcher.METRICS_DIR, name).toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            System.out.println("INFO : Metrics written to " + new File(launcher.OUTPUT_PATH, "metrics.json").getAbsolutePath());
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing metrics : ", ex.toString()));
+        }
+    }
+
+    // tests passed/failed (and retried, cached) in the final output
+    private static void countTests(File output) {
+        if (!output.isFile()) {
+            return;
+        }
+        long passed = 0, failed = 0, retried = 0, cached = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            // depth of the current element, and of the current test (0 if none)
+            int depth = 0;
+            int testDepth = 0;
+            boolean inTag = false;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    String name = event.asStartElement().getName().getLocalPart();
+                    if (name.equals("test")) {
+                        testDepth = depth;
+                    } else if (testDepth > 0 && depth == testDepth + 1 && name.equals("status")) {
+                        Attribute status = event.asStartElement().getAttributeByName(new QName("status"));
+                        if (status != null && status.getValue().equals("PASS")) {
+                            passed++;
+                        } else {
+                            failed++;
+                        }
+                    }
+                    inTag = testDepth > 0 && name.equals("tag");
+                } else if (event.isEndElement()) {
+                    if (depth == testDepth) {
+                        testDepth = 0;
+                    }
+                    depth--;
+                    inTag = false;
+                } else if (inTag && event.isCharacters()) {
+                    String tag = event.asCharacters().getData().trim();
+                    retried += tag.equals(TestRetry.RETRIED_TAG) ? 1 : 0;
+                    cached += tag.equals(ResultCache.CACHED_TAG) ? 1 : 0;
+                }
+            }
+            reader.close();
+        } catch (IOException | XMLStreamException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on counting tests for metrics : ", ex.toString()));
+        }
+        count("tests_passed", passed);
+        count("tests_failed", failed);
+        count("tests_retried", retried);
+        count("tests_cached", cached);
+    }
+
+    private static long directorySize(File directory) {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        } catch (IOException | RuntimeException ex) {
+            return 0;
+        }
+    }
+
+    // busy time (ms) and suites count of each device (udid -> {busy, suites})
+    private static Map<String, long[]> devicesBusy() {
+        Map<String, long[]> busy = new LinkedHashMap<>();
+        for (Device device : devices) {
+            busy.put(device.getUdid(), new long[2]);
+        }
+        for (SuiteRun run : SUITES) {
+            long[] device = busy.computeIfAbsent(run.udid, udid -> new long[2]);
+            device[0] += run.durationMs;
+            device[1]++;
+        }
+        return busy;
+    }
+
+    private static String deviceName(String udid) {
+        for (Device device : devices) {
+            if (device.getUdid().equals(udid)) {
+                return device.getName();
+            }
+        }
+        return udid;
+    }
+
+    private static String toJson(boolean succeeded, long end) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"name\": ").append(quote(launcher.TESTS_NAME)).append(",\n");
+        json.append("  \"succeeded\": ").append(succeeded).append(",\n");
+        json.append("  \"start\": ").append(runStart).append(",\n");
+        json.append("  \"end\": ").append(end).append(",\n");
+        json.append("  \"durationMs\": ").append(end - runStart).append(",\n");
+        json.append("  \"devices\": ").append(devices.size()).append(",\n");
+
+        Map<String, Phase> phases = new LinkedHashMap<>(SETUP_PHASES);
+        phases.putAll(PHASES);
+        json.append("  \"phases\": {");
+        String separator = "\n";
+        for (Map.Entry<String, Phase> phase : phases.entrySet()) {
+            json.append(separator).append("    ").append(quote(phase.getKey())).append(": {\"count\": ")
+                .append(phase.getValue().count).append(", \"totalMs\": ").append(phase.getValue().totalMs)
+                .append(", \"maxMs\": ").append(phase.getValue().maxMs).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"devicesBusy\": [");
+        separator = "\n";
+        for (Map.Entry<String, long[]> device : devicesBusy().entrySet()) {
+            json.append(separator).append("    {\"device\": ").append(quote(deviceName(device.getKey())))
+                .append(", \"udid\": ").append(quote(device.getKey()))
+                .append(", \"suites\": ").append(device.getValue()[1])
+                .append(", \"busyMs\": ").append(device.getValue()[0]).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"suites\": [");
+        separator = "\n";
+        for (SuiteRun run : SUITES) {
+            json.append(separator).append("    {\"suite\": ").append(quote(run.suite))
+                .append(", \"device\": ").append(quote(run.device))
+                .append(", \"udid\": ").append(quote(run.udid))
+                .append(", \"durationMs\": ").append(run.durationMs)
+                .append(", \"result\": ").append(quote(run.result)).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"counters\": {");
+        separator = "\n";
+        for (Map.Entry<String, Long> counter : COUNTERS.entrySet()) {
+            json.append(separator).append("    ").append(quote(counter.getKey())).append(": ").append(counter.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static String toPrometheus(boolean succeeded, long end) {
+        String run = "name=\"" + label(launcher.TESTS_NAME) + "\"";
+        StringBuilder prom = new StringBuilder();
+
+        gauge(prom, "aptr_run_success", "1 if the final output has been generated");
+        prom.append("aptr_run_success{").append(run).append("} ").append(succeeded ? 1 : 0).append('\n');
+        gauge(prom, "aptr_run_duration_seconds", "Duration of the run (tests and reports)");
+        prom.append("aptr_run_duration_seconds{").append(run).append("} ").append(seconds(end - runStart)).append('\n');
+        gauge(prom, "aptr_run_end_timestamp_seconds", "End of the run (unix time)");
+        prom.append("aptr_run_end_timestamp_seconds{").append(run).append("} ").append(seconds(end)).append('\n');
+        gauge(prom, "aptr_devices", "Devices of the run");
+        prom.append("aptr_devices{").append(run).append("} ").append(devices.size()).append('\n');
+
+        Map<String, Phase> phases = new LinkedHashMap<>(SETUP_PHASES);
+        phases.putAll(PHASES);
+        gauge(prom, "aptr_phase_duration_seconds", "Total duration of a phase (sum of its calls)");
+        for (Map.Entry<String, Phase> phase : phases.entrySet()) {
+            prom.append("aptr_phase_duration_seconds{").append(run).append(",phase=\"").append(label(phase.getKey()))
+                .append("\"} ").append(seconds(phase.getValue().totalMs)).append('\n');
+        }
+        gauge(prom, "aptr_phase_max_duration_seconds", "Longest call of a phase");
+        for (Map.Entry<String, Phase> phase : phases.entrySet()) {
+            prom.append("aptr_phase_max_duration_seconds{").append(run).append(",phase=\"").append(label(phase.getKey()))
+                .append("\"} ").append(seconds(phase.getValue().maxMs)).append('\n');
+        }
+        gauge(prom, "aptr_phase_calls", "Calls of a phase");
+        for (Map.Entry<String, Phase> phase : phases.entrySet()) {
+            prom.append("aptr_phase_calls{").append(run).append(",phase=\"").append(label(phase.getKey()))
+                .append("\"} ").append(phase.getValue().count).append('\n');
+        }
+
+        Map<String, long[]> busy = devicesBusy();
+        gauge(prom, "aptr_device_busy_seconds", "Time spent by a device running suites");
+        for (Map.Entry<String, long[]> device : busy.entrySet()) {
+            prom.append("aptr_device_busy_seconds{").append(run).append(",device=\"").append(label(deviceName(device.getKey())))
+                .append("\",udid=\"").append(label(device.getKey())).append("\"} ").append(seconds(device.getValue()[0])).append('\n');
+        }
+        gauge(prom, "aptr_device_suites", "Suites executed by a device");
+        for (Map.Entry<String, long[]> device : busy.entrySet()) {
+            prom.append("aptr_device_suites{").append(run).append(",device=\"").append(label(deviceName(device.getKey())))
+                .append("\",udid=\"").append(label(device.getKey())).append("\"} ").append(device.getValue()[1]).append('\n');
+        }
+
+        for (Map.Entry<String, Long> counter : COUNTERS.entrySet()) {
+            String metric = "aptr_" + counter.getKey();
+            gauge(prom, metric, counter.getKey().replace('_', ' ') + " in this run");
+            prom.append(metric).append('{').append(run).append("} ").append(counter.getValue()).append('\n');
+        }
+        return prom.toString();
+    }
+
+    private static void gauge(StringBuilder prom, String metric, String help) {
+        prom.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        prom.append("# TYPE ").append(metric).append(" gauge\n");
+    }
+
+    private static String seconds(long ms) {
+        return String.format(Locale.ROOT, "%.3f", ms / 1000.0);
+    }
+
+    // Prometheus label value
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // JSON string (also used by StatusServer)
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
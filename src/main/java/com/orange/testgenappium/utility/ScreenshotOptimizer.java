@@ -0,0 +1,218 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.IMG_PATH;
+import static com.orange.testgenappium.launcher.SCREENSHOT_COMPRESSION;
+import static com.orange.testgenappium.launcher.THUMBNAIL_WIDTH;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Background stage that recompresses screenshots (lossless, --compressscreenshots)
+ * and creates small thumbnails (--thumbnails) shown in log.html instead of the 
+ * full images. Images are processed on a pool of threads while tests are 
+ * still running.
+ * 
+ * The report step has to call awaitAll() before moving screenshots.
+ * 
+ * @author bastienjalbert
+ */
+public class ScreenshotOptimizer {
+
+    // one thread per core, encoding png is CPU bound
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread t = new Thread(runnable, "screenshot-optimizer");
+                // never keep the JVM alive for this pool
+                t.setDaemon(true);
+                return t;
+            });
+
+    // screenshots already submitted (a stored screenshot can be linked many times)
+    private static final Map<String, Future<?>> SUBMITTED = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger RECOMPRESSED = new AtomicInteger();
+
+    private static final AtomicInteger THUMBNAILS = new AtomicInteger();
+
+    private static final AtomicLong SAVED_BYTES = new AtomicLong();
+
+    /**
+     * @return true if screenshots have to be processed in this run
+     */
+    public static boolean isEnabled() {
+        return SCREENSHOT_COMPRESSION >= 0 || THUMBNAIL_WIDTH > 0;
+    }
+
+    /**
+     * @param fileName the screenshot file name (ex: 0-Suite-appium-screenshot-1.png)
+     * @return the thumbnail file name of this screenshot
+     */
+    public static String thumbnailName(String fileName) {
+        return fileName.substring(0, fileName.length() - ".png".length()) + "-thumb.png";
+    }
+
+    /**
+     * Recompress and/or create the thumbnail of a screenshot of the img
+     * directory in background. Nothing is done if it has already been submitted.
+     * @param fileName the screenshot file name
+     */
+    public static void submit(String fileName) {
+        SUBMITTED.computeIfAbsent(fileName, name -> POOL.submit(() -> optimize(name)));
+    }
+
+    /**
+     * Wait for all submitted screenshots and show how many bytes have been saved
+     */
+    public static void awaitAll() {
+        if (SUBMITTED.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+
+        List<Future<?>> tasks = new ArrayList<>(SUBMITTED.values());
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on screenshot processing : ", ex.getCause().toString()));
+            }
+        }
+
+        System.out.println("INFO : " + tasks.size() + " screenshot(s) processed, " + RECOMPRESSED.get() 
+                + " recompressed (" + SAVED_BYTES.get() / 1024 + " kB saved), " + THUMBNAILS.get() 
+                + " thumbnail(s) created, waited " + (System.currentTimeMillis() - start) + "ms at the end");
+    }
+
+    /**
+     * Forget all processed screenshots (the img directory has been cleared)
+     */
+    public static void clear() {
+        SUBMITTED.clear();
+        RECOMPRESSED.set(0);
+        THUMBNAILS.set(0);
+        SAVED_BYTES.set(0);
+    }
+
+    private static void optimize(String fileName) {
+        File screenshot = new File(IMG_PATH, fileName);
+        File thumbnail = new File(IMG_PATH, thumbnailName(fileName));
+        try {
+            BufferedImage image = ImageIO.read(screenshot);
+            if (image == null) {
+                throw new IOException("not a readable image");
+            }
+
+            if (SCREENSHOT_COMPRESSION >= 0) {
+                // same pixels, only kept if the file is smaller
+                byte[] png = encode(image, SCREENSHOT_COMPRESSION);
+                long saved = screenshot.length() - png.length;
+                if (saved > 0) {
+                    File rewritten = new File(IMG_PATH, fileName + ".tmp");
+                    Files.write(rewritten.toPath(), png);
+                    Files.move(rewritten.toPath(), screenshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    RECOMPRESSED.incrementAndGet();
+                    SAVED_BYTES.addAndGet(saved);
+                }
+            }
+
+            if (THUMBNAIL_WIDTH > 0) {
+                Files.write(thumbnail.toPath(), encode(scale(image, THUMBNAIL_WIDTH), 9));
+                THUMBNAILS.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on processing screenshot " + fileName + " : ", ex.toString()));
+            // log.html links to the thumbnail, the full image is better than nothing
+            if (THUMBNAIL_WIDTH > 0 && screenshot.exists()) {
+                try {
+                    Files.copy(screenshot.toPath(), thumbnail.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    Tools.writeLog(Arrays.asList(date, "Error on copying screenshot " + fileName + " : ", e.toString()));
+                }
+            }
+        }
+    }
+
+    // image resized to this width (never enlarged)
+    private static BufferedImage scale(BufferedImage image, int width) {
+        if (image.getWidth() <= width) {
+            return image;
+        }
+        int height = Math.max(1, image.getHeight() * width / image.getWidth());
+        BufferedImage scaled = new BufferedImage(width, height, 
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    // png file content, level is the deflate level (0 fast to 9 smallest)
+    private static byte[] encode(BufferedImage image, int level) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            // the png writer uses deflate level = 9 * (1 - quality)
+            param.setCompressionQuality(1f - Math.min(9, Math.max(0, level)) / 9f);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+}
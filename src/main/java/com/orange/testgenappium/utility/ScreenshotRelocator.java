@@ -0,0 +1,167 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Move screenshots (.png) to the final directory on a small pool of threads.
+ * A file is moved atomically when possible. If the destination is on another
+ * file system it is copied (FileChannel.transferTo), synced to the disk and 
+ * checked, and then the source is deleted.
+ * 
+ * @author bastienjalbert
+ */
+public class ScreenshotRelocator {
+
+    // moving files is IO bound, a few threads are enough
+    private static final int THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Move all .png files of a directory into another one and show how many 
+     * files and bytes have been moved
+     * @param fromDir directory containing screenshots
+     * @param toDir destination directory
+     * @return number of files that could not be moved
+     */
+    public static int relocate(String fromDir, String toDir) {
+        long start = System.currentTimeMillis();
+
+        File[] listOfFiles = new File(fromDir).listFiles();
+        if (listOfFiles == null) {
+            return 0;
+        }
+
+        AtomicInteger moved = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, THREADS));
+        List<Future<?>> tasks = new ArrayList<>();
+        for (File file : listOfFiles) {
+            // we verify that the file is an image (.png)
+            if (!file.isFile() || !Tools.getFileExtension(file).equals("png")) {
+                continue;
+            }
+            tasks.add(pool.submit(() -> {
+                long size = file.length();
+                if (move(file, new File(toDir, file.getName()))) {
+                    moved.incrementAndGet();
+                    bytes.addAndGet(size);
+                } else {
+                    failed.incrementAndGet();
+                }
+            }));
+        }
+        pool.shutdown();
+
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                failed.incrementAndGet();
+            }
+        }
+
+        RunMetrics.phase("screenshot_relocation", System.currentTimeMillis() - start);
+        RunMetrics.count("screenshots", moved.get());
+        RunMetrics.count("screenshot_bytes", bytes.get());
+        System.out.println("INFO : " + moved.get() + " screenshot(s) moved (" + bytes.get() / 1024 + " kB) in "
+                + (System.currentTimeMillis() - start) + "ms" 
+                + (failed.get() > 0 ? ", " + failed.get() + " FAILED (see error log)" : ""));
+        return failed.get();
+    }
+
+    /**
+     * Move one file, even to another file system. The destination is replaced.
+     * @param from the file to move
+     * @param to the destination file
+     * @return true if the destination is complete and the source deleted
+     */
+    public static boolean move(File from, File to) {
+        Path source = from.toPath();
+        Path target = to.toPath();
+        try {
+            long size = Files.size(source);
+            try {
+                try {
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException ex) {
+                    // same file system, the target is replaced
+                    Files.delete(target);
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (AtomicMoveNotSupportedException ex) {
+                // another file system : copy, the source is deleted once the
+                // copy is on the disk
+                copy(source, target);
+                if (Files.size(target) != size) {
+                    throw new IOException("incomplete copy of " + source + " (" + Files.size(target) 
+                            + "/" + size + " bytes)");
+                }
+                Files.delete(source);
+            }
+            return true;
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on moving " + from.getAbsolutePath() + " to " 
+                    + to.getAbsolutePath() + " : ", ex.toString()));
+            return false;
+        }
+    }
+
+    // copy with channels, the kernel does the copy when it can
+    private static void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, 
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            // content and size, before the source is deleted
+            out.force(true);
+        }
+    }
+
+}
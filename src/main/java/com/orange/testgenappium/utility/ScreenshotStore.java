@@ -0,0 +1,167 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.IMG_PATH;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed store for screenshots (--dedupscreenshots). Each screenshot
+ * is renamed to the hash of its content (sha256.png), so identical images taken
+ * on many devices (or many times) are kept only once in the img directory.
+ * 
+ * Screenshots are stored from the output pipeline, so they are hashed in 
+ * parallel, while tests are still running.
+ * 
+ * @author bastienjalbert
+ */
+public class ScreenshotStore {
+
+    // screenshot file name -> stored (hashed) file name, for the current run
+    private static final Map<String, String> STORED = new ConcurrentHashMap<>();
+
+    // hashed file names written into the img directory : the future is 
+    // completed once the file is there (true), or couldn't be written (false)
+    private static final Map<String, CompletableFuture<Boolean>> UNIQUE = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger DUPLICATES = new AtomicInteger();
+
+    private static final AtomicLong SAVED_BYTES = new AtomicLong();
+
+    /**
+     * Store a screenshot of the img directory under the hash of its content.
+     * The first screenshot with this content is renamed, next ones are deleted.
+     * @param fileName the screenshot file name (ex: 0-Suite-appium-screenshot-1.png)
+     * @return the stored file name, or the same name if the file can't be stored
+     */
+    public static String store(String fileName) {
+        String stored = STORED.get(fileName);
+        if (stored != null) {
+            return stored;
+        }
+
+        Path screenshot = Paths.get(IMG_PATH, fileName);
+        if (!Files.isRegularFile(screenshot)) {
+            // not taken yet (or already stored), keep the link as it is
+            return fileName;
+        }
+
+        try {
+            long size = Files.size(screenshot);
+            String hashed = hash(screenshot) + ".png";
+            while (true) {
+                CompletableFuture<Boolean> claim = new CompletableFuture<>();
+                CompletableFuture<Boolean> first = UNIQUE.putIfAbsent(hashed, claim);
+                if (first == null) {
+                    // first time we see this image
+                    move(screenshot, hashed, claim);
+                    break;
+                }
+                // a duplicate is deleted only once the first copy is stored,
+                // otherwise this copy is stored instead
+                if (first.join()) {
+                    Files.delete(screenshot);
+                    DUPLICATES.incrementAndGet();
+                    SAVED_BYTES.addAndGet(size);
+                    break;
+                }
+            }
+            STORED.put(fileName, hashed);
+            return hashed;
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on storing screenshot " + fileName + " : ", ex.toString()));
+            return fileName;
+        }
+    }
+
+    // rename a screenshot to its hashed name, then tell duplicates waiting for it
+    private static void move(Path screenshot, String hashed, CompletableFuture<Boolean> claim) throws IOException {
+        try {
+            Files.move(screenshot, screenshot.resolveSibling(hashed));
+        } catch (FileAlreadyExistsException ex) {
+            // stored by the interrupted run (resume), same content
+            claim.complete(true);
+            Files.delete(screenshot);
+            return;
+        } catch (IOException | RuntimeException ex) {
+            // not stored, next duplicates must not point to it
+            UNIQUE.remove(hashed, claim);
+            claim.complete(false);
+            throw ex;
+        }
+        claim.complete(true);
+    }
+
+    /**
+     * Show how many screenshots have been deduplicated, if the store was used
+     */
+    public static void report() {
+        if (STORED.isEmpty()) {
+            return;
+        }
+        System.out.println("INFO : " + STORED.size() + " screenshot(s) stored as " + UNIQUE.size()
+                + " unique image(s), " + DUPLICATES.get() + " duplicate(s) removed (" 
+                + SAVED_BYTES.get() / 1024 + " kB saved)");
+    }
+
+    /**
+     * Forget all stored screenshots (the img directory has been cleared)
+     */
+    public static void clear() {
+        STORED.clear();
+        UNIQUE.clear();
+        DUPLICATES.set(0);
+        SAVED_BYTES.set(0);
+    }
+
+    // sha-256 of the file content, in hexadecimal
+    private static String hash(Path file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+}
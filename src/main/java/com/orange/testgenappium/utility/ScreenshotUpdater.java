@@ -20,26 +20,30 @@ CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 */
 package com.orange.testgenappium.utility;
 
+import static com.orange.testgenappium.launcher.DEDUP_SCREENSHOTS;
+import static com.orange.testgenappium.launcher.THUMBNAIL_WIDTH;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
  * Functions to correct image url (<code><img src="...">...</code>) into xml outputs
@@ -47,13 +51,44 @@ import org.xml.sax.SAXException;
  * not doing parallelization. So we need to edit the src attribute to see screenshots
  * for all tests and on all devices.
  * 
+ * Output files are streamed (StAX cursor API) : the content is copied straight
+ * through and only screenshot messages are rewritten, so memory stays flat 
+ * whatever the size of the output file.
+ * 
  * @author bastienjalbert
  */
 public class ScreenshotUpdater {
     
+    // find the (last) src="..." value into a message
+    private static final Pattern SRC_PATTERN = Pattern.compile(".*(?:src=\\\")(.*?)(?:\\\").*");
+    
+    // find the appium screenshot number into a file name
+    private static final Pattern SCREENSHOT_PATTERN = Pattern.compile(".*appium-screenshot-([0-9]*).png.*");
+    
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
     
-    // used to change image file name in reports
-    private static Node iterateNode = null;
+    // characters encoded at once into the rewritten output
+    private static final int WRITE_BUFFER = 64 * 1024;
+    
+    /**
+     * Passed and failed tests of the root suite of a rewritten output
+     */
+    static final class TestCounts {
+        final int passed;
+        final int failed;
+
+        TestCounts(int passed, int failed) {
+            this.passed = passed;
+            this.failed = failed;
+        }
+    }
+    
+    static {
+        // robot outputs never use a DTD, don't try to resolve anything
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
 
     
     /**
@@ -62,132 +97,220 @@ public class ScreenshotUpdater {
      * @param device_index the device index during test
      * @param testSuiteName the test name related to the output file
      * 
-     * @return true if corrections have been done, false otherwhise (exception/error) 
+     * @return the tests of the output if corrections have been done, null otherwhise (exception/error) 
      */
-    protected static boolean reportImagesUpdaters(String resultsAbsPath, int device_index, String testSuiteName) {
+    protected static TestCounts reportImagesUpdaters(String resultsAbsPath, int device_index, String testSuiteName) {
+
+        // The test suite name is like this : Test_Suite_Name
+        // but screenshots are name like this : 0.Test Suite Name...png
+        // So we need to replace underscores by spaces
+        testSuiteName = testSuiteName.replace("_", " ");
+
+        File source = new File(resultsAbsPath);
+        // the new xml output is written next to the old one, and then replace it
+        File rewritten = new File(resultsAbsPath + ".tmp");
+        TestCounts tests;
 
-        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-         
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(source.toPath()));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(rewritten.toPath()))) {
+                tests = rewrite(in, out, device_index, testSuiteName);
+            }
+            Files.move(rewritten.toPath(), source.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return tests;
+        } catch (final XMLStreamException e) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on parsing XML (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
+        } catch (final IOException e) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error of IO (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
+        }
+        rewritten.delete();
+        return null;
+    }
 
-            Document document = builder.parse(new File(resultsAbsPath));
+    /**
+     * Copy an output.xml from in to out, changing all image path of the tests
+     * of the root suite (<code>robot/suite/test</code>) to custom pabot results
+     * 
+     * @param in the original output.xml
+     * @param out where the updated output.xml is written
+     * @param deviceIndex the current device index
+     * @param testSuiteName and the current test suite name (with spaces)
+     * @return passed and failed tests of the root suite
+     * @throws XMLStreamException 
+     * @throws IOException 
+     */
+    static TestCounts rewrite(InputStream in, OutputStream out, int deviceIndex, 
+                        String testSuiteName) throws XMLStreamException, IOException {
 
-            // root document (<robot>...</robot> tag)
-            Element racine = document.getDocumentElement(); 
-            // get all childs nodes from <robot>...</robot> tag
-            NodeList racineNoeuds = racine.getChildNodes();
+        XMLStreamReader reader = INPUT_FACTORY.createXMLStreamReader(in);
+        XMLStreamWriter writer = null;
+        try {
+            // the JDK writer encodes much faster into a Writer than into a stream
+            Writer encoder = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), WRITE_BUFFER);
+            writer = OUTPUT_FACTORY.createXMLStreamWriter(encoder);
+            // the reader starts on the xml declaration
+            writer.writeStartDocument("UTF-8", reader.getVersion() != null ? reader.getVersion() : "1.0");
 
-            // root suite tag (<suite id="s1" name="Suites">)
-            NodeList suiteNodes = null;
+            // depth of the current element (<robot> is 1)
+            int depth = 0;
+            // are we into the root suite (<suite id="s1" name="Suites">)
+            boolean inRootSuite = false;
+            // depth of the <test> tag we're into (0 if we're not into a test)
+            int testDepth = 0;
+            // content of the current <msg> tag, null if we're not into a message
+            StringBuilder msg = null;
+            // tests of the root suite, for the status server
+            int passed = 0;
+            int failed = 0;
 
-            // iterate into root node
-            // try to find root suite tag
-            for (int i = 0; i < racineNoeuds.getLength(); i++) {
-                // if we're into a suite tag continue to parse :)
-                if (racineNoeuds.item(i).getNodeType() == Node.ELEMENT_NODE
-                        && racineNoeuds.item(i).getNodeName().equals("suite")) {
-                    suiteNodes = racineNoeuds.item(i).getChildNodes(); 
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        String name = reader.getLocalName();
+                        if (depth == 2 && name.equals("suite")) {
+                            inRootSuite = true;
+                        } else if (depth == 3 && inRootSuite && name.equals("test")) {
+                            testDepth = depth;
+                        } else if (testDepth != 0 && name.equals("msg")) {
+                            msg = new StringBuilder();
+                        } else if (testDepth != 0 && depth == testDepth + 1 && name.equals("status")) {
+                            if ("PASS".equals(reader.getAttributeValue(null, "status"))) {
+                                passed++;
+                            } else {
+                                failed++;
+                            }
+                        }
+                        copyStartElement(reader, writer);
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.SPACE:
+                    case XMLStreamConstants.CDATA:
+                        if (msg != null) {
+                            // keep the message until its end tag, it can come in many parts
+                            msg.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (msg != null) {
+                            String text = msg.toString();
+                            // check if the message contains an appium screenshot
+                            if (text.contains("appium-screenshot")) {
+                                text = updateImgFileName(text, deviceIndex, testSuiteName);
+                            }
+                            if (!text.isEmpty()) {
+                                writer.writeCharacters(text);
+                            }
+                            msg = null;
+                        }
+                        if (depth == testDepth) {
+                            testDepth = 0;
+                        } else if (depth == 2) {
+                            inRootSuite = false;
+                        }
+                        depth--;
+                        writer.writeEndElement();
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        writer.writeComment(reader.getText());
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                        break;
+                    case XMLStreamConstants.END_DOCUMENT:
+                        writer.writeEndDocument();
+                        break;
+                    default:
+                        break;
                 }
             }
-             
-            
-            // one iteration = one device test suite execute by pybot
-            // iterate into <suite id="s1" name="Suites">
-            for (int i = 0; i < suiteNodes.getLength(); i++) {
-                
-                if (suiteNodes.item(i).getNodeType() == Node.ELEMENT_NODE
-                        && suiteNodes.item(i).getNodeName().equals("test")) {
-                    
-                    // initialise the recursive variable 
-                    // iterate into <test id="sx-tx" name="TestSuiteName"> fields 
-                    iterateNode = suiteNodes.item(i);
-                    
-                    // The test suite name is like this : Test_Suite_Name
-                    // but screenshots are name like this : 0.Test Suite Name...png
-                    // So we need to replace underscores by spaces
-                    testSuiteName = testSuiteName.replace("_"," ");
-                    
-                    // update all image file name with the device index and 
-                    // the test suite name
-                    updateImgFileNam(0, device_index, testSuiteName);
-                }
-                
+            writer.flush();
+            encoder.flush();
+            return new TestCounts(passed, failed);
+        } finally {
+            if (writer != null) {
+                writer.close();
             }
+            reader.close();
+        }
+    }
 
-            // write the new xml output file  
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource source = new DOMSource(document);
-
-            StreamResult result = new StreamResult(new File(resultsAbsPath));
-            transformer.transform(source, result);
-
-        } catch (final ParserConfigurationException e) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error on parsing (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
-        } catch (final SAXException e) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error on SAX XML (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
-        } catch (final IOException e) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error of IO (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
-        } catch (TransformerConfigurationException e) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error on Transformer configuration (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
-        } catch (TransformerException e) {
-            String date = new Date().toString();
-            Tools.writeLog(Arrays.asList(date, "Error on Transformer (reportImagesUpdaters function) : ", e.getLocalizedMessage()));
+    // copy the current start element of the reader (name, namespaces, attributes)
+    private static void copyStartElement(XMLStreamReader reader, XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = reader.getPrefix();
+        String namespace = reader.getNamespaceURI();
+        if (namespace == null) {
+            writer.writeStartElement(reader.getLocalName());
+        } else {
+            writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), namespace);
+        }
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            String namespacePrefix = reader.getNamespacePrefix(i);
+            if (namespacePrefix == null || namespacePrefix.isEmpty()) {
+                writer.writeDefaultNamespace(reader.getNamespaceURI(i));
+            } else {
+                writer.writeNamespace(namespacePrefix, reader.getNamespaceURI(i));
+            }
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributeNamespace = reader.getAttributeNamespace(i);
+            if (attributeNamespace == null || attributeNamespace.isEmpty()) {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(reader.getAttributePrefix(i), attributeNamespace, 
+                        reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
         }
-        return true;
     }
 
     /**
-     * Recusivelly change all image path into a test suite for a device Change
-     * all images path to custom pabot results
+     * Change the image path of a screenshot message to custom pabot results
      *
      * custom pabot path is like: X.Y.Z with: X = device id (ex: 0, 1, 2, ...) Y
      * = test suite name (ex: Add_client) Z = default name (ex:
      * appium-screenshot-15.png)
      *
-     * @param level tag level
+     * @param msg the message content (html image)
      * @param deviceIndex the current device index
      * @param testSuiteName and the current test suite name
+     * @return the message with the new image path, or the same message if 
+     *         it doesn't contain a correct appium screenshot
      */
-    public static void updateImgFileNam(int level, int deviceIndex, String testSuiteName) {
-
-        // check if the node is a message (msg) node which contains an appium screenshot
-        if (iterateNode.getNodeType() == Node.ELEMENT_NODE
-                && iterateNode.getNodeName().equals("msg")
-                && iterateNode.getTextContent().contains("appium-screenshot")) {
-            // change href values
-            Pattern p_href = Pattern.compile(".*(?:src=\\\")(.*?)(?:\\\").*");
-            // note that (?:src=\\\") can also be (?:href=\\\") because we use
-            // replace all after to change the content (replace all with appium-screenshot-x.png regex
-            Matcher m_href = p_href.matcher(iterateNode.getTextContent());
-            StringBuffer sb_href = new StringBuffer();
-            /* changes all matches in the String with a correct appium screenshot name 
-               why corrected ? sometimes the screen png is prefixed with the 
-               test suite name */
-            if (m_href.matches()) {
-                // ensure the appium screenshot is correct, otherwise do nothing
-                if (!extractAppiumSimpleScreenshotName(m_href.group(1)).equals("-1")) {
-                    String cleanAppiumScreenName = extractAppiumSimpleScreenshotName(m_href.group(1));
-                    m_href.appendReplacement(sb_href, m_href.group(0).replaceAll(Pattern.quote(m_href.group(1)), deviceIndex + "-" + testSuiteName + "-" + cleanAppiumScreenName));
-                    m_href.appendTail(sb_href);
+    public static String updateImgFileName(String msg, int deviceIndex, String testSuiteName) {
+        // change href values
+        // note that (?:src=\\\") can also be (?:href=\\\") because we use
+        // replace all after to change the content (replace all with appium-screenshot-x.png regex
+        Matcher m_href = SRC_PATTERN.matcher(msg);
+        /* changes all matches in the String with a correct appium screenshot name 
+           why corrected ? sometimes the screen png is prefixed with the 
+           test suite name */
+        if (m_href.matches()) {
+            String cleanAppiumScreenName = extractAppiumSimpleScreenshotName(m_href.group(1));
+            // ensure the appium screenshot is correct, otherwise do nothing
+            if (!cleanAppiumScreenName.equals("error")) {
+                String imgFileName = deviceIndex + "-" + testSuiteName + "-" + cleanAppiumScreenName;
+                // with the screenshot store, point to the image named by its content
+                if (DEDUP_SCREENSHOTS) {
+                    imgFileName = ScreenshotStore.store(imgFileName);
                 }
+                if (ScreenshotOptimizer.isEnabled()) {
+                    ScreenshotOptimizer.submit(imgFileName);
+                }
+                msg = msg.replace(m_href.group(1), imgFileName);
+                // show the thumbnail, the link still opens the full image
+                if (THUMBNAIL_WIDTH > 0) {
+                    msg = msg.replace("src=\"" + imgFileName + "\"", 
+                            "src=\"" + ScreenshotOptimizer.thumbnailName(imgFileName) + "\"")
+                             .replaceAll("width=\"[^\"]*\"", "width=\"" + THUMBNAIL_WIDTH + "px\"");
+                }
+                return msg;
             }
-            // we did the change now in the xml file
-            iterateNode.setTextContent(sb_href.toString());
-
-        }
-        // iterate again and again recursively 
-        NodeList list = iterateNode.getChildNodes();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node childNode = list.item(i);
-            iterateNode = childNode;
-            updateImgFileNam(level + 1, deviceIndex, testSuiteName);
         }
+        return msg;
     }
 
     /**
@@ -200,33 +323,17 @@ public class ScreenshotUpdater {
      * "appium-screenshot-5.png" than output will just be the same
      *
      * @param appiumMsg the input appium screenshot name
-     * @return return the corrected screenshot name, or -1 in failure case
+     * @return return the corrected screenshot name, or "error" in failure case
      */
     public static String extractAppiumSimpleScreenshotName(String appiumMsg) {
         int index = -1;
-        Pattern p_href = Pattern.compile(".*appium-screenshot-([0-9]*).png.*");
-        Matcher m_href = p_href.matcher(iterateNode.getTextContent());
+        Matcher m_href = SCREENSHOT_PATTERN.matcher(appiumMsg);
         // try to find the match
-        if (m_href.matches()) {
+        if (m_href.matches() && !m_href.group(1).isEmpty()) {
             index = Integer.parseInt(m_href.group(1));
         }
 
         return index != -1 ? "appium-screenshot-" + index + ".png" : "error";
     }
 
-    // DEBUG FUNCTION
-    public static void DEBUG_CHILDS(int level, int deviceIndex) {
-        if (iterateNode.getNodeType() == Node.ELEMENT_NODE
-                && iterateNode.getNodeName().equals("msg")
-                && iterateNode.getTextContent().contains("png")) {
-            System.out.println("DEVICE : " + deviceIndex + " MSG : " + iterateNode.getTextContent());
-        }
-        NodeList list = iterateNode.getChildNodes();
-        for (int i = 0; i < list.getLength(); i++) {
-            Node childNode = list.item(i);
-            iterateNode = childNode;
-            DEBUG_CHILDS(level + 1, deviceIndex);
-        }
-    }
-
 }
@@ -0,0 +1,508 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.launcher;
+import com.orange.testgenappium.model.Device;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Live status of the run, on a small HTTP server (--statusport) :
+ * 
+ * <pre>
+ *   GET http://HOST:PORT/status   JSON : phase, suites completed/running/queued,
+ *                                 tests passed/failed, ETA, state and current
+ *                                 suite of each device, last errors
+ *   GET http://HOST:PORT/         the same in a minimal HTML page
+ * </pre>
+ * 
+ * Threads of the run never wait for a request : each change publishes a new
+ * immutable Snapshot (built under the lock of this class only, never the one
+ * of the SuiteQueue or DeviceHealth), and requests only read the last one.
+ * Without --statusport, nothing is recorded.
+ * 
+ * @author bastienjalbert
+ */
+public class StatusServer {
+
+    // errors kept for the status
+    private static final int RECENT_ERRORS = 20;
+
+    // longest error message kept (stack traces are cut)
+    private static final int ERROR_LENGTH = 500;
+
+    // refresh of the HTML page (s)
+    private static final int PAGE_REFRESH = 5;
+
+    /**
+     * A device, never changed once published
+     */
+    private static final class DeviceStatus {
+
+        final String name;
+        final String udid;
+        // "quarantined", "removed" or "expired", null if the device is fine
+        final String health;
+        // suite running on this device, null if none
+        final String suite;
+        // start of the current suite (ms since epoch)
+        final long since;
+        // suites completed by this device
+        final int suites;
+
+        DeviceStatus(String name, String udid, String health, String suite, long since, int suites) {
+            this.name = name;
+            this.udid = udid;
+            this.health = health;
+            this.suite = suite;
+            this.since = since;
+            this.suites = suites;
+        }
+
+        String state() {
+            return health != null ? health : suite != null ? "running" : "idle";
+        }
+    }
+
+    /**
+     * An error written to the log file
+     */
+    private static final class RecentError {
+
+        final long time;
+        final String message;
+
+        RecentError(long time, String message) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Everything shown by the server, never changed once published
+     */
+    private static final class Snapshot {
+
+        final String name = launcher.TESTS_NAME;
+        final String phase = StatusServer.phase;
+        final long start = runStart;
+        final long predictedMs = predicted;
+        final int total = StatusServer.total;
+        final int completed = StatusServer.completed;
+        final int passed = testsPassed;
+        final int failed = testsFailed;
+        final List<DeviceStatus> devices = Collections.unmodifiableList(Arrays.asList(StatusServer.devices.clone()));
+        final List<RecentError> errors = Collections.unmodifiableList(new ArrayList<>(StatusServer.errors));
+        final long updated = System.currentTimeMillis();
+
+        int running() {
+            int running = 0;
+            for (DeviceStatus device : devices) {
+                running += device.suite != null ? 1 : 0;
+            }
+            return running;
+        }
+
+        int queued() {
+            return Math.max(0, total - completed - running());
+        }
+
+        // time left (ms) from the speed so far, or from the prediction
+        // of the suites history before the first suite ends, -1 if unknown
+        long eta(long now) {
+            if (!phase.equals("tests")) {
+                return -1;
+            }
+            long elapsed = now - start;
+            if (completed >= total) {
+                return 0;
+            } else if (completed > 0) {
+                return elapsed * (total - completed) / completed;
+            } else if (predictedMs >= 0) {
+                return Math.max(0, predictedMs - elapsed);
+            }
+            return -1;
+        }
+    }
+
+    // the server is started, changes are recorded
+    private static volatile boolean enabled = false;
+
+    // last published status, read by requests without any lock
+    private static volatile Snapshot current = null;
+
+    // state of the run, only changed under the lock of this class
+    private static String phase = "setup";
+    private static long runStart = System.currentTimeMillis();
+    private static long predicted = -1;
+    private static int total = 0;
+    private static int completed = 0;
+    private static int testsPassed = 0;
+    private static int testsFailed = 0;
+    private static DeviceStatus[] devices = new DeviceStatus[0];
+    private static final ArrayDeque<RecentError> errors = new ArrayDeque<>();
+
+    /**
+     * Start the status server (the run goes on without it if it can't start)
+     * @param port the port, on all interfaces
+     */
+    public static synchronized void start(int port) {
+        HttpServer[] server = new HttpServer[1];
+        // the HttpServer dispatcher thread is a daemon if it's started by a 
+        // daemon thread : the status never keeps APTR alive
+        Thread starter = new Thread(() -> {
+            try {
+                server[0] = HttpServer.create(new InetSocketAddress(port), 0);
+                server[0].createContext("/", StatusServer::handle);
+                server[0].setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                    Thread t = new Thread(runnable, "status-server");
+                    t.setDaemon(true);
+                    return t;
+                }));
+                server[0].start();
+            } catch (IOException ex) {
+                server[0] = null;
+                System.err.println("ERROR : Status server not started on port " + port + " (" + ex.getMessage() + ")");
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on starting status server : ", ex.toString()));
+            }
+        }, "status-server-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (server[0] != null) {
+            enabled = true;
+            current = new Snapshot();
+            System.out.println("INFO : Run status on http://localhost:" + port + "/ (JSON : /status)");
+        }
+    }
+
+    /**
+     * Forget the previous run (daemon) and show the suites of this one
+     * @param devices_conf devices of the run
+     * @param tests_units robot files (and shards) of the run
+     * @param distribute true if each suite runs on one device only
+     * @param predictedMs predicted duration of the tests execution, -1 if unknown
+     */
+    public static void startRun(List<Device> devices_conf, List<String> tests_units, 
+                                boolean distribute, long predictedMs) {
+        if (!enabled) {
+            return;
+        }
+        // suites already done (resumed, cached) are not counted
+        int executions = 0;
+        for (String unit : tests_units) {
+            String name = Tools.getOnlyTestNameFromFile(unit);
+            int todo = 0;
+            for (int x = 0; x < devices_conf.size(); x++) {
+                todo += SuiteRequirements.matches(unit, x) && !RunJournal.isCompleted(x, name) ? 1 : 0;
+            }
+            executions += distribute ? (todo > 0 && !RunJournal.isCompletedOnAnyDevice(name) ? 1 : 0) : todo;
+        }
+        synchronized (StatusServer.class) {
+            phase = "tests";
+            runStart = System.currentTimeMillis();
+            predicted = predictedMs;
+            total = executions;
+            completed = 0;
+            testsPassed = 0;
+            testsFailed = 0;
+            devices = new DeviceStatus[devices_conf.size()];
+            for (int x = 0; x < devices.length; x++) {
+                devices[x] = new DeviceStatus(devices_conf.get(x).getName(), devices_conf.get(x).getUdid(), 
+                                              null, null, 0, 0);
+            }
+            errors.clear();
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * @param name the new phase of the run ("retry", "report", ...)
+     */
+    public static void phase(String name) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (StatusServer.class) {
+            phase = name;
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * A suite starts on some devices
+     * @param devicesIndex indexes of the devices
+     * @param unit the robot file (or shard, retry)
+     */
+    public static void running(int[] devicesIndex, String unit) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (StatusServer.class) {
+            for (int x : devicesIndex) {
+                if (x < devices.length) {
+                    DeviceStatus device = devices[x];
+                    devices[x] = new DeviceStatus(device.name, device.udid, device.health, unit, now, device.suites);
+                }
+            }
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * Suites of some devices ended (or have been stopped)
+     * @param devicesIndex indexes of the devices
+     */
+    public static void idle(int[] devicesIndex) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (StatusServer.class) {
+            for (int x : devicesIndex) {
+                if (x < devices.length) {
+                    DeviceStatus device = devices[x];
+                    devices[x] = new DeviceStatus(device.name, device.udid, device.health, null, 0, device.suites);
+                }
+            }
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * A suite of the run is done on a device (executed, killed or not 
+     * executed because of a timeout)
+     * @param deviceIndex the device index
+     */
+    public static void completed(int deviceIndex) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (StatusServer.class) {
+            completed++;
+            if (deviceIndex < devices.length) {
+                DeviceStatus device = devices[deviceIndex];
+                devices[deviceIndex] = new DeviceStatus(device.name, device.udid, device.health, 
+                                                        device.suite, device.since, device.suites + 1);
+            }
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @param health "quarantined", "removed" or "expired", null if the device is fine again
+     */
+    public static void health(int deviceIndex, String health) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (StatusServer.class) {
+            if (deviceIndex < devices.length) {
+                DeviceStatus device = devices[deviceIndex];
+                devices[deviceIndex] = new DeviceStatus(device.name, device.udid, health, 
+                                                        device.suite, device.since, device.suites);
+            }
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * Tests of a processed output. The output of a retry only has retried 
+     * tests : the passed ones are not failed anymore.
+     * @param passed passed tests
+     * @param failed failed tests
+     * @param retry true if the output comes from a retry of failed tests
+     */
+    public static void tests(int passed, int failed, boolean retry) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (StatusServer.class) {
+            testsPassed += passed;
+            testsFailed += retry ? -passed : failed;
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * @param message an error written to the log file
+     */
+    public static void error(String message) {
+        if (!enabled) {
+            return;
+        }
+        String text = message.trim();
+        if (text.length() > ERROR_LENGTH) {
+            text = text.substring(0, ERROR_LENGTH) + "...";
+        }
+        synchronized (StatusServer.class) {
+            if (errors.size() == RECENT_ERRORS) {
+                errors.removeFirst();
+            }
+            errors.addLast(new RecentError(System.currentTimeMillis(), text));
+            current = new Snapshot();
+        }
+    }
+
+    /**
+     * Send the status (JSON on /status, HTML on /)
+     * @param exchange the request
+     * @throws IOException 
+     */
+    private static void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            Snapshot snapshot = current;
+            String body;
+            if (path.equals("/status")) {
+                exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+                body = toJson(snapshot, System.currentTimeMillis());
+            } else if (path.equals("/")) {
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+                body = toHtml(snapshot, System.currentTimeMillis());
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String toJson(Snapshot snapshot, long now) {
+        long eta = snapshot.eta(now);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"name\": ").append(RunMetrics.quote(snapshot.name)).append(",\n");
+        json.append("  \"phase\": ").append(RunMetrics.quote(snapshot.phase)).append(",\n");
+        json.append("  \"start\": ").append(snapshot.start).append(",\n");
+        json.append("  \"elapsedMs\": ").append(now - snapshot.start).append(",\n");
+        json.append("  \"etaMs\": ").append(eta >= 0 ? String.valueOf(eta) : "null").append(",\n");
+        json.append("  \"updated\": ").append(snapshot.updated).append(",\n");
+        json.append("  \"suites\": {\"total\": ").append(snapshot.total)
+            .append(", \"completed\": ").append(snapshot.completed)
+            .append(", \"running\": ").append(snapshot.running())
+            .append(", \"queued\": ").append(snapshot.queued()).append("},\n");
+        json.append("  \"tests\": {\"passed\": ").append(snapshot.passed)
+            .append(", \"failed\": ").append(snapshot.failed).append("},\n");
+
+        json.append("  \"devices\": [");
+        String separator = "\n";
+        for (DeviceStatus device : snapshot.devices) {
+            json.append(separator).append("    {\"device\": ").append(RunMetrics.quote(device.name))
+                .append(", \"udid\": ").append(RunMetrics.quote(device.udid))
+                .append(", \"state\": ").append(RunMetrics.quote(device.state()))
+                .append(", \"suite\": ").append(device.suite != null ? RunMetrics.quote(device.suite) : "null")
+                .append(", \"suiteMs\": ").append(device.suite != null ? String.valueOf(now - device.since) : "null")
+                .append(", \"completed\": ").append(device.suites).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"errors\": [");
+        separator = "\n";
+        for (RecentError error : snapshot.errors) {
+            json.append(separator).append("    {\"time\": ").append(error.time)
+                .append(", \"message\": ").append(RunMetrics.quote(error.message)).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static String toHtml(Snapshot snapshot, long now) {
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        long eta = snapshot.eta(now);
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">")
+            .append("<meta http-equiv=\"refresh\" content=\"").append(PAGE_REFRESH).append("\">")
+            .append("<title>APTR - ").append(escape(snapshot.name)).append("</title>")
+            .append("<style>body{font-family:sans-serif}td,th{padding:2px 10px;text-align:left}")
+            .append(".running{color:#06c}.quarantined,.removed,.expired{color:#c00}</style></head><body>\n");
+        html.append("<h1>").append(escape(snapshot.name)).append(" : ").append(escape(snapshot.phase)).append("</h1>\n");
+        html.append("<p>Suites : ").append(snapshot.completed).append('/').append(snapshot.total).append(" completed, ")
+            .append(snapshot.running()).append(" running, ").append(snapshot.queued()).append(" queued<br>")
+            .append("Tests : ").append(snapshot.passed).append(" passed, ").append(snapshot.failed).append(" failed<br>")
+            .append("Elapsed : ").append(duration(now - snapshot.start));
+        if (eta >= 0) {
+            html.append(", ETA : ").append(duration(eta)).append(" (").append(time.format(new Date(now + eta))).append(')');
+        }
+        html.append("</p>\n");
+
+        html.append("<table>\n<tr><th>Device</th><th>UDID</th><th>State</th><th>Suite</th><th>Since</th><th>Completed</th></tr>\n");
+        for (DeviceStatus device : snapshot.devices) {
+            html.append("<tr class=\"").append(device.state()).append("\"><td>").append(escape(device.name))
+                .append("</td><td>").append(escape(device.udid))
+                .append("</td><td>").append(device.state())
+                .append("</td><td>").append(device.suite != null ? escape(device.suite) : "")
+                .append("</td><td>").append(device.suite != null ? duration(now - device.since) : "")
+                .append("</td><td>").append(device.suites).append("</td></tr>\n");
+        }
+        html.append("</table>\n");
+
+        if (!snapshot.errors.isEmpty()) {
+            html.append("<h2>Last errors</h2>\n<pre>");
+            for (RecentError error : snapshot.errors) {
+                html.append(time.format(new Date(error.time))).append("  ").append(escape(error.message)).append('\n');
+            }
+            html.append("</pre>\n");
+        }
+        html.append("<p><a href=\"/status\">JSON</a></p>\n</body></html>\n");
+        return html.toString();
+    }
+
+    private static String duration(long ms) {
+        long s = ms / 1000;
+        return s >= 3600 ? String.format("%dh%02dm%02ds", s / 3600, s / 60 % 60, s % 60)
+                         : String.format("%dm%02ds", s / 60, s % 60);
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import com.orange.testgenappium.launcher;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Read the output (stdout + stderr) of a child process in background, until
+ * its end, so the child never blocks on a full pipe and the thread which 
+ * started it only waits for its exit.
+ * 
+ * Lines are written to runner/output/logs/NAME.log, the last ones are kept 
+ * in memory for error messages, and they are shown on the console (prefixed
+ * by the process name) if asked.
+ * 
+ * @author bastienjalbert
+ */
+public class StreamPump {
+
+    // lines kept in memory (for error messages)
+    private static final int TAIL_LINES = 40;
+
+    // one thread for each running process (they only wait for its output)
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(runnable -> {
+        Thread t = new Thread(runnable, "stream-pump");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String logName;
+    private final String consolePrefix;
+    private final ArrayDeque<String> tail = new ArrayDeque<>();
+    private final Future<?> task;
+
+    private File logFile = null;
+    private Writer log = null;
+
+    private StreamPump(Process process, String logName, String consolePrefix) {
+        this.logName = logName;
+        this.consolePrefix = consolePrefix;
+        this.task = POOL.submit(() -> pump(process.getInputStream()));
+    }
+
+    /**
+     * Start reading the output of a process (started with redirectErrorStream)
+     * @param process the child process
+     * @param logName name of its log file (without .log), null for no log file
+     * @param consolePrefix prefix of its lines on the console, null to not show them
+     * @return the pump
+     */
+    public static StreamPump start(Process process, String logName, String consolePrefix) {
+        return new StreamPump(process, logName, consolePrefix);
+    }
+
+    /**
+     * Wait for the end of the output (children of the process may keep it 
+     * open after the process exit, so don't wait forever)
+     * @param timeout maximum time to wait (ms)
+     * @return true if all the output has been read
+     */
+    public boolean await(long timeout) {
+        try {
+            task.get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return last lines of the output
+     */
+    public synchronized List<String> tail() {
+        return new ArrayList<>(tail);
+    }
+
+    /**
+     * @return the output read so far (last lines only)
+     */
+    public String text() {
+        return String.join("\n", tail());
+    }
+
+    /**
+     * Show the last lines of the output on the error output
+     * @param title what happened to the process
+     */
+    public void printTail(String title) {
+        List<String> lines = tail();
+        System.err.println("ERROR : " + title + (lines.isEmpty() ? " (no output)" : ", last output :"));
+        for (String line : lines) {
+            System.err.println("        " + line);
+        }
+    }
+
+    private void pump(InputStream in) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                synchronized (this) {
+                    tail.addLast(line);
+                    if (tail.size() > TAIL_LINES) {
+                        tail.removeFirst();
+                    }
+                }
+                if (consolePrefix != null) {
+                    System.out.println(consolePrefix + line);
+                }
+                write(line);
+                // flush when the process is quiet, not for each line
+                if (!reader.ready()) {
+                    flush();
+                }
+            }
+        } catch (IOException ex) {
+            // the process has been killed
+        } finally {
+            close();
+        }
+    }
+
+    private void write(String line) {
+        // no log file before the workspace is ready (devices preflight)
+        if (logName == null || launcher.OUTPUT_PATH == null) {
+            return;
+        }
+        try {
+            if (log == null) {
+                File logs = new File(launcher.OUTPUT_PATH, "logs");
+                logs.mkdirs();
+                logFile = new File(logs, logName.replaceAll("[^A-Za-z0-9._-]", "_") + ".log");
+                log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(logFile, true), StandardCharsets.UTF_8));
+            }
+            log.write(line);
+            log.write('\n');
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing process log " + logName + " : ", ex.toString()));
+            close();
+        }
+    }
+
+    private void flush() {
+        try {
+            if (log != null) {
+                log.flush();
+                // the output directory is cleared between two runs (daemon) : open it again
+                if (!logFile.exists()) {
+                    close();
+                }
+            }
+        } catch (IOException ex) {
+            close();
+        }
+    }
+
+    private void close() {
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException ex) {
+            // nothing more to write
+        }
+        log = null;
+    }
+
+}
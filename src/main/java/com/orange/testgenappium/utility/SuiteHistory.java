@@ -0,0 +1,317 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.RUNNER_PATH;
+import com.orange.testgenappium.model.Device;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Durations of suites on each device (runner/suite_history.txt), used to start
+ * the longest suites first (LPT) and to predict how long the run will take.
+ * Suites without history are estimated from their file size.
+ * 
+ * The speed factor of a device is measured from its history : the time it 
+ * needs by byte of suite compared to all devices (2.0 : twice slower than the
+ * average device). Estimations from other devices are corrected with it.
+ * 
+ * Line format : suite file, device udid, duration (ms) and date of the last
+ * run (ms since epoch), separated by tabs. A new duration is averaged with the
+ * previous one, so one slow run doesn't change the order too much.
+ * 
+ * @author bastienjalbert
+ */
+public class SuiteHistory {
+
+    private static final String HISTORY_NAME = "suite_history.txt";
+
+    // suite file -> (udid -> duration in ms)
+    private static final Map<String, Map<String, Long>> DURATIONS = new TreeMap<>();
+
+    // suite file -> (udid -> last run, ms since epoch)
+    private static final Map<String, Map<String, Long>> LAST_RUNS = new HashMap<>();
+
+    // average duration (ms) by byte of known suites, -1 if there's no history
+    private static double msByByte = -1;
+
+    // udid -> speed factor (1.0 : average device), only for measured devices
+    private static final Map<String, Double> SPEEDS = new HashMap<>();
+
+    // minimum number of known suites to measure the speed of a device
+    private static final int SPEED_MIN_SUITES = 2;
+
+    /**
+     * Load the history of previous runs
+     */
+    public static synchronized void load() {
+        DURATIONS.clear();
+        LAST_RUNS.clear();
+        SPEEDS.clear();
+        msByByte = -1;
+        Path history = Paths.get(RUNNER_PATH, HISTORY_NAME);
+        if (!Files.exists(history)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(history, StandardCharsets.UTF_8)) {
+                String[] entry = line.split("\t");
+                if (entry.length >= 3) {
+                    DURATIONS.computeIfAbsent(entry[0], suite -> new TreeMap<>())
+                             .put(entry[1], Long.parseLong(entry[2]));
+                }
+                if (entry.length >= 4) {
+                    LAST_RUNS.computeIfAbsent(entry[0], suite -> new HashMap<>())
+                             .put(entry[1], Long.parseLong(entry[3]));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading suite history : ", ex.toString()));
+        }
+
+        // speed of known suites (still here), to estimate new ones from their 
+        // size, and of each device : udid -> {duration, bytes, suites}
+        Map<String, long[]> devices = new HashMap<>();
+        long knownBytes = 0;
+        long knownDuration = 0;
+        for (Map.Entry<String, Map<String, Long>> known : DURATIONS.entrySet()) {
+            long bytes = SuiteSplitter.weight(known.getKey());
+            if (bytes <= 0) {
+                continue;
+            }
+            for (Map.Entry<String, Long> device : known.getValue().entrySet()) {
+                long[] total = devices.computeIfAbsent(device.getKey(), udid -> new long[3]);
+                total[0] += device.getValue();
+                total[1] += bytes;
+                total[2]++;
+                knownDuration += device.getValue();
+                knownBytes += bytes;
+            }
+        }
+        if (knownBytes > 0 && knownDuration > 0) {
+            msByByte = (double) knownDuration / knownBytes;
+            devices.forEach((udid, total) -> {
+                if (total[2] >= SPEED_MIN_SUITES) {
+                    SPEEDS.put(udid, total[0] / (total[1] * msByByte));
+                }
+            });
+        }
+    }
+
+    /**
+     * @param device the device
+     * @return its measured speed factor (2.0 : twice slower than the average 
+     *         device), 1.0 if it's not known
+     */
+    public static synchronized double speedFactor(Device device) {
+        return SPEEDS.getOrDefault(device.getUdid(), 1.0);
+    }
+
+    /**
+     * Show speed factors of devices far from the average one
+     * @param devices_conf devices of the run
+     */
+    public static synchronized void reportSpeeds(ArrayList<Device> devices_conf) {
+        for (Device device : devices_conf) {
+            double speed = speedFactor(device);
+            if (speed < 0.85 || speed > 1.15) {
+                System.out.println("INFO : Measured speed factor of " + device.getName() + " : " 
+                        + String.format("%.2f", speed) + " (1.00 : average device)");
+            }
+        }
+    }
+
+    /**
+     * Write the history (replace the file when it's complete)
+     */
+    public static synchronized void save() {
+        StringBuilder content = new StringBuilder();
+        DURATIONS.forEach((suite, devices) -> devices.forEach((udid, duration) -> 
+                content.append(suite).append('\t').append(udid).append('\t').append(duration).append('\t')
+                       .append(lastRun(suite, udid)).append('\n')));
+        Path history = Paths.get(RUNNER_PATH, HISTORY_NAME);
+        Path tmp = Paths.get(RUNNER_PATH, HISTORY_NAME + ".tmp");
+        try {
+            Files.write(tmp, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, history, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing suite history : ", ex.toString()));
+        }
+    }
+
+    /**
+     * Add the duration of a suite executed on a device
+     * @param suite the robot test file
+     * @param device the device
+     * @param duration the duration (ms)
+     */
+    public static synchronized void record(String suite, Device device, long duration) {
+        DURATIONS.computeIfAbsent(suite, s -> new TreeMap<>())
+                 .merge(device.getUdid(), duration, (previous, last) -> (previous + last) / 2);
+        LAST_RUNS.computeIfAbsent(suite, s -> new HashMap<>()).put(device.getUdid(), System.currentTimeMillis());
+    }
+
+    /**
+     * @param suite the robot test file
+     * @param udid the device udid
+     * @return when the suite ran on this device for the last time (ms since 
+     *         epoch), 0 if never
+     */
+    public static synchronized long lastRun(String suite, String udid) {
+        return LAST_RUNS.getOrDefault(suite, new HashMap<>()).getOrDefault(udid, 0L);
+    }
+
+    /**
+     * Estimated duration of a suite on a device : its history on this device,
+     * or its average on other devices, or its file size (converted with the
+     * average speed of known suites), both corrected by the device speed
+     * @param suite the robot test file
+     * @param device the device
+     * @return the estimated duration (ms), or -1 if nothing is known at all
+     */
+    public static synchronized long predict(String suite, Device device) {
+        Map<String, Long> devices = DURATIONS.get(suite);
+        if (devices != null) {
+            Long duration = devices.get(device.getUdid());
+            if (duration != null) {
+                return duration;
+            }
+            // durations on other devices, as if they had the speed of this one
+            double average = devices.entrySet().stream()
+                    .mapToDouble(other -> other.getValue() / SPEEDS.getOrDefault(other.getKey(), 1.0))
+                    .average().orElse(0);
+            return (long) (average * speedFactor(device));
+        }
+
+        if (msByByte < 0) {
+            return -1;
+        }
+        return (long) (SuiteSplitter.weight(suite) * msByByte * speedFactor(device));
+    }
+
+    /**
+     * Order suites from the longest to the shortest (longest processing time
+     * first). Without any history, suites are ordered by file size. Only 
+     * useful when devices don't wait for each other (work stealing, distribution).
+     * @param tests_suites robot test files
+     * @param devices_conf devices of the run
+     * @return a new list, longest suites first
+     */
+    public static ArrayList<String> longestFirst(ArrayList<String> tests_suites, ArrayList<Device> devices_conf) {
+        Map<String, Long> weights = new HashMap<>();
+        for (String suite : tests_suites) {
+            // -1 while no device can predict it
+            long weight = -1;
+            for (int x = 0; x < devices_conf.size(); x++) {
+                if (SuiteRequirements.matches(suite, x)) {
+                    weight = Math.max(weight, predict(suite, devices_conf.get(x)));
+                }
+            }
+            // nothing known : the biggest file is probably the longest suite
+            weights.put(suite, weight >= 0 ? weight : SuiteSplitter.weight(suite));
+        }
+        ArrayList<String> ordered = new ArrayList<>(tests_suites);
+        // stable sort, same weights keep the alphabetical order
+        ordered.sort(Comparator.comparing(weights::get, Comparator.reverseOrder()));
+        return ordered;
+    }
+
+    /**
+     * Predicted duration of the run, for the pairs which still have to run
+     * @param tests_suites robot test files
+     * @param devices_conf devices of the run
+     * @param workStealing true if devices don't wait for each other between suites
+     * @param distribute true if each suite runs only on the first free device
+     * @return predicted duration (ms), or -1 if a suite can't be estimated
+     */
+    public static long predictMakespan(List<String> tests_suites, ArrayList<Device> devices_conf, 
+                                       boolean workStealing, boolean distribute) {
+        if (distribute) {
+            return predictDistributedMakespan(tests_suites, devices_conf);
+        }
+
+        // time spent by each device, and time of each barrier step
+        long[] deviceTotals = new long[devices_conf.size()];
+        long barrierTotal = 0;
+        for (String suite : tests_suites) {
+            String suiteName = Tools.getOnlyTestNameFromFile(suite);
+            long step = 0;
+            for (int x = 0; x < devices_conf.size(); x++) {
+                if (RunJournal.isCompleted(x, suiteName) || !SuiteRequirements.matches(suite, x)) {
+                    continue;
+                }
+                long duration = predict(suite, devices_conf.get(x));
+                if (duration < 0) {
+                    return -1;
+                }
+                deviceTotals[x] += duration;
+                step = Math.max(step, duration);
+            }
+            barrierTotal += step;
+        }
+        return workStealing ? Arrays.stream(deviceTotals).max().orElse(0) : barrierTotal;
+    }
+
+    // each suite (longest first) goes to the matching device which ends it first
+    private static long predictDistributedMakespan(List<String> tests_suites, ArrayList<Device> devices_conf) {
+        long[] deviceTotals = new long[devices_conf.size()];
+        for (String suite : longestFirst(new ArrayList<>(tests_suites), devices_conf)) {
+            if (RunJournal.isCompletedOnAnyDevice(Tools.getOnlyTestNameFromFile(suite))) {
+                continue;
+            }
+            int chosen = -1;
+            long chosenEnd = Long.MAX_VALUE;
+            for (int x = 0; x < deviceTotals.length; x++) {
+                if (!SuiteRequirements.matches(suite, x)) {
+                    continue;
+                }
+                long duration = predict(suite, devices_conf.get(x));
+                if (duration < 0) {
+                    return -1;
+                }
+                if (deviceTotals[x] + duration < chosenEnd) {
+                    chosen = x;
+                    chosenEnd = deviceTotals[x] + duration;
+                }
+            }
+            // no device for this suite, it won't run
+            if (chosen >= 0) {
+                deviceTotals[chosen] = chosenEnd;
+            }
+        }
+        return Arrays.stream(deviceTotals).max().orElse(0);
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.PATH_TO_TESTS;
+import com.orange.testgenappium.model.Device;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Devices a suite can run on. A suite declares what it needs in its settings 
+ * table :
+ * 
+ * <pre>
+ *   *** Settings ***
+ *   Metadata    Device Tags    tablet, wifi
+ *   Metadata    OS Version     &gt;=8 &lt;12
+ * </pre>
+ * 
+ * or in a sidecar file next to it (Suite_Name.devices), which wins over the
+ * metadata :
+ * 
+ * <pre>
+ *   tags: tablet, wifi
+ *   os: 8-11
+ * </pre>
+ * 
+ * A device has all the tags of its tags variable (--variable tags:tablet,wifi)
+ * and its type. OS versions are compared number by number, only on the 
+ * numbers given by the suite (so "&lt;=9" accepts 9.0.1). Suites without 
+ * requirements run on every device.
+ * 
+ * @author bastienjalbert
+ */
+public class SuiteRequirements {
+
+    private static final String SIDECAR_EXTENSION = ".devices";
+
+    // a version condition : >=8, <12, =7.1, 9 or a range 8-11
+    private static final Pattern CONDITION = Pattern.compile("^(>=|<=|>|<|=)?([0-9]+(?:\\.[0-9]+)*)(?:-([0-9]+(?:\\.[0-9]+)*))?$");
+
+    private static final Pattern VERSION = Pattern.compile("[0-9]+(?:\\.[0-9]+)*");
+
+    private static final Pattern SETTINGS_HEADER = Pattern.compile("^\\|?\\s*\\*+\\s*settings?\\b.*", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern HEADER = Pattern.compile("^\\|?\\s*\\*+.*");
+
+    // robot file -> devices (index) it can run on, only for suites with requirements
+    private static final Map<String, boolean[]> MATCHING = new HashMap<>();
+
+    /**
+     * Read requirements of the suites and find their devices
+     * @param tests_suites robot test files
+     * @param devices_conf devices of the run
+     */
+    public static synchronized void load(ArrayList<String> tests_suites, ArrayList<Device> devices_conf) {
+        MATCHING.clear();
+        for (String suite : tests_suites) {
+            // metadata name -> value (OS Version, Device Tags)
+            Map<String, String> required = new HashMap<>();
+            try {
+                readMetadata(new File(PATH_TO_TESTS, suite), required);
+                readSidecar(new File(PATH_TO_TESTS, Tools.getOnlyTestNameFromFile(suite) + SIDECAR_EXTENSION), required);
+            } catch (IOException ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on reading device requirements of " + suite + " : ", ex.toString()));
+            }
+            if (required.isEmpty()) {
+                continue;
+            }
+
+            Set<String> tags = new LinkedHashSet<>();
+            for (String tag : required.getOrDefault("device tags", "").split("[,\\s]+")) {
+                if (!tag.isEmpty()) {
+                    tags.add(tag.toLowerCase(Locale.ROOT));
+                }
+            }
+            List<String> conditions = new ArrayList<>();
+            for (String condition : required.getOrDefault("os version", "").split("[,\\s]+")) {
+                if (condition.isEmpty()) {
+                    continue;
+                }
+                if (CONDITION.matcher(condition).matches()) {
+                    conditions.add(condition);
+                } else {
+                    System.err.println("ERROR : OS version condition \"" + condition + "\" of " + suite + " is not valid, ignored");
+                }
+            }
+
+            boolean[] devices = new boolean[devices_conf.size()];
+            int count = 0;
+            for (int x = 0; x < devices_conf.size(); x++) {
+                Device device = devices_conf.get(x);
+                devices[x] = device.getTags().containsAll(tags) && osMatches(device.getOs(), conditions);
+                count += devices[x] ? 1 : 0;
+            }
+            MATCHING.put(suite, devices);
+
+            String description = (tags.isEmpty() ? "" : "tags " + tags + " ") 
+                    + (conditions.isEmpty() ? "" : "OS " + conditions);
+            if (count == 0) {
+                System.err.println("ERROR : no device matches " + suite + " (" + description.trim() + "), it won't be executed");
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "No device for suite : ", suite + " (" + description.trim() + ")"));
+            } else if (count < devices_conf.size()) {
+                System.out.println("INFO : " + suite + " only runs on " + count + "/" + devices_conf.size() 
+                        + " devices (" + description.trim() + ")");
+            }
+        }
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @param deviceIndex the device index
+     * @return true if the suite can run on this device
+     */
+    public static synchronized boolean matches(String unit, int deviceIndex) {
+        boolean[] devices = MATCHING.get(SuiteSplitter.robotFile(unit));
+        return devices == null || (deviceIndex < devices.length && devices[deviceIndex]);
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @return true if at least one device of the run can execute the suite
+     */
+    public static synchronized boolean hasDevice(String unit) {
+        boolean[] devices = MATCHING.get(SuiteSplitter.robotFile(unit));
+        if (devices == null) {
+            return true;
+        }
+        for (boolean device : devices) {
+            if (device) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // true if a device OS version satisfies all the conditions
+    private static boolean osMatches(String osVersion, List<String> conditions) {
+        if (conditions.isEmpty()) {
+            return true;
+        }
+        // "7.1.2", "Android 7.1", ... : only the numbers are used
+        Matcher version = osVersion != null ? VERSION.matcher(osVersion) : null;
+        if (version == null || !version.find()) {
+            return false;
+        }
+        String deviceVersion = version.group();
+        for (String condition : conditions) {
+            Matcher m = CONDITION.matcher(condition);
+            m.matches();
+            String operator = m.group(1) != null ? m.group(1) : "=";
+            int compared = compare(deviceVersion, m.group(2));
+            boolean ok;
+            if (m.group(3) != null) {
+                ok = compared >= 0 && compare(deviceVersion, m.group(3)) <= 0;
+            } else {
+                switch (operator) {
+                    case ">=":
+                        ok = compared >= 0;
+                        break;
+                    case "<=":
+                        ok = compared <= 0;
+                        break;
+                    case ">":
+                        ok = compared > 0;
+                        break;
+                    case "<":
+                        ok = compared < 0;
+                        break;
+                    default:
+                        ok = compared == 0;
+                        break;
+                }
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // compare a version to a condition version, on the numbers of the condition only
+    private static int compare(String version, String condition) {
+        String[] numbers = version.split("\\.");
+        String[] expected = condition.split("\\.");
+        for (int i = 0; i < expected.length; i++) {
+            long number = i < numbers.length ? Long.parseLong(numbers[i]) : 0;
+            int compared = Long.compare(number, Long.parseLong(expected[i]));
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        return 0;
+    }
+
+    // "Metadata    Device Tags    tablet" lines of the settings table
+    private static void readMetadata(File robot, Map<String, String> required) throws IOException {
+        boolean inSettings = false;
+        for (String line : Files.readAllLines(robot.toPath(), StandardCharsets.UTF_8)) {
+            if (HEADER.matcher(line).matches()) {
+                inSettings = SETTINGS_HEADER.matcher(line).matches();
+                continue;
+            }
+            if (!inSettings) {
+                continue;
+            }
+            // space separated or pipe separated format
+            String[] cells = line.trim().replaceAll("^\\|\\s*|\\s*\\|$", "").split("\\s{2,}|\\t|\\s+\\|\\s+");
+            if (cells.length >= 3 && cells[0].equalsIgnoreCase("metadata")) {
+                String name = cells[1].trim().toLowerCase(Locale.ROOT);
+                if (name.equals("device tags") || name.equals("os version")) {
+                    required.put(name, String.join(" ", Arrays.copyOfRange(cells, 2, cells.length)));
+                }
+            }
+        }
+    }
+
+    // "tags: tablet" and "os: >=8" lines of the sidecar file (if it exists)
+    private static void readSidecar(File sidecar, Map<String, String> required) throws IOException {
+        if (!sidecar.isFile()) {
+            return;
+        }
+        for (String line : Files.readAllLines(sidecar.toPath(), StandardCharsets.UTF_8)) {
+            int separator = line.indexOf(':');
+            if (line.trim().startsWith("#") || separator < 0) {
+                continue;
+            }
+            String key = line.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(separator + 1).trim();
+            if (key.equals("tags")) {
+                required.put("device tags", value);
+            } else if (key.equals("os")) {
+                required.put("os version", value);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,328 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.IMG_PATH;
+import static com.orange.testgenappium.launcher.PATH_TO_TESTS;
+import static com.orange.testgenappium.launcher.WORKING_PATH;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Split big suites into shards of a few test cases (--splittests), so they 
+ * can run at the same time on many devices (distribution mode). A shard is 
+ * named like a robot file, "Suite_Name.shardK.robot", and runs the real robot 
+ * file with only its tests (robot --test option). 
+ * 
+ * Before reporting, outputs of the shards of a suite are put together again
+ * (combineShards) into one output, so the suite appears once in the report.
+ * 
+ * @author bastienjalbert
+ */
+public class SuiteSplitter {
+
+    // *** Test Cases *** (or *** Test Case ***, *** Tasks ***) table header
+    private static final Pattern TESTS_HEADER = Pattern.compile("^\\|?\\s*\\*+\\s*(?:test\\s*cases?|tasks?)\\b.*", Pattern.CASE_INSENSITIVE);
+
+    // any other table header
+    private static final Pattern HEADER = Pattern.compile("^\\|?\\s*\\*+.*");
+
+    /**
+     * A shard : the robot file to run, only with some tests
+     */
+    private static class Shard {
+
+        final String robotFile;
+        final List<String> tests;
+        // size (bytes) of its tests, to estimate its duration
+        final long weight;
+
+        Shard(String robotFile, List<String> tests, long weight) {
+            this.robotFile = robotFile;
+            this.tests = tests;
+            this.weight = weight;
+        }
+    }
+
+    // shards of the current run, by name
+    private static final Map<String, Shard> SHARDS = new HashMap<>();
+
+    // split suites of the current run : robot file -> its shards names
+    private static final Map<String, List<String>> SPLIT = new HashMap<>();
+
+    /**
+     * Replace suites having more than testsByShard tests by their shards
+     * @param tests_suites robot test files
+     * @param testsByShard maximum number of tests of a shard
+     * @return the list of robot files and shards to execute
+     */
+    public static synchronized ArrayList<String> split(ArrayList<String> tests_suites, int testsByShard) {
+        clear();
+        ArrayList<String> units = new ArrayList<>();
+        for (String suite : tests_suites) {
+            // test name -> size of its lines (bytes)
+            Map<String, Long> tests;
+            try {
+                tests = readTests(new File(PATH_TO_TESTS, suite));
+            } catch (IOException ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on reading tests of " + suite + " (not split) : ", ex.toString()));
+                tests = Collections.emptyMap();
+            }
+            if (testsByShard < 1 || tests.size() <= testsByShard) {
+                units.add(suite);
+                continue;
+            }
+
+            // shards of the same size (+/- 1 test)
+            List<String> names = new ArrayList<>(tests.keySet());
+            int shardsCount = (names.size() + testsByShard - 1) / testsByShard;
+            List<String> shards = new ArrayList<>();
+            int from = 0;
+            for (int k = 1; k <= shardsCount; k++) {
+                int to = from + (names.size() - from) / (shardsCount - k + 1);
+                List<String> shardTests = new ArrayList<>(names.subList(from, to));
+                long weight = 0;
+                for (String test : shardTests) {
+                    weight += tests.get(test);
+                }
+                String shard = Tools.getOnlyTestNameFromFile(suite) + ".shard" + k + ".robot";
+                SHARDS.put(shard, new Shard(suite, shardTests, weight));
+                shards.add(shard);
+                from = to;
+            }
+            SPLIT.put(suite, shards);
+            units.addAll(shards);
+            System.out.println("INFO : " + suite + " (" + names.size() + " tests) split into " + shardsCount + " shards");
+        }
+        return units;
+    }
+
+    /**
+     * Create a shard running again some tests of a suite (or shard), failed
+     * on a device (see TestRetry)
+     * @param unit the robot file or shard
+     * @param tests failed tests to run again
+     * @param deviceIndex device of the failed output
+     * @param round retry number
+     * @return name of the new shard ("Suite_Name.retry1-X.robot")
+     */
+    public static synchronized String retry(String unit, List<String> tests, int deviceIndex, int round) {
+        String retry = Tools.getOnlyTestNameFromFile(unit) + ".retry" + round + "-" + deviceIndex + ".robot";
+        SHARDS.put(retry, new Shard(robotFile(unit), tests, 0));
+        return retry;
+    }
+
+    /**
+     * Forget shards of the previous run
+     */
+    public static synchronized void clear() {
+        SHARDS.clear();
+        SPLIT.clear();
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @return the robot file to run
+     */
+    public static synchronized String robotFile(String unit) {
+        Shard shard = SHARDS.get(unit);
+        return shard != null ? shard.robotFile : unit;
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @return tests to run (empty to run all the tests of the robot file)
+     */
+    public static synchronized List<String> tests(String unit) {
+        Shard shard = SHARDS.get(unit);
+        return shard != null ? shard.tests : Collections.emptyList();
+    }
+
+    /**
+     * Robot reads the value of --test as a glob pattern, so escape its wildcards
+     * (*, ? and [) to only select the test with exactly this name
+     * @param test a test name
+     * @return the --test value matching only this test
+     */
+    public static String testPattern(String test) {
+        StringBuilder pattern = new StringBuilder(test.length());
+        for (char c : test.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[') {
+                pattern.append('[').append(c).append(']');
+            } else {
+                pattern.append(c);
+            }
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @return names of all the tests it runs (empty if they can't be read)
+     */
+    public static List<String> testNames(String unit) {
+        List<String> tests = tests(unit);
+        if (!tests.isEmpty()) {
+            return tests;
+        }
+        try {
+            return new ArrayList<>(readTests(new File(PATH_TO_TESTS, unit)).keySet());
+        } catch (IOException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on reading tests of " + unit + " : ", ex.toString()));
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * @param unit a robot file or a shard
+     * @return its size in bytes (only the size of its tests for a shard)
+     */
+    public static synchronized long weight(String unit) {
+        Shard shard = SHARDS.get(unit);
+        return shard != null ? shard.weight : new File(PATH_TO_TESTS, unit).length();
+    }
+
+    /**
+     * Screenshots of a shard (or a retry) are named like the ones of its suite,
+     * rename them before the next shard of the same suite runs on this device
+     * @param x the device index
+     * @param testSuiteName the shard name (without .robot)
+     */
+    public static void renameShardScreenshots(int x, String testSuiteName) {
+        String robotFile = robotFile(testSuiteName + ".robot");
+        if (robotFile.equals(testSuiteName + ".robot")) {
+            return;
+        }
+        // same names as the image updater : underscores are spaces
+        String prefix = x + "-" + Tools.getOnlyTestNameFromFile(robotFile).replace("_", " ") + "-appium-screenshot-";
+        String shardPrefix = x + "-" + testSuiteName.replace("_", " ") + "-appium-screenshot-";
+        File[] images = new File(IMG_PATH).listFiles((dir, name) -> name.startsWith(prefix));
+        if (images == null) {
+            return;
+        }
+        for (File image : images) {
+            File renamed = new File(IMG_PATH, shardPrefix + image.getName().substring(prefix.length()));
+            if (!image.renameTo(renamed)) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on renaming screenshot of shard : ", image.getAbsolutePath()));
+            }
+        }
+    }
+
+    /**
+     * Put outputs of the shards of each split suite together, into the output 
+     * of the device which executed the first shard (outputX.Suite_Name.xml)
+     * @param devicesCount number of devices
+     */
+    public static synchronized void combineShards(int devicesCount) {
+        for (Map.Entry<String, List<String>> suite : SPLIT.entrySet()) {
+            String testSuiteName = Tools.getOnlyTestNameFromFile(suite.getKey());
+            List<File> outputs = new ArrayList<>();
+            int firstDevice = -1;
+            for (String shard : suite.getValue()) {
+                String shardName = Tools.getOnlyTestNameFromFile(shard);
+                File output = null;
+                for (int x = 0; x < devicesCount && output == null; x++) {
+                    File candidate = new File(WORKING_PATH + "/output" + x + "." + shardName + ".xml");
+                    if (candidate.exists()) {
+                        output = candidate;
+                        firstDevice = firstDevice < 0 ? x : firstDevice;
+                    }
+                }
+                if (output != null) {
+                    outputs.add(output);
+                } else {
+                    System.err.println("ERROR : " + shard + " has not been executed, its tests are missing in the final output");
+                }
+            }
+            if (outputs.isEmpty()) {
+                continue;
+            }
+
+            File combined = new File(WORKING_PATH + "/output" + firstDevice + "." + testSuiteName + ".xml");
+            try {
+                OutputMerger.combine(outputs, combined);
+            } catch (Exception ex) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on combining shards of " + suite.getKey() + " : ", ex.toString()));
+            }
+        }
+    }
+
+    // names of the test cases of a robot file (in file order) and their size
+    private static Map<String, Long> readTests(File robot) throws IOException {
+        Map<String, Long> tests = new LinkedHashMap<>();
+        boolean inTests = false;
+        String current = null;
+        for (String line : Files.readAllLines(robot.toPath(), StandardCharsets.UTF_8)) {
+            if (HEADER.matcher(line).matches()) {
+                inTests = TESTS_HEADER.matcher(line).matches();
+                current = null;
+                continue;
+            }
+            if (!inTests) {
+                continue;
+            }
+            String name = testName(line);
+            if (name != null) {
+                current = name;
+                tests.putIfAbsent(current, 0L);
+            }
+            if (current != null) {
+                tests.merge(current, (long) line.length() + 1, Long::sum);
+            }
+        }
+        return tests;
+    }
+
+    // name of the test starting at this line, null if the line is in a test
+    private static String testName(String line) {
+        String cell;
+        if (line.startsWith("| ")) {
+            // pipe separated format : | Name | ... (an empty first cell, "| | Log",
+            // continues the current test)
+            cell = line.substring(1).split("\\s+\\|", 2)[0];
+        } else if (line.isEmpty() || Character.isWhitespace(line.charAt(0))) {
+            return null;
+        } else {
+            cell = line.split("\\s{2,}|\\t", 2)[0];
+        }
+        cell = cell.trim();
+        if (cell.isEmpty() || cell.startsWith("#") || cell.equals("...")) {
+            return null;
+        }
+        return cell;
+    }
+
+}
@@ -0,0 +1,512 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.launcher.IMG_PATH;
+import static com.orange.testgenappium.launcher.WORKING_PATH;
+import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.threads.PabotThread;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Retry phase (--rerunfailed) : after the main execution, failed tests of each
+ * output are run again (only them, with robot --test), on the same device, or
+ * in distribution mode on any free device matching the suite. Devices run 
+ * their retries in parallel.
+ * 
+ * Like rebot --merge, the last result of a test wins : retried tests replace
+ * the failed ones in the output of the main execution, with the tag 
+ * "aptr-retried" and a message giving the number of retries and the first 
+ * result. Then the status of the suite is computed again from its tests.
+ * 
+ * @author bastienjalbert
+ */
+public class TestRetry {
+
+    // tag added to retried tests
+    public static final String RETRIED_TAG = "aptr-retried";
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newInstance();
+
+    // prefix of screenshots of the first run while a retry runs
+    private static final String HOLD_PREFIX = "retrying-";
+
+    private static final QName NAME = new QName("name");
+    private static final QName STATUS = new QName("status");
+    private static final QName CRITICAL = new QName("critical");
+
+    /**
+     * Failed tests of one output, run again
+     */
+    private static class Retry {
+
+        // device of the output (outputX.Suite_Name.xml)
+        final int deviceIndex;
+        // suite or shard of the output
+        final String unit;
+        // shard of its failed tests
+        final String retryUnit;
+        // device which ran the retry, -1 if it didn't run
+        int executedOn = -1;
+
+        Retry(int deviceIndex, String unit, String retryUnit) {
+            this.deviceIndex = deviceIndex;
+            this.unit = unit;
+            this.retryUnit = retryUnit;
+        }
+    }
+
+    // output path + test name -> number of retries, first result, last status
+    private static final Map<String, Integer> RETRIES = new HashMap<>();
+    private static final Map<String, String> FIRST_RESULTS = new HashMap<>();
+    private static final Map<String, Boolean> PASSED = new HashMap<>();
+
+    /**
+     * Run failed tests again, up to rounds times
+     * @param devices_conf all devices
+     * @param tests_units robot files (and shards) of the run
+     * @param distributed true if a failed test can be retried on any device
+     * @param rounds maximum number of retries of a test
+     */
+    public static void run(ArrayList<Device> devices_conf, ArrayList<String> tests_units, 
+                           boolean distributed, int rounds) {
+        RETRIES.clear();
+        FIRST_RESULTS.clear();
+        PASSED.clear();
+        long start = System.currentTimeMillis();
+
+        for (int round = 1; round <= rounds; round++) {
+            if (ProcessRegistry.isShuttingDown() || Watchdog.runExpired()) {
+                break;
+            }
+            // failed tests are read from processed outputs, and their screenshots
+            // are moved while retries run (see holdScreenshots)
+            OutputPipeline.awaitAll();
+            ScreenshotOptimizer.awaitAll();
+            StatusServer.phase("retry");
+            List<Retry> retries = new ArrayList<>();
+            int failed = collect(devices_conf, tests_units, round, retries);
+            if (retries.isEmpty()) {
+                break;
+            }
+            System.out.println("INFO : Retry " + round + " : " + failed + " failed test(s) of " 
+                    + retries.size() + " output(s) run again");
+
+            execute(devices_conf, retries, distributed);
+
+            OutputPipeline.awaitAll();
+            for (Retry retry : retries) {
+                if (retry.executedOn >= 0) {
+                    merge(retry, devices_conf.get(retry.executedOn).getName());
+                }
+            }
+        }
+
+        if (!RETRIES.isEmpty()) {
+            long passed = PASSED.values().stream().filter(p -> p).count();
+            System.out.println("INFO : " + RETRIES.size() + " failed test(s) retried in " 
+                    + (System.currentTimeMillis() - start) / 1000 + "s, " + passed + " passed on retry");
+        }
+    }
+
+    // failed tests of each output of the run, as retries
+    private static int collect(ArrayList<Device> devices_conf, ArrayList<String> tests_units, 
+                               int round, List<Retry> retries) {
+        int failed = 0;
+        for (String unit : tests_units) {
+            String testSuiteName = Tools.getOnlyTestNameFromFile(unit);
+            for (int x = 0; x < devices_conf.size(); x++) {
+                File output = new File(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml");
+                if (!output.exists()) {
+                    continue;
+                }
+                try {
+                    List<String> tests = readFailedTests(output);
+                    if (!tests.isEmpty()) {
+                        retries.add(new Retry(x, unit, SuiteSplitter.retry(unit, tests, x, round)));
+                        failed += tests.size();
+                    }
+                } catch (IOException | XMLStreamException ex) {
+                    String date = new Date().toString();
+                    Tools.writeLog(Arrays.asList(date, "Error on reading failed tests of " + output + " : ", ex.toString()));
+                }
+            }
+        }
+        return failed;
+    }
+
+    // each device takes retries until none is left for it
+    private static void execute(ArrayList<Device> devices_conf, List<Retry> retries, boolean distributed) {
+        List<Retry> pending = new ArrayList<>(retries);
+        List<Thread> workers = new ArrayList<>();
+        for (int x = 0; x < devices_conf.size(); x++) {
+            final int deviceIndex = x;
+            Thread worker = new Thread(() -> {
+                Retry retry;
+                while (DeviceHealth.isAvailable(deviceIndex) && !Watchdog.deviceExpired(deviceIndex) 
+                        && !ProcessRegistry.isShuttingDown()
+                        && (retry = take(pending, deviceIndex, distributed)) != null) {
+                    runRetry(devices_conf.get(deviceIndex), deviceIndex, retry);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // next retry for a device : its own failed tests first
+    private static Retry take(List<Retry> pending, int deviceIndex, boolean distributed) {
+        synchronized (pending) {
+            Retry chosen = null;
+            for (Retry retry : pending) {
+                if (retry.deviceIndex == deviceIndex) {
+                    chosen = retry;
+                    break;
+                }
+                if (chosen == null && distributed && SuiteRequirements.matches(retry.unit, deviceIndex)) {
+                    chosen = retry;
+                }
+            }
+            pending.remove(chosen);
+            return chosen;
+        }
+    }
+
+    private static void runRetry(Device device, int deviceIndex, Retry retry) {
+        List<File> held = holdScreenshots(deviceIndex, retry.retryUnit);
+        try {
+            long start = System.currentTimeMillis();
+            new PabotThread(new ArrayList<>(Arrays.asList(device)), deviceIndex, retry.retryUnit).run();
+            RunMetrics.suite(retry.retryUnit, device, System.currentTimeMillis() - start, "retry");
+
+            File output = Tools.pabotOutput(deviceIndex);
+            // quarantined device : the first result is kept
+            if (DeviceHealth.takeInterrupted(deviceIndex) || !Tools.isCompleteOutput(output)) {
+                output.delete();
+                System.out.println("INFO : retry of " + retry.unit + " stopped on " + device.getName() + ", first result kept");
+                return;
+            }
+            Tools.preparingOutputToTmp(deviceIndex, Tools.getOnlyTestNameFromFile(retry.retryUnit), true);
+            retry.executedOn = deviceIndex;
+        } finally {
+            releaseScreenshots(held);
+        }
+    }
+
+    /**
+     * The retry writes screenshots with the same names as the first run of 
+     * the suite on this device (X-Suite Name-appium-screenshot-N.png), the 
+     * first ones are moved until the retry screenshots are renamed
+     * @return moved screenshots (with their hold name)
+     */
+    private static List<File> holdScreenshots(int x, String retryUnit) {
+        String prefix = x + "-" + Tools.getOnlyTestNameFromFile(SuiteSplitter.robotFile(retryUnit)).replace("_", " ") 
+                + "-appium-screenshot-";
+        List<File> held = new ArrayList<>();
+        File[] images = new File(IMG_PATH).listFiles((dir, name) -> name.startsWith(prefix));
+        if (images == null) {
+            return held;
+        }
+        for (File image : images) {
+            File hold = new File(IMG_PATH, HOLD_PREFIX + image.getName());
+            if (image.renameTo(hold)) {
+                held.add(hold);
+            }
+        }
+        return held;
+    }
+
+    private static void releaseScreenshots(List<File> held) {
+        for (File hold : held) {
+            File image = new File(IMG_PATH, hold.getName().substring(HOLD_PREFIX.length()));
+            if (!hold.renameTo(image)) {
+                String date = new Date().toString();
+                Tools.writeLog(Arrays.asList(date, "Error on restoring screenshot after retry : ", image.getAbsolutePath()));
+            }
+        }
+    }
+
+    // names of failed (critical) tests of the root suite
+    private static List<String> readFailedTests(File output) throws IOException, XMLStreamException {
+        List<String> failed = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            // depth of the current element (<robot> is 1), name of the current test
+            int depth = 0;
+            String test = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    StartElement element = event.asStartElement();
+                    String name = element.getName().getLocalPart();
+                    if (depth == 3 && name.equals("test")) {
+                        test = attribute(element, NAME);
+                    } else if (depth == 4 && test != null && name.equals("status") && isFailed(element)) {
+                        failed.add(test);
+                    }
+                } else if (event.isEndElement()) {
+                    if (depth == 3) {
+                        test = null;
+                    }
+                    depth--;
+                }
+            }
+            reader.close();
+        }
+        return failed;
+    }
+
+    // tests of the root suite of a retry output : name -> events inside <test>
+    static Map<String, List<XMLEvent>> readTests(File output) throws IOException, XMLStreamException {
+        Map<String, List<XMLEvent>> tests = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()))) {
+            XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+            int depth = 0;
+            List<XMLEvent> test = null;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    depth++;
+                    if (depth == 3 && event.asStartElement().getName().getLocalPart().equals("test")) {
+                        test = new ArrayList<>();
+                        tests.put(attribute(event.asStartElement(), NAME), test);
+                        continue;
+                    }
+                } else if (event.isEndElement()) {
+                    depth--;
+                    if (depth == 2 && test != null) {
+                        test = null;
+                        continue;
+                    }
+                }
+                if (test != null) {
+                    test.add(event);
+                }
+            }
+            reader.close();
+        }
+        return tests;
+    }
+
+    /**
+     * Replace failed tests of the output by their retry (last result wins)
+     * and compute the status of the suite again
+     */
+    private static void merge(Retry retry, String deviceName) {
+        File output = new File(WORKING_PATH + "/output" + retry.deviceIndex + "." 
+                + Tools.getOnlyTestNameFromFile(retry.unit) + ".xml");
+        File retried = new File(WORKING_PATH + "/output" + retry.executedOn + "." 
+                + Tools.getOnlyTestNameFromFile(retry.retryUnit) + ".xml");
+        File merged = new File(output.getPath() + ".retry");
+        try {
+            Map<String, List<XMLEvent>> tests = readTests(retried);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(output.toPath()));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(merged.toPath()))) {
+                replaceTests(in, out, tests, output.getPath(), deviceName);
+            }
+            Files.move(merged.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            retried.delete();
+        } catch (IOException | XMLStreamException ex) {
+            merged.delete();
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on merging retry of " + output + " : ", ex.toString()));
+        }
+    }
+
+    // copy an output, replacing its retried tests
+    static void replaceTests(InputStream in, OutputStream out, Map<String, List<XMLEvent>> tests,
+                             String outputPath, String deviceName) throws XMLStreamException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+
+        int depth = 0;
+        // retry of the current test (null if it's not retried), its status and message
+        List<XMLEvent> retried = null;
+        String key = null;
+        String status = null;
+        StringBuilder message = null;
+        boolean inStatus = false;
+        // a critical test of the suite failed
+        boolean suiteFailed = false;
+
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+                StartElement element = event.asStartElement();
+                String name = element.getName().getLocalPart();
+                if (depth == 3 && name.equals("test")) {
+                    String test = attribute(element, NAME);
+                    retried = tests.get(test);
+                    key = outputPath + "\n" + test;
+                    message = new StringBuilder();
+                } else if (depth == 4 && name.equals("status")) {
+                    inStatus = true;
+                    if (retried == null) {
+                        suiteFailed |= isFailed(element);
+                    } else {
+                        status = attribute(element, STATUS);
+                    }
+                } else if (depth == 3 && name.equals("status")) {
+                    // status of the suite, from its tests (like rebot)
+                    event = withStatus(element, suiteFailed ? "FAIL" : "PASS");
+                }
+            } else if (event.isEndElement()) {
+                depth--;
+                inStatus = false;
+                if (depth == 2 && retried != null) {
+                    // end of a retried test : its new content, then </test>
+                    String firstResult = message.length() > 0 ? status + " : " + message : status;
+                    suiteFailed |= writeRetried(writer, retried, key, firstResult, deviceName);
+                    retried = null;
+                }
+            } else if (inStatus && retried != null && event.isCharacters()) {
+                message.append(event.asCharacters().getData());
+            }
+            // the content of a retried test is replaced
+            if (retried != null && (depth > 3 || (depth == 3 && event.isEndElement()))) {
+                continue;
+            }
+            writer.add(event);
+        }
+
+        writer.flush();
+        writer.close();
+        reader.close();
+    }
+
+    /**
+     * Write the content of a retried test, with the retried tag and the
+     * retries count in its status message (the first result is kept from
+     * the first retry)
+     * @return true if the test failed again
+     */
+    private static boolean writeRetried(XMLEventWriter writer, List<XMLEvent> content, String key,
+                                        String firstResult, String deviceName) throws XMLStreamException {
+        FIRST_RESULTS.putIfAbsent(key, firstResult);
+        int retries = RETRIES.merge(key, 1, Integer::sum);
+
+        int depth = 0;
+        boolean tagged = false;
+        boolean failed = false;
+        StringBuilder message = null;
+        for (XMLEvent event : content) {
+            if (event.isStartElement()) {
+                depth++;
+                StartElement element = event.asStartElement();
+                if (depth == 1 && element.getName().getLocalPart().equals("status")) {
+                    if (!tagged) {
+                        writer.add(EVENT_FACTORY.createStartElement("", "", "tags"));
+                        writeTag(writer);
+                        writer.add(EVENT_FACTORY.createEndElement("", "", "tags"));
+                        tagged = true;
+                    }
+                    failed = isFailed(element);
+                    message = new StringBuilder();
+                }
+            } else if (event.isEndElement()) {
+                String name = event.asEndElement().getName().getLocalPart();
+                if (depth == 1 && name.equals("tags")) {
+                    writeTag(writer);
+                    tagged = true;
+                } else if (depth == 1 && name.equals("status") && message != null) {
+                    if (message.length() > 0) {
+                        message.append("\n\n");
+                    }
+                    message.append("Retried ").append(retries).append(" time(s) by APTR, last result kept (on ")
+                           .append(deviceName).append("). First result : ").append(FIRST_RESULTS.get(key));
+                    writer.add(EVENT_FACTORY.createCharacters(message.toString()));
+                    message = null;
+                }
+                depth--;
+            } else if (message != null && event.isCharacters()) {
+                message.append(event.asCharacters().getData());
+                continue;
+            }
+            writer.add(event);
+        }
+        PASSED.put(key, !failed);
+        return failed;
+    }
+
+    private static void writeTag(XMLEventWriter writer) throws XMLStreamException {
+        writer.add(EVENT_FACTORY.createStartElement("", "", "tag"));
+        writer.add(EVENT_FACTORY.createCharacters(RETRIED_TAG));
+        writer.add(EVENT_FACTORY.createEndElement("", "", "tag"));
+    }
+
+    // a failed critical test (non critical failures don't fail the suite)
+    private static boolean isFailed(StartElement status) {
+        return "FAIL".equals(attribute(status, STATUS)) && !"no".equals(attribute(status, CRITICAL));
+    }
+
+    private static String attribute(StartElement element, QName name) {
+        Attribute attribute = element.getAttributeByName(name);
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    // same element with another status attribute
+    private static StartElement withStatus(StartElement element, String status) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            attributes.add(attribute.getName().equals(STATUS) 
+                    ? EVENT_FACTORY.createAttribute(STATUS, status) : attribute);
+        }
+        return EVENT_FACTORY.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+}
@@ -25,18 +25,24 @@ import com.orange.testgenappium.launcher;
 import static com.orange.testgenappium.launcher.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList; 
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger; 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.apache.commons.io.FileUtils;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
@@ -49,6 +55,10 @@ import org.eclipse.jgit.api.errors.GitAPIException;
 public class Tools {
      
     private static final String CUSTOM_PABOT_REPO_URI = "https://github.com/bastienjalbert/pabot";
+    
+    // start and end of a robot <status> element
+    private static final Pattern STARTTIME_PATTERN = Pattern.compile("<status[^>]*\\sstarttime=\"([^\"]+)\"");
+    private static final Pattern ENDTIME_PATTERN = Pattern.compile("<status[^>]*\\sendtime=\"([^\"]+)\"");
      
     /**
      * Update custom pabot version (for screenshots copy) by cloning git repo
@@ -211,6 +221,9 @@ public class Tools {
             }
         }
 
+        // last errors are shown by the status server (without the date)
+        StatusServer.error(String.join("", toAdd.size() > 1 ? toAdd.subList(1, toAdd.size()) : toAdd));
+
         try {
             Path file = Paths.get(launcher.LOG_FILE_PATH);
             // if log file doesn't exist, just create one
@@ -228,7 +241,7 @@ public class Tools {
     /**
      * Copy outputx.xml file (corresponding to one test suite result on one device)
      * to the tmp directory and editing the outputx.xml to outputx.testSuiteName.xml
-     * Then process output files with image updater 
+     * Then process output files with image updater (in background, see OutputPipeline)
      * @param devices_conf
      * @param testSuiteName 
      */
@@ -239,16 +252,115 @@ public class Tools {
         
         // we have to do this devices_conf.size() times because we have x outputx.xml files
         for(Device device : devices_conf) {
-            // move the old outputX.xml file to the new outputX.TestSuite.xml file
-            File outputFile = new File(OUTPUT_PATH + "/pabot_results/output" + x + ".xml");
-            outputFile.renameTo(new File(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml"));
-            outputFile.delete();
-            // process this file to get updated src of screenshot
-            ScreenshotUpdater.reportImagesUpdaters(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml", x, testSuiteName);
+            preparingOutputToTmp(x, testSuiteName);
             x++;
         }
         
     }
+    
+    /**
+     * Same as preparingOutputsToTmp but only for one device : copy the outputX.xml
+     * file of the device X to the tmp directory as outputX.testSuiteName.xml
+     * and process it with the image updater (in background)
+     * @param x the device index
+     * @param testSuiteName 
+     */
+    public static void preparingOutputToTmp(int x, String testSuiteName) {
+        preparingOutputToTmp(x, testSuiteName, false);
+    }
+
+    /**
+     * Same as preparingOutputToTmp for an output which may come from a retry
+     * @param x the device index
+     * @param testSuiteName 
+     * @param retry true if the output comes from a retry of failed tests
+     */
+    public static void preparingOutputToTmp(int x, String testSuiteName, boolean retry) {
+        // move the old outputX.xml file to the new outputX.TestSuite.xml file
+        // (now, before the next suite writes again outputX.xml)
+        File outputFile = pabotOutput(x);
+        outputFile.renameTo(new File(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml"));
+        outputFile.delete();
+        // screenshots of a shard would be overwritten by the next shard of its suite
+        SuiteSplitter.renameShardScreenshots(x, testSuiteName);
+        // process this file to get updated src of screenshot, in background
+        OutputPipeline.submit(WORKING_PATH + "/output" + x + "." + testSuiteName + ".xml", x, testSuiteName, retry);
+    }
+
+    /**
+     * Output directory of a pabot running on the device X only. Pabot clears 
+     * its pabot_results directory when it starts, so pabots running at same 
+     * time (work stealing, resume, retries) can't share runner/output.
+     * @param x the device index
+     * @return runner/output/devX
+     */
+    public static String pabotOutputDir(int x) {
+        return OUTPUT_PATH + "/dev" + x;
+    }
+
+    /**
+     * Where the outputX.xml of the last suite of the device X is read (a pabot
+     * on all devices writes into runner/output, see PabotThread, its outputs
+     * are moved here)
+     * @param x the device index
+     * @return runner/output/devX/pabot_results/outputX.xml
+     */
+    public static File pabotOutput(int x) {
+        return new File(pabotOutputDir(x) + "/pabot_results/output" + x + ".xml");
+    }
+
+    /**
+     * Robot writes outputX.xml while tests are running, a killed robot leaves
+     * it unfinished
+     * @param output the robot output file
+     * @return true if the file exists and ends with its root element
+     */
+    public static boolean isCompleteOutput(File output) {
+        if (!output.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            byte[] end = new byte[(int) Math.min(64, file.length())];
+            file.seek(file.length() - end.length);
+            file.readFully(end);
+            return new String(end, StandardCharsets.UTF_8).contains("</robot>");
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Duration of the suite of a robot output, from the status of its root 
+     * suite (starttime/endtime). This status is the last one of the file 
+     * (only statistics and errors come after), so the file is read backwards.
+     * @param output the robot output file
+     * @return the duration (ms), -1 if it's unknown
+     */
+    public static long outputDuration(File output) {
+        try (RandomAccessFile file = new RandomAccessFile(output, "r")) {
+            for (long size = 8192; ; size *= 2) {
+                byte[] end = new byte[(int) Math.min(size, file.length())];
+                file.seek(file.length() - end.length);
+                file.readFully(end);
+                String tail = new String(end, StandardCharsets.UTF_8);
+                int status = tail.lastIndexOf("<status ");
+                if (status >= 0) {
+                    Matcher start = STARTTIME_PATTERN.matcher(tail).region(status, tail.length());
+                    Matcher stop = ENDTIME_PATTERN.matcher(tail).region(status, tail.length());
+                    if (!start.lookingAt() || !stop.lookingAt()) {
+                        return -1;
+                    }
+                    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS");
+                    return format.parse(stop.group(1)).getTime() - format.parse(start.group(1)).getTime();
+                }
+                if (end.length == file.length()) {
+                    return -1;
+                }
+            }
+        } catch (IOException | ParseException ex) {
+            return -1;
+        }
+    }
 
     /**
      * Return the test name from a file name. Just delete the .robot extension
@@ -276,10 +388,11 @@ public class Tools {
         
         // if the output directory exists just delete it (recursivelly) 
         // and create it again (empty) <=> clear workspace
+        // (but keep it to resume the previous run)
         OUTPUT_PATH = RUNNER_PATH + "/output";
         if(!(new File(OUTPUT_PATH).exists())) {
             new File(OUTPUT_PATH).mkdir();
-        } else {
+        } else if (!RESUME) {
             try {
                 FileUtils.deleteDirectory(new File(OUTPUT_PATH));
                 new File(OUTPUT_PATH).mkdir();
@@ -298,6 +411,10 @@ public class Tools {
         if(!(new File(IMG_PATH).exists())) {
             new File(IMG_PATH).mkdir();
         } 
+        // screenshots of a previous run (daemon) are gone
+        ScreenshotStore.clear();
+        ScreenshotOptimizer.clear();
+        ResultCache.clear();
         
         CONF_PATH = RUNNER_PATH + "/devices_conf";
         if(!(new File(CONF_PATH).exists())) {
@@ -0,0 +1,359 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Timeouts of the run, so one hung keyword or appium session can't block it
+ * forever :
+ * - suite timeout : maximum duration of one pabot (or rebot) process
+ * - device timeout : maximum time a device can spend running suites
+ * - run timeout : maximum duration of all suites (the final report is still
+ *   generated after it)
+ * 
+ * When a timeout expires, the process and its children are killed. Tests 
+ * which didn't run because of a timeout are written as failed (with the 
+ * reason as message) so the final report is complete.
+ * 
+ * @author bastienjalbert
+ */
+public class Watchdog {
+
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    // generator of outputs written by the watchdog (robot outputs have "Robot x.y")
+    private static final String GENERATOR = "APTR watchdog";
+
+    // time given to a timed out process to stop before being killed (ms)
+    private static final long KILL_GRACE = 2000;
+
+    private static long suiteTimeout = 0;
+    private static long deviceTimeout = 0;
+
+    // end of the run (ms since epoch), Long.MAX_VALUE without run timeout
+    private static long runDeadline = Long.MAX_VALUE;
+
+    // time spent running suites by each device (ms)
+    private static long[] busy = new long[0];
+
+    private static ScheduledExecutorService killer = null;
+
+    /**
+     * A watched process
+     */
+    public static class Watch {
+
+        private final Process process;
+        private final int[] devices;
+        private final long start = System.currentTimeMillis();
+        private final String reason;
+        private volatile boolean expired = false;
+        private ScheduledFuture<?> kill = null;
+
+        private Watch(Process process, int[] devices, String reason) {
+            this.process = process;
+            this.devices = devices;
+            this.reason = reason;
+        }
+
+        /**
+         * The process ended (or has been killed) : stop watching it
+         * @return true if it has been killed because of a timeout
+         */
+        public boolean finish() {
+            if (kill != null) {
+                kill.cancel(false);
+            }
+            long duration = System.currentTimeMillis() - start;
+            synchronized (Watchdog.class) {
+                for (int x : devices) {
+                    if (x < busy.length) {
+                        busy[x] += duration;
+                    }
+                }
+            }
+            return expired;
+        }
+
+        /**
+         * @return the expired timeout and its value (ex: "suite timeout 600s")
+         */
+        public String reason() {
+            return reason;
+        }
+    }
+
+    /**
+     * Set timeouts of a new run (0 : no timeout)
+     * @param suiteTimeoutMs maximum duration of a pabot process (ms)
+     * @param deviceTimeoutMs maximum time a device runs suites (ms)
+     * @param runTimeoutMs maximum duration of the tests execution (ms)
+     * @param devicesCount number of devices
+     */
+    public static synchronized void start(long suiteTimeoutMs, long deviceTimeoutMs, long runTimeoutMs, int devicesCount) {
+        stop();
+        suiteTimeout = suiteTimeoutMs;
+        deviceTimeout = deviceTimeoutMs;
+        runDeadline = runTimeoutMs > 0 ? System.currentTimeMillis() + runTimeoutMs : Long.MAX_VALUE;
+        busy = new long[devicesCount];
+        killer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Stop watching (end of the run)
+     */
+    public static synchronized void stop() {
+        if (killer != null) {
+            killer.shutdownNow();
+            killer = null;
+        }
+    }
+
+    /**
+     * @return true if the run timeout expired (no suite can start anymore)
+     */
+    public static synchronized boolean runExpired() {
+        return System.currentTimeMillis() >= runDeadline;
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return true if the device timeout expired (or the run timeout)
+     */
+    public static synchronized boolean deviceExpired(int deviceIndex) {
+        return runExpired() || (deviceTimeout > 0 && deviceIndex < busy.length && busy[deviceIndex] >= deviceTimeout);
+    }
+
+    /**
+     * @param deviceIndex the device index
+     * @return the expired timeout of a device (see deviceExpired)
+     */
+    public static synchronized String expiredReason(int deviceIndex) {
+        return runExpired() ? "run timeout" : "device timeout " + deviceTimeout / 1000 + "s";
+    }
+
+    /**
+     * A suite can't start on a device because its time is over : its tests
+     * are failed in the report (output prepared like an executed suite)
+     * @param deviceIndex the device index
+     * @param unit the robot file (or shard)
+     * @param deviceName the device name
+     */
+    public static void failNotExecuted(int deviceIndex, String unit, String deviceName) {
+        String reason = expiredReason(deviceIndex);
+        System.err.println("ERROR : " + unit + " not executed on " + deviceName + " (" + reason + ")");
+        writeFailedOutput(deviceIndex, unit, "Not executed by APTR (" + reason + ") on " + deviceName);
+        Tools.preparingOutputToTmp(deviceIndex, Tools.getOnlyTestNameFromFile(unit));
+        StatusServer.health(deviceIndex, "expired");
+        StatusServer.completed(deviceIndex);
+    }
+
+    /**
+     * Kill a pabot process (and its children) if it reaches the suite timeout,
+     * the device timeout of one of its devices, or the run timeout
+     * @param process the process
+     * @param devices indexes of its devices
+     * @param description description used in messages
+     * @return the watch, its finish method has to be called when the process ends
+     */
+    public static synchronized Watch watch(Process process, int[] devices, String description) {
+        long now = System.currentTimeMillis();
+        long deadline = Long.MAX_VALUE;
+        String reason = null;
+        if (suiteTimeout > 0) {
+            deadline = now + suiteTimeout;
+            reason = "suite timeout " + suiteTimeout / 1000 + "s";
+        }
+        for (int x : devices) {
+            if (deviceTimeout > 0 && x < busy.length && now + deviceTimeout - busy[x] < deadline) {
+                deadline = now + deviceTimeout - busy[x];
+                reason = "device timeout " + deviceTimeout / 1000 + "s";
+            }
+        }
+        if (runDeadline < deadline) {
+            deadline = runDeadline;
+            reason = "run timeout";
+        }
+        return schedule(new Watch(process, devices, reason), deadline, description);
+    }
+
+    /**
+     * Kill a rebot process if it reaches the suite timeout (only)
+     * @param process the rebot process
+     * @param description description used in messages
+     * @return the watch, its finish method has to be called when the process ends
+     */
+    public static synchronized Watch watchRebot(Process process, String description) {
+        long deadline = suiteTimeout > 0 ? System.currentTimeMillis() + suiteTimeout : Long.MAX_VALUE;
+        return schedule(new Watch(process, new int[0], "suite timeout " + suiteTimeout / 1000 + "s"), deadline, description);
+    }
+
+    // kill the process at deadline (ms since epoch) if it is still alive
+    private static Watch schedule(Watch watch, long deadline, String description) {
+        if (killer == null || deadline == Long.MAX_VALUE) {
+            return watch;
+        }
+        watch.kill = killer.schedule(() -> {
+            if (!watch.process.isAlive()) {
+                return;
+            }
+            watch.expired = true;
+            System.err.println("ERROR : " + description + " reached the " + watch.reason + ", killed");
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Process killed by watchdog : ", description + " (" + watch.reason + ")"));
+            ProcessRegistry.stop(watch.process, KILL_GRACE);
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        return watch;
+    }
+
+    /**
+     * @param output a robot output file
+     * @return true if it has been written by writeFailedOutput (tests not 
+     *         executed or killed), not by robot
+     */
+    public static boolean isFailedOutput(File output) {
+        try (InputStream in = Files.newInputStream(output.toPath())) {
+            byte[] head = new byte[256];
+            int length = in.readNBytes(head, 0, head.length);
+            return new String(head, 0, length, StandardCharsets.UTF_8).contains("generator=\"" + GENERATOR + "\"");
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a robot output (devX/pabot_results/outputX.xml) where all tests of a 
+     * suite failed, for a suite killed or not executed because of a timeout
+     * @param deviceIndex the device index
+     * @param unit the robot file (or shard)
+     * @param message why tests failed
+     */
+    public static void writeFailedOutput(int deviceIndex, String unit, String message) {
+        File output = Tools.pabotOutput(deviceIndex);
+        output.getParentFile().mkdirs();
+        String now = new SimpleDateFormat("yyyyMMdd HH:mm:ss.SSS").format(new Date());
+        List<String> tests = SuiteSplitter.testNames(unit);
+        try (OutputStream out = Files.newOutputStream(output.toPath())) {
+            XMLStreamWriter writer = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("robot");
+            writer.writeAttribute("generator", GENERATOR);
+            writer.writeAttribute("generated", now);
+            writer.writeCharacters("\n");
+            writer.writeStartElement("suite");
+            writer.writeAttribute("source", new File(com.orange.testgenappium.launcher.PATH_TO_TESTS, 
+                    SuiteSplitter.robotFile(unit)).getAbsolutePath());
+            writer.writeAttribute("id", "s1");
+            writer.writeAttribute("name", robotSuiteName(SuiteSplitter.robotFile(unit)));
+            writer.writeCharacters("\n");
+            int t = 0;
+            for (String test : tests) {
+                writer.writeStartElement("test");
+                writer.writeAttribute("id", "s1-t" + ++t);
+                writer.writeAttribute("name", test);
+                writer.writeCharacters("\n");
+                writeStatus(writer, now);
+                writer.writeAttribute("critical", "yes");
+                writer.writeCharacters(message);
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+                writer.writeEndElement();
+                writer.writeCharacters("\n");
+            }
+            writeStatus(writer, now);
+            writer.writeCharacters(message);
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeStartElement("statistics");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeStartElement("errors");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.close();
+        } catch (IOException | XMLStreamException ex) {
+            String date = new Date().toString();
+            Tools.writeLog(Arrays.asList(date, "Error on writing failed output of " + unit + " : ", ex.toString()));
+        }
+    }
+
+    // open a FAIL <status> element
+    private static void writeStatus(XMLStreamWriter writer, String time) throws XMLStreamException {
+        writer.writeStartElement("status");
+        writer.writeAttribute("status", "FAIL");
+        writer.writeAttribute("starttime", time);
+        writer.writeAttribute("endtime", time);
+    }
+
+    /**
+     * Suite name given by robot to a robot file : "login_tests.robot" is 
+     * "Login Tests", "Suite_0001.robot" is "Suite 0001"
+     * @param robotFile the robot file name
+     * @return the suite name
+     */
+    public static String robotSuiteName(String robotFile) {
+        String name = new File(Tools.getOnlyTestNameFromFile(robotFile)).getName();
+        // "01__name" : the prefix only gives the execution order
+        int prefix = name.indexOf("__");
+        if (prefix > 0 && name.substring(0, prefix).chars().allMatch(Character::isDigit)) {
+            name = name.substring(prefix + 2);
+        }
+        name = name.replace('_', ' ').trim();
+        if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+            return name;
+        }
+        StringBuilder title = new StringBuilder();
+        for (String word : name.split(" ")) {
+            if (!word.isEmpty()) {
+                title.append(title.length() > 0 ? " " : "").append(Character.toUpperCase(word.charAt(0))).append(word.substring(1));
+            }
+        }
+        return title.toString();
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.threads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import com.orange.testgenappium.launcher;
+import com.orange.testgenappium.model.Device;
+import com.orange.testgenappium.utility.RunJournal;
+import com.orange.testgenappium.utility.SuiteHistory;
+import com.orange.testgenappium.utility.SuiteSplitter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of SuiteQueue : work stealing (every device runs every suite) and
+ * distribution (each suite runs once, on the device which ends it first)
+ *
+ * @author bastienjalbert
+ */
+public class SuiteQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ArrayList<String> suites = new ArrayList<>(Arrays.asList("A.robot", "B.robot", "C.robot"));
+
+    private final ArrayList<Device> devices = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        launcher.PATH_TO_TESTS = folder.getRoot().getPath();
+        launcher.RUNNER_PATH = folder.newFolder("runner").getPath();
+        launcher.OUTPUT_PATH = folder.newFolder("output").getPath();
+        launcher.LOG_FILE_PATH = new File(folder.getRoot(), "log.txt").getPath();
+        SuiteSplitter.clear();
+        devices.add(device("fast0", "Pixel"));
+        devices.add(device("slow1", "Pixel"));
+        RunJournal.start(devices, false);
+        SuiteHistory.load();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(new File(launcher.RUNNER_PATH, "suite_history.txt").toPath());
+        SuiteHistory.load();
+    }
+
+    @Test
+    public void everyDeviceTakesEverySuiteInOrder() {
+        SuiteQueue queue = new SuiteQueue(suites, 2);
+        assertEquals(6, queue.size());
+        assertEquals("A.robot", queue.next(0));
+        assertEquals("B.robot", queue.next(0));
+        assertEquals("A.robot", queue.next(1));
+        assertEquals("C.robot", queue.next(0));
+        assertNull(queue.next(0));
+        assertFalse(queue.hasWork(0));
+        assertTrue(queue.hasWork(1));
+        assertEquals(1, queue.complete());
+        assertEquals(2, queue.complete());
+    }
+
+    @Test
+    public void requeuedSuiteOnlyWaitsForItsDevice() {
+        SuiteQueue queue = new SuiteQueue(suites, 2);
+        assertEquals("A.robot", queue.next(0));
+        assertEquals("B.robot", queue.next(0));
+        assertEquals("C.robot", queue.next(0));
+        queue.requeue("B.robot", 0);
+        assertEquals("B.robot", queue.next(0));
+        assertNull(queue.next(0));
+        assertEquals(Arrays.asList("A.robot", "B.robot", "C.robot"), drain(queue, 1));
+    }
+
+    @Test
+    public void drainGivesSuitesNotTaken() {
+        SuiteQueue queue = new SuiteQueue(suites, 2);
+        queue.next(0);
+        queue.next(1);
+        LinkedHashMap<String, Set<Integer>> left = queue.drain();
+        assertEquals(Arrays.asList("B.robot", "C.robot"), new ArrayList<>(left.keySet()));
+        assertEquals(new HashSet<>(Arrays.asList(0, 1)), left.get("B.robot"));
+        assertNull(queue.next(0));
+    }
+
+    @Test
+    public void distributedSuitesRunOnce() {
+        SuiteQueue queue = new SuiteQueue(suites, devices);
+        assertEquals(3, queue.size());
+        assertEquals("A.robot", queue.next(0));
+        assertEquals("B.robot", queue.next(1));
+        assertEquals("C.robot", queue.next(1));
+        assertNull(queue.next(0));
+        assertFalse(queue.hasWork(1));
+    }
+
+    @Test
+    public void requeuedDistributedSuiteGoesFirstToAnyDevice() {
+        SuiteQueue queue = new SuiteQueue(suites, devices);
+        assertEquals("A.robot", queue.next(0));
+        assertEquals("B.robot", queue.next(1));
+        // device 0 has been quarantined during A
+        queue.requeue("A.robot", 0);
+        assertTrue(queue.hasWork(0));
+        assertEquals("A.robot", queue.next(1));
+        assertEquals("C.robot", queue.next(1));
+        assertNull(queue.next(0));
+    }
+
+    @Test
+    public void distributionSpreadsSuitesOverModels() throws IOException {
+        // A ran recently on this model, B never ran on it
+        history("A.robot\tfast0\t1000\t" + System.currentTimeMillis(),
+                "B.robot\tfast0\t1000\t0",
+                "A.robot\tslow1\t1000\t0",
+                "B.robot\tslow1\t1000\t0");
+        SuiteQueue queue = new SuiteQueue(suites, devices);
+        assertEquals("B.robot", queue.next(1));
+    }
+
+    @Test
+    public void slowDeviceLeavesSuitesToFasterOnes() throws IOException {
+        // device 1 is much slower on A than device 0, a bit slower on B
+        history("A.robot\tfast0\t1000\t0",
+                "A.robot\tslow1\t60000\t0",
+                "B.robot\tfast0\t1000\t0",
+                "B.robot\tslow1\t1500\t0",
+                "C.robot\tfast0\t1000\t0",
+                "C.robot\tslow1\t30000\t0");
+        SuiteQueue queue = new SuiteQueue(suites, devices);
+        assertEquals("B.robot", queue.next(1));
+        assertEquals("A.robot", queue.next(0));
+        assertEquals("C.robot", queue.next(0));
+        assertNull(queue.next(1));
+    }
+
+    private static Device device(String udid, String type) {
+        Device device = new Device();
+        device.setUdid(udid);
+        device.setType(type);
+        return device;
+    }
+
+    private void history(String... lines) throws IOException {
+        Files.write(new File(launcher.RUNNER_PATH, "suite_history.txt").toPath(),
+                Arrays.asList(lines), StandardCharsets.UTF_8);
+        SuiteHistory.load();
+    }
+
+    // suites still waiting for a device, in queue order
+    private static List<String> drain(SuiteQueue queue, int deviceIndex) {
+        List<String> left = new ArrayList<>();
+        for (String suite = queue.next(deviceIndex); suite != null; suite = queue.next(deviceIndex)) {
+            left.add(suite);
+        }
+        return left;
+    }
+
+}
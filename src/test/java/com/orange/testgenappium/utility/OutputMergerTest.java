@@ -0,0 +1,161 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.utility.RobotOutputs.GENERATOR;
+import static com.orange.testgenappium.utility.RobotOutputs.SETUP;
+import static com.orange.testgenappium.utility.RobotOutputs.TEARDOWN;
+import static com.orange.testgenappium.utility.RobotOutputs.parse;
+import static com.orange.testgenappium.utility.RobotOutputs.test;
+import static com.orange.testgenappium.utility.RobotOutputs.xpath;
+import static org.junit.Assert.assertEquals;
+import com.orange.testgenappium.launcher;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+/**
+ * Tests of OutputMerger : ids of merged suites and tests, statistics,
+ * statuses and errors of the merged output
+ *
+ * @author bastienjalbert
+ */
+public class OutputMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        launcher.LOG_FILE_PATH = new File(folder.getRoot(), "log.txt").getPath();
+    }
+
+    @Test
+    public void addOutputRenamesIdsIntoDeviceSuites() throws Exception {
+        File first = output("first.xml", "Suite A",
+                test("T1", "PASS", true, "", "smoke") + test("T2", "FAIL", true, "", "smoke", "slow"),
+                "FAIL", "20200101 10:00:00.000", "20200101 10:01:00.000", "warning A");
+        File second = output("second.xml", "Suite B",
+                test("T1", "PASS", true, "") + test("T2", "FAIL", false, "", "slow"),
+                "PASS", "20200101 09:00:00.000", "20200101 09:30:00.000", null);
+
+        File merged = folder.newFile("merged.xml");
+        OutputMerger merger = new OutputMerger(merged, "All tests", GENERATOR);
+        merger.startSuite("Device1");
+        merger.addOutput(first);
+        merger.endSuite();
+        merger.startSuite("Device2");
+        merger.addOutput(second);
+        merger.endSuite();
+        merger.close();
+
+        Document doc = parse(merged);
+        assertEquals(GENERATOR, xpath(doc, "/robot/@generator"));
+        assertEquals("s1", xpath(doc, "/robot/suite/@id"));
+        assertEquals("s1-s1", xpath(doc, "/robot/suite/suite[@name='Device1']/@id"));
+        assertEquals("s1-s2", xpath(doc, "/robot/suite/suite[@name='Device2']/@id"));
+        assertEquals("s1-s1-s1", xpath(doc, "//suite[@name='Suite A']/@id"));
+        assertEquals("s1-s1-s1-t2", xpath(doc, "//suite[@name='Suite A']/test[@name='T2']/@id"));
+        assertEquals("s1-s2-s1-t1", xpath(doc, "//suite[@name='Suite B']/test[@name='T1']/@id"));
+
+        // a failed suite fails its parents, which last from the first start to the last end
+        assertEquals("FAIL", xpath(doc, "/robot/suite/suite[@name='Device1']/status/@status"));
+        assertEquals("PASS", xpath(doc, "/robot/suite/suite[@name='Device2']/status/@status"));
+        assertEquals("FAIL", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("20200101 09:00:00.000", xpath(doc, "/robot/suite/status/@starttime"));
+        assertEquals("20200101 10:01:00.000", xpath(doc, "/robot/suite/status/@endtime"));
+
+        // the non critical failure only counts in all tests
+        assertEquals("2", xpath(doc, "/robot/statistics/total/stat[.='Critical Tests']/@pass"));
+        assertEquals("1", xpath(doc, "/robot/statistics/total/stat[.='Critical Tests']/@fail"));
+        assertEquals("2", xpath(doc, "/robot/statistics/total/stat[.='All Tests']/@pass"));
+        assertEquals("2", xpath(doc, "/robot/statistics/total/stat[.='All Tests']/@fail"));
+        assertEquals("1", xpath(doc, "/robot/statistics/tag/stat[.='smoke']/@pass"));
+        assertEquals("1", xpath(doc, "/robot/statistics/tag/stat[.='smoke']/@fail"));
+        assertEquals("0", xpath(doc, "/robot/statistics/tag/stat[.='slow']/@pass"));
+        assertEquals("2", xpath(doc, "/robot/statistics/tag/stat[.='slow']/@fail"));
+        assertEquals("5", xpath(doc, "count(/robot/statistics/suite/stat)"));
+        assertEquals("s1-s1-s1", xpath(doc, "/robot/statistics/suite/stat[.='All tests.Device1.Suite A']/@id"));
+        assertEquals("1", xpath(doc, "/robot/statistics/suite/stat[@id='s1-s2']/@pass"));
+        assertEquals("1", xpath(doc, "/robot/statistics/suite/stat[@id='s1-s2']/@fail"));
+        assertEquals("4", xpath(doc, "/robot/statistics/suite/stat[@id='s1']/@fail + /robot/statistics/suite/stat[@id='s1']/@pass"));
+
+        // errors of the inputs are kept, input statistics are not copied
+        assertEquals("1", xpath(doc, "count(/robot/errors/msg)"));
+        assertEquals("warning A", xpath(doc, "/robot/errors/msg"));
+        assertEquals("1", xpath(doc, "count(/robot/statistics)"));
+    }
+
+    @Test
+    public void combinePutsPartsTogetherInOneSuite() throws Exception {
+        File part1 = output("part1.xml", "Big Suite",
+                SETUP + test("T1", "PASS", true, "") + test("T2", "PASS", true, "") + TEARDOWN,
+                "PASS", "20200101 10:00:00.000", "20200101 10:01:00.000", null);
+        File part2 = output("part2.xml", "Big Suite",
+                SETUP + test("T3", "FAIL", true, "") + TEARDOWN,
+                "FAIL", "20200101 09:59:00.000", "20200101 10:02:00.000", null);
+
+        File combined = folder.newFile("combined.xml");
+        OutputMerger.combine(Arrays.asList(part1, part2), combined);
+
+        Document doc = parse(combined);
+        assertEquals(GENERATOR, xpath(doc, "/robot/@generator"));
+        assertEquals("Big Suite", xpath(doc, "/robot/suite/@name"));
+        assertEquals("0", xpath(doc, "count(/robot/suite/suite)"));
+        assertEquals("s1-t1", xpath(doc, "/robot/suite/test[@name='T1']/@id"));
+        assertEquals("s1-t2", xpath(doc, "/robot/suite/test[@name='T2']/@id"));
+        assertEquals("s1-t3", xpath(doc, "/robot/suite/test[@name='T3']/@id"));
+
+        // setup from the first part only, teardown from the last part only
+        assertEquals("1", xpath(doc, "count(/robot/suite/kw[@type='setup'])"));
+        assertEquals("1", xpath(doc, "count(/robot/suite/kw[@type='teardown'])"));
+        assertEquals("setup", xpath(doc, "/robot/suite/kw[1]/@type"));
+        assertEquals("teardown", xpath(doc, "/robot/suite/kw[last()]/@type"));
+        assertEquals("T3", xpath(doc, "/robot/suite/kw[last()]/preceding-sibling::test[1]/@name"));
+
+        assertEquals("1", xpath(doc, "count(/robot/suite/status)"));
+        assertEquals("FAIL", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("20200101 09:59:00.000", xpath(doc, "/robot/suite/status/@starttime"));
+        assertEquals("20200101 10:02:00.000", xpath(doc, "/robot/suite/status/@endtime"));
+        assertEquals("2", xpath(doc, "/robot/statistics/total/stat[.='All Tests']/@pass"));
+        assertEquals("1", xpath(doc, "/robot/statistics/total/stat[.='All Tests']/@fail"));
+    }
+
+    @Test
+    public void readsGeneratorAndSuiteName() throws Exception {
+        File output = output("output.xml", "Suite A", test("T1", "PASS", true, ""),
+                "PASS", "20200101 10:00:00.000", "20200101 10:01:00.000", null);
+        assertEquals(GENERATOR, OutputMerger.readGenerator(output));
+        assertEquals("Suite A", OutputMerger.readSuiteName(output));
+        assertEquals("APTR", OutputMerger.readGenerator(new File(folder.getRoot(), "missing.xml")));
+    }
+
+    private File output(String fileName, String suite, String content, String status,
+                        String starttime, String endtime, String error) throws IOException {
+        return RobotOutputs.write(folder.newFile(fileName), suite, content, status, starttime, endtime, error);
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+
+/**
+ * Small robot output.xml files for the tests, and XPath to read the results
+ *
+ * @author bastienjalbert
+ */
+final class RobotOutputs {
+
+    static final String GENERATOR = "Robot 3.0.2 (Python 2.7.12 on linux2)";
+
+    static final String SETUP = "<kw name=\"Open\" type=\"setup\"></kw>\n";
+
+    static final String TEARDOWN = "<kw name=\"Close\" type=\"teardown\"></kw>\n";
+
+    private RobotOutputs() {
+    }
+
+    /**
+     * Write an output.xml with one root suite, its tests get ids in file order
+     * @param file the output to write
+     * @param suite the root suite name
+     * @param content setup, tests and teardown of the suite (see test)
+     * @param status the suite status
+     * @param starttime the suite start time
+     * @param endtime the suite end time
+     * @param error an error message of the run (null for none)
+     * @return the output
+     * @throws IOException
+     */
+    static File write(File file, String suite, String content, String status, String starttime,
+                      String endtime, String error) throws IOException {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<robot generator=\"" + GENERATOR + "\" generated=\"20200101 10:00:00.000\">\n"
+                + "<suite id=\"s1\" name=\"" + suite + "\" source=\"/tests/" + suite + ".robot\">\n"
+                + content
+                + "<status status=\"" + status + "\" starttime=\"" + starttime + "\" endtime=\"" + endtime + "\"></status>\n"
+                + "</suite>\n"
+                + "<statistics>\n<total>\n<stat pass=\"9\" fail=\"9\">All Tests</stat>\n</total>\n</statistics>\n"
+                + "<errors>\n" + (error != null ? "<msg timestamp=\"20200101 10:00:00.000\" level=\"WARN\">"
+                + error + "</msg>\n" : "") + "</errors>\n"
+                + "</robot>\n";
+        for (int t = 1; xml.contains("s1-t#"); t++) {
+            xml = xml.replaceFirst("s1-t#", "s1-t" + t);
+        }
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * @param name the test name
+     * @param status PASS or FAIL
+     * @param critical false for a non critical test
+     * @param message the status message (empty for none)
+     * @param tags tags of the test
+     * @return a test of an output
+     */
+    static String test(String name, String status, boolean critical, String message, String... tags) {
+        StringBuilder xml = new StringBuilder("<test id=\"s1-t#\" name=\"" + name + "\">\n"
+                + "<kw name=\"Log\"><status status=\"PASS\"></status></kw>\n<tags>\n");
+        for (String tag : tags) {
+            xml.append("<tag>").append(tag).append("</tag>\n");
+        }
+        return xml.append("</tags>\n<status status=\"").append(status).append("\" critical=\"")
+                  .append(critical ? "yes" : "no").append("\">").append(message)
+                  .append("</status>\n</test>\n").toString();
+    }
+
+    static Document parse(File xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(xml);
+    }
+
+    /**
+     * @param doc a parsed output
+     * @param expression an XPath expression, count(...) and sums give a whole number
+     * @return the result as a string
+     * @throws Exception
+     */
+    static String xpath(Document doc, String expression) throws Exception {
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        if (expression.startsWith("count(") || expression.contains(" + ")) {
+            Double number = (Double) xpath.evaluate(expression, doc, XPathConstants.NUMBER);
+            return String.valueOf(number.longValue());
+        }
+        return xpath.evaluate(expression, doc);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import com.orange.testgenappium.launcher;
+import com.orange.testgenappium.model.Device;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of SuiteRequirements : OS version conditions and tags of the suites
+ * (metadata or sidecar file) matched against the devices
+ *
+ * @author bastienjalbert
+ */
+public class SuiteRequirementsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 0 : tablet with wifi on 8.1.0, 1 : phone (its type) on "Android 11", 2 : no OS version
+    private final ArrayList<Device> devices = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        launcher.PATH_TO_TESTS = folder.getRoot().getPath();
+        launcher.LOG_FILE_PATH = new File(folder.getRoot(), "log.txt").getPath();
+        SuiteSplitter.clear();
+        devices.add(device("tablet0", "8.1.0", "Tablet, wifi", null));
+        devices.add(device("phone1", "Android 11", "", "Phone"));
+        devices.add(device("unknown2", null, "", null));
+    }
+
+    @After
+    public void tearDown() {
+        SuiteRequirements.load(new ArrayList<>(), devices);
+    }
+
+    @Test
+    public void suiteWithoutRequirementsRunsEverywhere() throws IOException {
+        robot("Free.robot", "*** Settings ***", "Documentation    nothing required");
+        load("Free.robot");
+        assertEquals("[true, true, true]", matching("Free.robot"));
+        assertTrue(SuiteRequirements.hasDevice("Free.robot"));
+        // suites which have not been loaded run everywhere too
+        assertTrue(SuiteRequirements.matches("Other.robot", 5));
+    }
+
+    @Test
+    public void matchesOsRanges() throws IOException {
+        metadata("Range.robot", "OS Version", "8-10");
+        metadata("Above.robot", "OS Version", ">=9 <12");
+        metadata("Below.robot", "OS Version", "<=8");
+        metadata("Exact.robot", "OS Version", "8.1");
+        metadata("Strict.robot", "OS Version", ">8.1");
+        metadata("Old.robot", "OS Version", "<5");
+        load("Range.robot", "Above.robot", "Below.robot", "Exact.robot", "Strict.robot", "Old.robot");
+
+        assertEquals("[true, false, false]", matching("Range.robot"));
+        assertEquals("[false, true, false]", matching("Above.robot"));
+        // only the numbers of the condition are compared : 8.1.0 is 8
+        assertEquals("[true, false, false]", matching("Below.robot"));
+        assertEquals("[true, false, false]", matching("Exact.robot"));
+        assertEquals("[false, true, false]", matching("Strict.robot"));
+        assertEquals("[false, false, false]", matching("Old.robot"));
+        assertFalse(SuiteRequirements.hasDevice("Old.robot"));
+    }
+
+    @Test
+    public void invalidOsConditionIsIgnored() throws IOException {
+        metadata("Invalid.robot", "OS Version", "latest");
+        load("Invalid.robot");
+        assertEquals("[true, true, true]", matching("Invalid.robot"));
+    }
+
+    @Test
+    public void matchesTagsAndTypes() throws IOException {
+        metadata("Tablet.robot", "Device Tags", "TABLET");
+        metadata("Both.robot", "Device Tags", "tablet, wifi");
+        metadata("Phone.robot", "Device Tags", "phone");
+        metadata("None.robot", "Device Tags", "tablet phone");
+        load("Tablet.robot", "Both.robot", "Phone.robot", "None.robot");
+
+        assertEquals("[true, false, false]", matching("Tablet.robot"));
+        assertEquals("[true, false, false]", matching("Both.robot"));
+        assertEquals("[false, true, false]", matching("Phone.robot"));
+        assertEquals("[false, false, false]", matching("None.robot"));
+    }
+
+    @Test
+    public void matchesTagsAndOsTogether() throws IOException {
+        robot("Pipe.robot",
+                "| *** Settings *** |",
+                "| Metadata | Device Tags | tablet |",
+                "| Metadata | OS Version | >=9 |");
+        robot("OldTablet.robot",
+                "*** Settings ***",
+                "Metadata    Device Tags    tablet",
+                "Metadata    OS Version    <9");
+        load("Pipe.robot", "OldTablet.robot");
+        assertEquals("[false, false, false]", matching("Pipe.robot"));
+        assertEquals("[true, false, false]", matching("OldTablet.robot"));
+    }
+
+    @Test
+    public void sidecarWinsOverMetadata() throws IOException {
+        metadata("Sidecar.robot", "Device Tags", "tablet");
+        Files.write(new File(folder.getRoot(), "Sidecar.devices").toPath(),
+                Arrays.asList("# phones only", "tags: phone", "os: 10-12"), StandardCharsets.UTF_8);
+        load("Sidecar.robot");
+        assertEquals("[false, true, false]", matching("Sidecar.robot"));
+    }
+
+    @Test
+    public void shardsHaveTheRequirementsOfTheirSuite() throws IOException {
+        robot("Big.robot", "*** Settings ***", "Metadata    Device Tags    wifi",
+                "*** Test Cases ***", "Test 1", "    Log    one", "Test 2", "    Log    two");
+        ArrayList<String> units = SuiteSplitter.split(new ArrayList<>(Arrays.asList("Big.robot")), 1);
+        load("Big.robot");
+        assertEquals("[Big.shard1.robot, Big.shard2.robot]", units.toString());
+        assertTrue(SuiteRequirements.matches("Big.shard2.robot", 0));
+        assertFalse(SuiteRequirements.matches("Big.shard2.robot", 1));
+        SuiteSplitter.clear();
+    }
+
+    private static Device device(String udid, String os, String tags, String type) {
+        Device device = new Device();
+        device.setUdid(udid);
+        device.setOs(os);
+        device.setTags(tags);
+        device.setType(type);
+        return device;
+    }
+
+    private void load(String... suites) {
+        SuiteRequirements.load(new ArrayList<>(Arrays.asList(suites)), devices);
+    }
+
+    // matching of each device, like "[true, false, true]"
+    private String matching(String suite) {
+        boolean[] matches = new boolean[devices.size()];
+        for (int x = 0; x < devices.size(); x++) {
+            matches[x] = SuiteRequirements.matches(suite, x);
+        }
+        return Arrays.toString(matches);
+    }
+
+    private void metadata(String name, String metadata, String value) throws IOException {
+        robot(name, "*** Settings ***", "Metadata    " + metadata + "    " + value,
+                "*** Test Cases ***", "Test 1", "    Log    test");
+    }
+
+    private void robot(String name, String... lines) throws IOException {
+        Files.write(new File(folder.getRoot(), name).toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+}
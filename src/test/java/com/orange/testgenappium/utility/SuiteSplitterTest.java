@@ -0,0 +1,185 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.utility.RobotOutputs.parse;
+import static com.orange.testgenappium.utility.RobotOutputs.test;
+import static com.orange.testgenappium.utility.RobotOutputs.xpath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import com.orange.testgenappium.launcher;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+/**
+ * Tests of SuiteSplitter : tests read from robot files, shards and their
+ * outputs put together again
+ *
+ * @author bastienjalbert
+ */
+public class SuiteSplitterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws IOException {
+        launcher.PATH_TO_TESTS = folder.getRoot().getPath();
+        launcher.WORKING_PATH = folder.newFolder("working").getPath();
+        launcher.LOG_FILE_PATH = new File(folder.getRoot(), "log.txt").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        SuiteSplitter.clear();
+    }
+
+    @Test
+    public void readsTestsOfTheTestCasesTable() throws IOException {
+        robot("Space.robot",
+                "*** Settings ***",
+                "Documentation    Not a test",
+                "",
+                "*** Test Cases ***",
+                "# a comment",
+                "Login With [admin] *",
+                "    [Tags]    smoke",
+                "    Open App",
+                "    ...    with arguments",
+                "",
+                "Logout\tLog    done",
+                "",
+                "*** Keywords ***",
+                "Open App",
+                "    Log    not a test");
+        robot("Pipe.robot",
+                "| *** Test Case *** |",
+                "| First Test | Log | one |",
+                "| | Log | more |",
+                "| Second Test |",
+                "| *** Keyword *** |",
+                "| Not A Test | Log | x |");
+
+        assertEquals(Arrays.asList("Login With [admin] *", "Logout"), SuiteSplitter.testNames("Space.robot"));
+        assertEquals(Arrays.asList("First Test", "Second Test"), SuiteSplitter.testNames("Pipe.robot"));
+        assertEquals(Collections.emptyList(), SuiteSplitter.testNames("Missing.robot"));
+    }
+
+    @Test
+    public void splitsBigSuitesIntoShards() throws IOException {
+        robot("Big.robot", tests(5));
+        robot("Small.robot", tests(2));
+
+        ArrayList<String> units = SuiteSplitter.split(new ArrayList<>(Arrays.asList("Small.robot", "Big.robot")), 2);
+        assertEquals(Arrays.asList("Small.robot", "Big.shard1.robot", "Big.shard2.robot", "Big.shard3.robot"), units);
+
+        assertEquals(Collections.emptyList(), SuiteSplitter.tests("Small.robot"));
+        assertEquals("Small.robot", SuiteSplitter.robotFile("Small.robot"));
+        assertEquals(Arrays.asList("Test 1"), SuiteSplitter.tests("Big.shard1.robot"));
+        assertEquals(Arrays.asList("Test 2", "Test 3"), SuiteSplitter.tests("Big.shard2.robot"));
+        assertEquals(Arrays.asList("Test 4", "Test 5"), SuiteSplitter.tests("Big.shard3.robot"));
+        assertEquals("Big.robot", SuiteSplitter.robotFile("Big.shard3.robot"));
+
+        // a shard weighs the lines of its tests only
+        long shard2 = SuiteSplitter.weight("Big.shard2.robot");
+        assertEquals(2 * ("Test 2\n".length() + "    Log    test\n".length()), shard2);
+        assertTrue(SuiteSplitter.weight("Big.robot") > shard2);
+    }
+
+    @Test
+    public void escapesWildcardsOfTestNames() {
+        assertEquals("Login With [[]admin] [*]", SuiteSplitter.testPattern("Login With [admin] *"));
+        assertEquals("Is It Done[?]", SuiteSplitter.testPattern("Is It Done?"));
+        assertEquals("Plain Name", SuiteSplitter.testPattern("Plain Name"));
+    }
+
+    @Test
+    public void combinesShardsIntoTheOutputOfTheFirstDevice() throws Exception {
+        robot("Big.robot", tests(5));
+        SuiteSplitter.split(new ArrayList<>(Arrays.asList("Big.robot")), 2);
+
+        shardOutput(1, "Big.shard1", test("Test 1", "PASS", true, ""));
+        shardOutput(0, "Big.shard2", test("Test 2", "PASS", true, "") + test("Test 3", "FAIL", true, "boom"));
+        shardOutput(1, "Big.shard3", test("Test 4", "PASS", true, "") + test("Test 5", "PASS", true, ""));
+
+        SuiteSplitter.combineShards(2);
+
+        File combined = new File(launcher.WORKING_PATH, "output1.Big.xml");
+        assertTrue(combined.exists());
+        assertFalse(new File(launcher.WORKING_PATH, "output0.Big.xml").exists());
+        Document doc = parse(combined);
+        assertEquals("Big", xpath(doc, "/robot/suite/@name"));
+        assertEquals("5", xpath(doc, "count(/robot/suite/test)"));
+        assertEquals("Test 1", xpath(doc, "/robot/suite/test[1]/@name"));
+        assertEquals("Test 5", xpath(doc, "/robot/suite/test[5]/@name"));
+        assertEquals("s1-t5", xpath(doc, "/robot/suite/test[5]/@id"));
+        assertEquals("FAIL", xpath(doc, "/robot/suite/status/@status"));
+    }
+
+    @Test
+    public void combinesShardsWithoutTheMissingOnes() throws Exception {
+        robot("Big.robot", tests(5));
+        SuiteSplitter.split(new ArrayList<>(Arrays.asList("Big.robot")), 2);
+
+        shardOutput(0, "Big.shard1", test("Test 1", "PASS", true, ""));
+        shardOutput(1, "Big.shard3", test("Test 4", "PASS", true, "") + test("Test 5", "PASS", true, ""));
+
+        SuiteSplitter.combineShards(2);
+
+        Document doc = parse(new File(launcher.WORKING_PATH, "output0.Big.xml"));
+        assertEquals("3", xpath(doc, "count(/robot/suite/test)"));
+        assertEquals("PASS", xpath(doc, "/robot/suite/status/@status"));
+    }
+
+    // a robot file with some tests (Test 1, Test 2...)
+    private static String[] tests(int count) {
+        String[] lines = new String[1 + 2 * count];
+        lines[0] = "*** Test Cases ***";
+        for (int t = 1; t <= count; t++) {
+            lines[2 * t - 1] = "Test " + t;
+            lines[2 * t] = "    Log    test";
+        }
+        return lines;
+    }
+
+    private void robot(String name, String... lines) throws IOException {
+        Files.write(new File(folder.getRoot(), name).toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    }
+
+    private static void shardOutput(int deviceIndex, String shardName, String tests) throws IOException {
+        RobotOutputs.write(new File(launcher.WORKING_PATH, "output" + deviceIndex + "." + shardName + ".xml"),
+                "Big", tests, tests.contains("\"FAIL\"") ? "FAIL" : "PASS",
+                "20200101 10:00:00.000", "20200101 10:01:00.000", null);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2017 Bastien Enjalbert - Orange
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of 
+this software and associated documentation files (the "Software"), to deal in 
+the Software without restriction, including without limitation the rights to use, 
+copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the 
+Software, and to permit persons to whom the Software is furnished to do so, 
+subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all 
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR 
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, 
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE 
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, 
+WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN 
+CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.orange.testgenappium.utility;
+
+import static com.orange.testgenappium.utility.RobotOutputs.parse;
+import static com.orange.testgenappium.utility.RobotOutputs.test;
+import static com.orange.testgenappium.utility.RobotOutputs.xpath;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.events.XMLEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+/**
+ * Tests of TestRetry : retried tests replace the failed ones and the suite
+ * status is computed again from its tests
+ *
+ * @author bastienjalbert
+ */
+public class TestRetryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void passedRetryPassesTheSuite() throws Exception {
+        File output = output("output0.Suite_A.xml",
+                test("T1", "FAIL", true, "boom") + test("T2", "PASS", true, "", "smoke"), "FAIL");
+        File retry = output("output1.Suite_A.retry1-0.xml", test("T1", "PASS", true, ""), "PASS");
+
+        Document doc = replace(output, retry, "Device2");
+        assertEquals("PASS", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("2", xpath(doc, "count(/robot/suite/test)"));
+        assertEquals("s1-t1", xpath(doc, "/robot/suite/test[@name='T1']/@id"));
+        assertEquals("PASS", xpath(doc, "/robot/suite/test[@name='T1']/status/@status"));
+        assertEquals(TestRetry.RETRIED_TAG, xpath(doc, "/robot/suite/test[@name='T1']/tags/tag[last()]"));
+        assertEquals("Retried 1 time(s) by APTR, last result kept (on Device2). First result : FAIL : boom",
+                xpath(doc, "/robot/suite/test[@name='T1']/status"));
+        // a test which wasn't retried is kept as is
+        assertEquals("smoke", xpath(doc, "/robot/suite/test[@name='T2']/tags/tag"));
+        assertEquals("", xpath(doc, "/robot/suite/test[@name='T2']/status"));
+    }
+
+    @Test
+    public void failedRetryKeepsTheSuiteFailed() throws Exception {
+        File output = output("output0.Suite_A.xml",
+                test("T1", "PASS", true, "") + test("T2", "FAIL", true, "boom"), "FAIL");
+        File retry = output("output0.Suite_A.retry1-0.xml", test("T2", "FAIL", true, "boom again"), "FAIL");
+
+        Document doc = replace(output, retry, "Device1");
+        assertEquals("FAIL", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("FAIL", xpath(doc, "/robot/suite/test[@name='T2']/status/@status"));
+        assertTrue(xpath(doc, "/robot/suite/test[@name='T2']/status").startsWith("boom again\n\nRetried 1 time(s)"));
+    }
+
+    @Test
+    public void nonCriticalFailureDoesNotFailTheSuite() throws Exception {
+        File output = output("output0.Suite_A.xml",
+                test("T1", "FAIL", false, "not critical") + test("T2", "FAIL", true, "boom"), "FAIL");
+        File retry = output("output0.Suite_A.retry1-0.xml", test("T2", "PASS", true, ""), "PASS");
+
+        Document doc = replace(output, retry, "Device1");
+        assertEquals("PASS", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("FAIL", xpath(doc, "/robot/suite/test[@name='T1']/status/@status"));
+        assertEquals("not critical", xpath(doc, "/robot/suite/test[@name='T1']/status"));
+    }
+
+    @Test
+    public void nextRetryKeepsTheFirstResult() throws Exception {
+        File output = output("output0.Suite_A.xml", test("T1", "FAIL", true, "boom"), "FAIL");
+        File retry1 = output("output0.Suite_A.retry1-0.xml", test("T1", "FAIL", true, "boom again"), "FAIL");
+        File retry2 = output("output0.Suite_A.retry2-0.xml", test("T1", "PASS", true, ""), "PASS");
+
+        replace(output, retry1, "Device1");
+        Document doc = replace(output, retry2, "Device1");
+        assertEquals("PASS", xpath(doc, "/robot/suite/status/@status"));
+        assertEquals("Retried 2 time(s) by APTR, last result kept (on Device1). First result : FAIL : boom",
+                xpath(doc, "/robot/suite/test[@name='T1']/status"));
+        // the content of the test comes from the last retry, tagged once
+        assertEquals("1", xpath(doc, "count(/robot/suite/test[@name='T1']/tags/tag)"));
+    }
+
+    // merge a retry output into an output, like TestRetry does
+    private static Document replace(File output, File retry, String deviceName) throws Exception {
+        Map<String, List<XMLEvent>> tests = TestRetry.readTests(retry);
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(output.toPath())) {
+            TestRetry.replaceTests(in, merged, tests, output.getPath(), deviceName);
+        }
+        Files.write(output.toPath(), merged.toByteArray());
+        return parse(output);
+    }
+
+    private File output(String fileName, String tests, String status) throws IOException {
+        return RobotOutputs.write(folder.newFile(fileName), "Suite A", tests, status,
+                "20200101 10:00:00.000", "20200101 10:01:00.000", null);
+    }
+
+}